@@ -4,20 +4,31 @@ import numpy as np
 import os
 import sys
 from scipy.optimize import curve_fit
+from scipy.linalg.blas import dgemm
 from scipy.stats import chisquare, binom_test, combine_pvalues, ttest_1samp, wilcoxon, norm
 import itertools
+import collections
 import time
 import queue
 import scipy
 import subprocess
 from minepy import MINE
 import random
+import struct
+import hashlib
+import multiprocessing
+import ctypes
+import tempfile
 
 from AxProfUtil import extractConfigsFromDict
 from AxProfUtil import extractJobsFromConfigs
 from AxProfUtil import extractAllConfigs
 from AxProfUtil import writeDataToFile
 from AxProfUtil import dumpObtainedData
+from AxProfUtil import writeInterpreterRecord
+from AxProfUtil import writeBinaryOutput
+from AxProfUtil import readBinaryOutput
+from AxProfUtil import MappedMap
 from AxProfVis import visualizeOutput
 from AxProfGenerators import * #nothing but generators
 
@@ -53,7 +64,328 @@ def binomialTest(observed, trials, expProb, alternative='two-sided'):
   return binom_test(observed, trials, expProb, alternative)
 
 
-def fitFuncToData(data, func, funcParams, paramNames):
+# Running statistics [count, mean, sum of squared deviations] of a sample,
+# updated one value at a time with Welford's algorithm
+def welfordUpdate(stats, value):
+  stats[0] += 1
+  delta = value - stats[1]
+  stats[1] += delta / stats[0]
+  stats[2] += delta * (value - stats[1])
+
+
+# Combine the running statistics of two samples (Chan et al.)
+def welfordMerge(stats1, stats2):
+  n1, mean1, m21 = stats1
+  n2, mean2, m22 = stats2
+  n = n1 + n2
+  if n == 0:
+    return [0, 0.0, 0.0]
+  delta = mean2 - mean1
+  return [n, mean1 + delta * n2 / n, m21 + m22 + delta * delta * n1 * n2 / n]
+
+
+# One sample t-test from running statistics; same result as ttest_1samp
+# on the whole sample
+def ttestFromStats(stats, popmean):
+  n, mean, m2 = stats
+  df = n - 1
+  with np.errstate(divide='ignore', invalid='ignore'):
+    t = np.float64(mean - popmean) / np.sqrt(np.float64(m2) / df / n)
+  return t, 2 * scipy.stats.t.sf(np.abs(t), df)
+
+
+# Streaming quantile sketch of run times for LATENCY clauses (t-digest,
+# Dunning and Ertl, with the k1 scale function)
+# Values are buffered and merged into centroids whose size shrinks towards
+# the tails, so extreme percentiles stay accurate in bounded memory
+# Sketches of partial aggregates merge exactly as their values would
+class TDigest:
+  def __init__(self, compression=200):
+    self.compression = compression
+    self.centroids = [] # sorted [mean, weight] pairs
+    self.buffer = [] # unmerged (value, weight) pairs
+    self.min = math.inf
+    self.max = -math.inf
+
+  def add(self, value, weight=1):
+    self.buffer.append((value, weight))
+    self.min = min(self.min, value)
+    self.max = max(self.max, value)
+    if len(self.buffer) >= 5 * self.compression:
+      self.compress()
+
+  def merge(self, other):
+    self.buffer += [(mean, weight) for mean, weight in other.centroids]
+    self.buffer += other.buffer
+    self.min = min(self.min, other.min)
+    self.max = max(self.max, other.max)
+    if len(self.buffer) >= 5 * self.compression:
+      self.compress()
+
+  @staticmethod
+  def merged(digest1, digest2):
+    digest = TDigest(max(digest1.compression, digest2.compression))
+    digest.merge(digest1)
+    digest.merge(digest2)
+    return digest
+
+  # Largest quantile a centroid starting at quantile q may reach
+  def limit(self, q):
+    k = self.compression / (2 * math.pi) * math.asin(2 * q - 1) + 1
+    if k >= self.compression / 4:
+      return 1
+    return (math.sin(2 * math.pi * k / self.compression) + 1) / 2
+
+  def compress(self):
+    if not self.buffer:
+      return
+    points = sorted(self.centroids + [[value, weight] for value, weight in self.buffer])
+    self.buffer = []
+    total = sum(weight for _, weight in points)
+    centroids = [list(points[0])]
+    before = 0
+    limit = total * self.limit(0)
+    for mean, weight in points[1:]:
+      last = centroids[-1]
+      if before + last[1] + weight <= limit:
+        last[1] += weight
+        last[0] += (mean - last[0]) * weight / last[1]
+      else:
+        before += last[1]
+        limit = total * self.limit(before / total)
+        centroids.append([mean, weight])
+    self.centroids = centroids
+
+  # Value at quantile q (0-1), interpolated between centroid centers; nan if empty
+  def quantile(self, q):
+    self.compress()
+    if not self.centroids:
+      return math.nan
+    total = sum(weight for _, weight in self.centroids)
+    target = q * total
+    prevPos, prevValue = 0, self.min
+    before = 0
+    for mean, weight in self.centroids:
+      pos = before + weight / 2
+      if target <= pos:
+        break
+      prevPos, prevValue = pos, mean
+      before += weight
+    else:
+      pos, mean = total, self.max
+    if pos == prevPos:
+      return mean
+    return prevValue + (mean - prevValue) * (target - prevPos) / (pos - prevPos)
+
+
+# Value of a staged subexpression of a checker that may fail, computed when it
+# is first used rather than when the configuration or input is prepared
+# (see CodeGen.genStagedValues)
+class LazyValue:
+  def __init__(self, compute):
+    self.compute = compute
+    self.done = False
+
+  def __call__(self):
+    if not self.done:
+      self.value = self.compute()
+      self.done = True
+    return self.value
+
+
+# Number of distinct arguments whose results each pure function keeps
+memoCacheSize = 256
+
+
+# Hashable key of a value passed to a pure function; lists, maps, and arrays
+# are keyed on their contents
+def memoKey(value):
+  if isinstance(value, (list, tuple)):
+    return tuple(memoKey(v) for v in value)
+  if isinstance(value, dict):
+    return frozenset((memoKey(k), memoKey(v)) for k, v in value.items())
+  if isinstance(value, set):
+    return frozenset(value)
+  if isinstance(value, np.ndarray):
+    return (value.dtype.str, value.shape, value.tobytes())
+  return value
+
+
+# Function declared pure in a spec, memoized on the values of its arguments
+# with an LRU cache of memoCacheSize results; calls with arguments that cannot
+# be keyed are not cached
+class PureFunction:
+  def __init__(self, func, name):
+    self.func = func
+    self.name = name
+    self.cache = collections.OrderedDict()
+    self.hits = 0
+    self.misses = 0
+
+  def __call__(self, *args):
+    try:
+      key = memoKey(args)
+      hash(key)
+    except TypeError:
+      self.misses += 1
+      return self.func(*args)
+    if key in self.cache:
+      self.hits += 1
+      self.cache.move_to_end(key)
+      return self.cache[key]
+    self.misses += 1
+    result = self.func(*args)
+    self.cache[key] = result
+    if len(self.cache) > memoCacheSize:
+      self.cache.popitem(last=False)
+    return result
+
+  def report(self):
+    print("Pure function", self.name + ":", self.hits, "cache hits,", self.misses, "misses")
+
+
+def memoize(func, name):
+  return PureFunction(func, name)
+
+
+# Fused matrix multiply and accumulate for generated checkers (--blas):
+# returns alpha*a@b + beta*c computed by one BLAS GEMM call
+# c must be a float64 array owned by the caller; it is updated in place
+def gemmAcc(a, b, c, alpha=1.0, beta=1.0):
+  if c.flags.f_contiguous:
+    return dgemm(alpha, a, b, beta=beta, c=c, overwrite_c=True)
+  # the transpose of a row major c is column major: c.T = alpha*b.T@a.T + beta*c.T
+  return dgemm(alpha, b.T, a.T, beta=beta, c=c.T, overwrite_c=True).T
+
+
+# Matrix expression of a randomized check (FREIVALDS clause of a spec):
+# a sum of signed products, each a list of factors that are matrices or MatSums
+class MatSum:
+  def __init__(self, terms):
+    self.terms = terms
+
+  def cols(self):
+    last = self.terms[0][1][-1]
+    return last.cols() if isinstance(last, MatSum) else np.shape(last)[1]
+
+  # Product of the expression with x, formed one factor at a time from the
+  # right, so only matrix-vector products are computed
+  def apply(self, x):
+    result = None
+    for sign, factors in self.terms:
+      y = x
+      for factor in reversed(factors):
+        if isinstance(factor, MatSum):
+          y = factor.apply(y)
+        else:
+          y = np.asarray(factor, dtype=float) @ y
+      if sign != 1:
+        y = sign * y
+      result = y if result is None else result + y
+    return result
+
+
+# Default tolerance of freivaldsCheck, relative to the largest entry of the products
+freivaldsTolerance = 1e-9
+
+
+# Freivalds' check of lhs == rhs for matrices or MatSums: both sides are
+# multiplied with trials random 0/1 vectors in O(n^2) per vector; a side that
+# differs is accepted with probability at most 2^-trials
+# The products are compared entrywise up to tol times their largest entry (at
+# least 1): both sides sum the same terms in different orders, so their
+# roundoff scales with the data rather than with each entry, which may cancel to 0
+def freivaldsCheck(lhs, rhs, trials, tol=None):
+  if not isinstance(lhs, MatSum):
+    lhs = MatSum([(1.0, [lhs])])
+  if not isinstance(rhs, MatSum):
+    rhs = MatSum([(1.0, [rhs])])
+  if tol is None:
+    tol = freivaldsTolerance
+  if int(trials) != trials or trials < 1:
+    raise ValueError('freivaldsCheck needs at least one trial, got {}'.format(trials))
+  if tol < 0:
+    raise ValueError('freivaldsCheck needs a tolerance that is not negative, got {}'.format(tol))
+  cols = lhs.cols()
+  if cols != rhs.cols():
+    return False
+  vectors = np.random.randint(0, 2, size=(cols, int(trials))).astype(float)
+  left = lhs.apply(vectors)
+  right = rhs.apply(vectors)
+  if np.shape(left) != np.shape(right):
+    return False
+  scale = max(np.max(np.abs(left), initial=0), np.max(np.abs(right), initial=0), 1)
+  return bool(np.allclose(left, right, rtol=tol, atol=tol * scale))
+
+
+def freivaldsErrorProbability(trials):
+  return 0.5 ** int(trials)
+
+
+# Uniform sample, with replacement, of the given number of tuples from the
+# cross product of the ranges of an items site (CodeGen.genItemSample)
+# Cross products no larger than the sample are returned in full
+def sampleItems(ranges, samples):
+  ranges = [r if isinstance(r, (list, tuple, range, np.ndarray)) else list(r) for r in ranges]
+  total = 1
+  for r in ranges:
+    total *= len(r)
+  if total <= samples:
+    return list(itertools.product(*ranges))
+  return [tuple(r[random.randrange(len(r))] for r in ranges) for _ in range(samples)]
+
+
+# Half width of the interval around the fraction of sampled items that holds
+# the fraction of all items with the given confidence (Hoeffding's inequality)
+def samplingConfidence(samples, confidence=0.95):
+  return math.sqrt(math.log(2/(1-confidence))/(2*samples))
+
+
+# Wald's sequential probability ratio test for a probability spec
+# 'Probability [...] op p0' after observing successes out of trials
+# The spec (p = p0) is tested against a violation by delta (p = p0 -+ delta)
+# with error rates alpha and beta; == is checked as two one sided tests
+# Returns 1 to accept the spec, -1 to reject it, 0 if more trials are needed
+def sprtDecision(successes, trials, p0, op, delta=0.1, alpha=0.05, beta=0.2):
+  if op == '==':
+    return min(sprtDecision(successes, trials, p0, '>=', delta, alpha/2, beta),
+               sprtDecision(successes, trials, p0, '<=', delta, alpha/2, beta))
+  p1 = p0 - delta if op[0] == '>' else p0 + delta
+  # keep the likelihood ratio finite at the ends of [0, 1]
+  p0 = min(max(p0, 1e-9), 1 - 1e-9)
+  p1 = min(max(p1, 1e-9), 1 - 1e-9)
+  llr = (successes * math.log(p1 / p0) +
+         (trials - successes) * math.log((1 - p1) / (1 - p0)))
+  if llr >= math.log((1 - beta) / alpha):
+    return -1
+  if llr <= math.log(beta / (1 - alpha)):
+    return 1
+  return 0
+
+
+# Report the verdict of a sequential test in place of a checker
+def sequentialVerdict(verdict, samples, kind):
+  print("Sequential test reached a verdict after", samples, kind)
+  if verdict < 0:
+    print('Checker detected a possible error')
+  return verdict > 0
+
+
+# Jacobian of a fit function for curve_fit from its derivatives by each
+# parameter; constant derivatives are broadcast to the number of data points
+def stackJacobian(Cfg, derivatives):
+  if len(Cfg) > 0:
+    points = len(Cfg[0])
+  else:
+    points = max(np.size(d) for d in derivatives)
+  return np.column_stack([np.broadcast_to(np.asarray(d, dtype=float), (points,)) for d in derivatives])
+
+
+# jac is the Jacobian of func (see stackJacobian), or None to estimate it by
+# finite differences
+# If func is linear in its parameters, basis gives its derivatives by them and
+# the parameters are found by least squares in closed form instead
+def fitFuncToData(data, func, funcParams, paramNames, jac=None, basis=None):
   datalen = len(data)
   numParams = len(funcParams)
   arrays = (numParams + 1) * [None]
@@ -69,7 +401,13 @@ def fitFuncToData(data, func, funcParams, paramNames):
 
   for i in range(numParams + 1):
     arrays[i] = np.array(arrays[i])
-  popt, pcov = curve_fit(func, arrays[:-1], arrays[-1])
+  if basis is not None:
+    # func(x, p) = func(x, 0) + basis(x) @ p
+    design = basis(arrays[:-1])
+    offset = func(arrays[:-1], *np.zeros(design.shape[1]))
+    popt = np.linalg.lstsq(design, arrays[-1] - offset, rcond=None)[0]
+  else:
+    popt, pcov = curve_fit(func, arrays[:-1], arrays[-1], jac=jac)
   residuals = arrays[-1] - func(arrays[:-1], *popt)
   sum_sqd_residuals = np.sum(residuals**2)
   sum_sqd_total = np.sum((arrays[-1] - np.mean(arrays[-1]))**2)
@@ -81,20 +419,275 @@ def binomialSamplesReqd(alpha=0.05, beta=0.2, delta=0.1, tails=2, p0=0.5):
   pa = p0-delta if p0 > 0.5 else p0+delta
   return math.ceil((((norm.ppf(1-adjAlpha)*math.sqrt(p0*(1-p0)))+(norm.ppf(1-beta)*math.sqrt(pa*(1-pa))))/delta)**2+(1/delta))
 
-def generateFunctionsFromSpec(spec):
-  # Writing spec to file to use with the java antlr backend
-  tempSpecFile = open("/tmp/axprofspec", "w")
-  tempSpecFile.write(spec)
-  tempSpecFile.close()
+# Runs (or inputs) used when the required number cannot be decided
+defaultSamplesReqd = 320
+
+
+# Samples needed by the binomial test of a generated checker comparing a
+# probability with target using op (see CodeGen.getCheckFreqStr) to detect a
+# deviation of delta in the direction it tests with power 1-beta
+# None if the probability cannot deviate in that direction
+def probabilitySamplesReqd(op, target, alpha=0.05, beta=0.2, delta=0.1):
+  if op == '==':
+    tails = 2
+    alt = target - delta if target > 0.5 else target + delta
+  else:
+    tails = 1
+    alt = target - delta if op[0] == '>' else target + delta
+  alt = min(max(alt, 0.0), 1.0)
+  if target < 0 or target > 1 or alt == target:
+    return None
+  effect = abs(alt - target)
+  return math.ceil((((norm.ppf(1-alpha/tails)*math.sqrt(target*(1-target)))+(norm.ppf(1-beta)*math.sqrt(alt*(1-alt))))/effect)**2+(1/effect))
+
+
+# Samples needed by the t-test of a generated checker comparing an expectation
+# using op to detect a deviation of effect standard deviations with power 1-beta
+def expectationSamplesReqd(op, alpha=0.05, beta=0.2, effect=0.2):
+  tails = 2 if op == '==' else 1
+  za = norm.ppf(1-alpha/tails)
+  return math.ceil(((za+norm.ppf(1-beta))/effect)**2 + za*za/2)
+
+
+# Samples needed by all tests of a checker; tests that need none are skipped
+def maxSamplesReqd(samples):
+  samples = [s for s in samples if s is not None]
+  return max(samples) if samples else defaultSamplesReqd
+
+
+# Command that runs the java checker generator with the given arguments
+def checkerGenCommand(args):
   checkerGenPath = os.path.dirname(__file__)+'/checkerGen/'
-  genCmd = ['java', '-ea', '-cp',
-            checkerGenPath+'antlr-4.7.1-complete.jar:'+checkerGenPath,
-            'MainClass', "/tmp/axprofspec"]
-  pipes = subprocess.run(args=genCmd, stdout=subprocess.PIPE,
-                         stderr=subprocess.PIPE)
-  out, err = pipes.stdout, pipes.stderr
-  out = out.decode("utf-8")
-  err = err.decode("utf-8")
+  return ['java', '-ea', '-cp',
+          checkerGenPath+'antlr-4.7.1-complete.jar:'+checkerGenPath,
+          'MainClass'] + args
+
+
+# Directory of the persistent checker cache shared with the java generator
+# (see checkerGen/CheckerCache.java); caching is skipped when useCheckerCache is False
+useCheckerCache = True
+
+
+def checkerCacheDir():
+  cacheDir = os.environ.get('AXPROF_CACHE_DIR', '')
+  if cacheDir == '':
+    cacheDir = os.path.join(os.path.expanduser('~'), '.cache', 'axprof', 'checkers')
+  return cacheDir
+
+
+# Hash of the checker generator classes, computed once per process
+checkerGenVersionHash = None
+
+
+# Hash of the compiled checker generator classes, computed like CheckerCache
+# The classes are only hashed on the first call; rebuilding the checker
+# generator takes effect in new processes
+def checkerGenVersion():
+  global checkerGenVersionHash
+  if checkerGenVersionHash is None:
+    checkerGenPath = os.path.dirname(__file__)+'/checkerGen/'
+    digest = hashlib.sha256()
+    for name in sorted(os.listdir(checkerGenPath)):
+      if name.endswith('.class'):
+        digest.update(name.encode("utf-8"))
+        with open(checkerGenPath+name, 'rb') as classFile:
+          digest.update(classFile.read())
+    checkerGenVersionHash = digest.hexdigest()
+  return checkerGenVersionHash
+
+
+# Options are the code generation flags, e.g. ['--vectorize']; their sorted,
+# space separated form matches CodeGen.Options.key
+def checkerOptionsKey(genOptions):
+  return ' '.join(sorted(set(genOptions)))
+
+
+def checkerCacheKey(spec, genOptions=[]):
+  digest = hashlib.sha256()
+  digest.update(checkerGenVersion().encode("utf-8"))
+  digest.update(b'\n')
+  digest.update(checkerOptionsKey(genOptions).encode("utf-8"))
+  digest.update(b'\n')
+  digest.update(spec.encode("utf-8"))
+  return digest.hexdigest()
+
+
+# Return cached checker code for the spec, or None
+# A hit marks the entry as recently used, like the java side
+def lookupCachedChecker(spec, genOptions=[]):
+  entry = os.path.join(checkerCacheDir(), checkerCacheKey(spec, genOptions)+'.py')
+  try:
+    with open(entry, encoding="utf-8") as entryFile:
+      code = entryFile.read()
+    os.utime(entry)
+    return code
+  except OSError:
+    return None
+
+
+# Command used to compile C kernels (--c-kernels); CC overrides the compiler
+cKernelCompiler = [os.environ.get('CC', 'cc'), '-O3', '-shared', '-fPIC']
+
+
+# Build the C kernels of a checker (see checkerGen/CKernelGen.java)
+# The shared library is compiled once per source and kept next to the cached
+# checkers; signatures maps kernel names to their argument kinds, 'd' for a
+# real and 'l' for a list of reals
+# Returns the kernels by name as ctypes functions
+def buildCKernels(source, signatures):
+  kernelDir = os.path.join(checkerCacheDir(), 'kernels')
+  os.makedirs(kernelDir, exist_ok=True)
+  digest = hashlib.sha256((' '.join(cKernelCompiler)+'\n'+source).encode("utf-8"))
+  library = os.path.join(kernelDir, digest.hexdigest()+'.so')
+  if not os.path.exists(library):
+    with tempfile.TemporaryDirectory(dir=kernelDir) as buildDir:
+      sourceFile = os.path.join(buildDir, 'kernels.c')
+      with open(sourceFile, 'w') as cFile:
+        cFile.write(source)
+      built = os.path.join(buildDir, 'kernels.so')
+      pipes = subprocess.run(args=cKernelCompiler+['-o', built, sourceFile, '-lm'],
+                             stdout=subprocess.PIPE, stderr=subprocess.PIPE)
+      if pipes.returncode != 0:
+        print("Error while compiling C kernels:")
+        print(pipes.stderr.decode("utf-8"))
+        exit(1)
+      # concurrent builds of the same source produce the same library
+      os.replace(built, library)
+  cLibrary = ctypes.CDLL(library)
+  kernels = {}
+  for name, signature in signatures.items():
+    kernel = getattr(cLibrary, name)
+    argtypes = []
+    for kind in signature:
+      if kind == 'd':
+        argtypes.append(ctypes.c_double)
+      else:
+        argtypes += [ctypes.POINTER(ctypes.c_double), ctypes.c_int64]
+    kernel.argtypes = argtypes + [ctypes.POINTER(ctypes.c_double)]
+    kernel.restype = None
+    kernels[name] = kernel
+  return kernels
+
+
+# Errors the python checker would have raised, by the code a C kernel reports
+# in result[3] (see the AX_ERR codes of CKernelGen)
+cKernelErrors = {1: (IndexError, 'list index out of range'),
+                 2: (ZeroDivisionError, 'division by zero'),
+                 3: (ArithmeticError, 'power out of range or not real')}
+
+
+# Call a C kernel on the given values; lists are passed as flat double buffers
+# Returns the kernel's results (see CKernelGen for their meaning)
+# Raises the error of the python checker if the kernel reports one
+def runCKernel(kernel, signature, values):
+  args = []
+  buffers = []
+  for kind, value in zip(signature, values):
+    if kind == 'd':
+      args.append(float(value))
+    else:
+      buffer = np.ascontiguousarray(value, dtype=np.float64)
+      buffers.append(buffer)
+      args += [buffer.ctypes.data_as(ctypes.POINTER(ctypes.c_double)), len(buffer)]
+  result = (ctypes.c_double * 4)()
+  kernel(*args, result)
+  if result[3] != 0:
+    error, message = cKernelErrors[int(result[3])]
+    raise error(message + ' in C kernel')
+  return list(result[:3])
+
+
+# Resident checker generator process, see startCheckerGenServer
+checkerGenServer = None
+
+
+# Start a resident checker generator that serves all later calls to
+# generateFunctionsFromSpec, avoiding a cold JVM for every spec
+def startCheckerGenServer():
+  global checkerGenServer
+  if checkerGenServer is None:
+    cacheArgs = [] if useCheckerCache else ['--no-cache']
+    checkerGenServer = subprocess.Popen(args=checkerGenCommand(cacheArgs+['--server']),
+                                        stdin=subprocess.PIPE,
+                                        stdout=subprocess.PIPE)
+
+
+# Stop the resident checker generator; it reports its mean latency on exit
+def stopCheckerGenServer():
+  global checkerGenServer
+  if checkerGenServer is not None:
+    try:
+      checkerGenServer.stdin.close()
+    except BrokenPipeError:
+      pass
+    checkerGenServer.wait()
+    checkerGenServer = None
+
+
+# Read exactly size bytes of a response from the resident checker generator
+# Returns None if its output ends first
+def readFromCheckerGenServer(size):
+  data = checkerGenServer.stdout.read(size)
+  return data if len(data) == size else None
+
+
+# Send one spec to the resident checker generator
+# Returns the generated code, the error text, and the generation time in seconds
+# If the server has exited, it is stopped and the error text reports its exit status
+def requestFromCheckerGenServer(spec, genOptions=[]):
+  options = ' '.join(genOptions).encode("utf-8")
+  data = spec.encode("utf-8")
+  try:
+    checkerGenServer.stdin.write(struct.pack('>I', len(options)) + options +
+                                 struct.pack('>I', len(data)) + data)
+    checkerGenServer.stdin.flush()
+    header = readFromCheckerGenServer(16)
+    payload = None
+    if header is not None:
+      status, elapsed, length = struct.unpack('>iqi', header)
+      payload = readFromCheckerGenServer(length)
+  except BrokenPipeError:
+    payload = None
+  if payload is None:
+    try:
+      exitStatus = checkerGenServer.wait(timeout=5)
+    except subprocess.TimeoutExpired:
+      checkerGenServer.kill()
+      exitStatus = checkerGenServer.wait()
+    stopCheckerGenServer()
+    return "", "Checker generator server exited with status {} before answering".format(exitStatus), 0
+  payload = payload.decode("utf-8")
+  if status == 0:
+    return payload, "", elapsed / 1e9
+  return "", payload, elapsed / 1e9
+
+
+# genOptions lists code generation flags of the checker generator, e.g.
+# ['--vectorize'] to lower quantifiers to NumPy array operations
+def generateFunctionsFromSpec(spec, genOptions=[]):
+  startTime = time.time()
+  cached = lookupCachedChecker(spec, genOptions) if useCheckerCache else None
+  if cached is not None:
+    out, err = cached, ""
+    print("Checker loaded from cache in {:.3f} ms".format(
+          (time.time() - startTime) * 1000))
+  elif checkerGenServer is not None:
+    out, err, genTime = requestFromCheckerGenServer(spec, genOptions)
+    print("Checker generation took {:.3f} ms (server: {:.3f} ms)".format(
+          (time.time() - startTime) * 1000, genTime * 1000))
+  else:
+    # Writing spec to file to use with the java antlr backend
+    tempSpecFile = open("/tmp/axprofspec", "w")
+    tempSpecFile.write(spec)
+    tempSpecFile.close()
+    cacheArgs = [] if useCheckerCache else ['--no-cache']
+    pipes = subprocess.run(args=checkerGenCommand(cacheArgs+genOptions+["/tmp/axprofspec"]),
+                           stdout=subprocess.PIPE, stderr=subprocess.PIPE)
+    out, err = pipes.stdout, pipes.stderr
+    out = out.decode("utf-8")
+    err = err.decode("utf-8")
+    print("Checker generation took {:.3f} ms".format(
+          (time.time() - startTime) * 1000))
   if(err == ""):
     scriptFile = '.'.join(__main__.__file__.split('.')[:-1])
     out = "from __main__ import *\n\n" + out
@@ -110,9 +703,128 @@ def generateFunctionsFromSpec(spec):
     exit(1)
 
 
+# Check a spec in the java interpreter instead of generated python code
+# records is a list of (config, inputData, outputs, runs, inputs) tuples, where
+# outputs lists the 'acc' outputs that the generated checker would receive
+# If compiled is True, the checker is compiled to JVM bytecode first
+# Returns one (passed, pvalues) tuple per record
+def checkWithInterpreter(spec, records, compiled=False):
+  with open("/tmp/axprofspec", "w") as tempSpecFile:
+    tempSpecFile.write(spec)
+  with open("/tmp/axprofdata", "w") as dataFile:
+    for config, inputData, outputs, runs, inputs in records:
+      writeInterpreterRecord(dataFile, config, inputData, outputs, runs, inputs)
+  # compiled checkers are JIT compiled by the JVM; specs the compiler does not
+  # support are interpreted instead
+  evalArgs = ['--eval', '--compile'] if compiled else ['--eval']
+  pipes = subprocess.run(args=checkerGenCommand(evalArgs+['/tmp/axprofspec', '/tmp/axprofdata']),
+                         stdout=subprocess.PIPE, stderr=subprocess.PIPE)
+  err = pipes.stderr.decode("utf-8")
+  # the checker reports errors with a nonzero exit status; anything else on
+  # stderr is a warning, e.g. that the compiled checker fell back to the interpreter
+  if pipes.returncode != 0:
+    print("Error while checking spec in the interpreter:")
+    print(err)
+    exit(1)
+  if err != "":
+    print(err, end="")
+  results = []
+  for line in pipes.stdout.decode("utf-8").splitlines():
+    fields = line.split()
+    results.append((fields[0] == 'PASS', [float(p) for p in fields[1:]]))
+  return results
+
+
+# Runners of checkers with a binary output reader (--binary-output) may
+# return the name of the output file as the 'acc' output; map it for the checker
+def mapRunnerOutput(output, readOutput):
+  if readOutput and isinstance(output['acc'], str):
+    output['acc'] = readOutput(output['acc'])
+  return output
+
+
+# Input file of an input in parallel mode; every input of a configuration is
+# written before the runs start
+def parallelInputFileName(input_num):
+  return '_AxProf_input_{}.txt'.format(input_num)
+
+
+# State of the worker processes in parallel mode
+# It is set before the workers are forked, so the runner and the generated
+# checker functions are inherited by the workers instead of being pickled
+shardState = None
+
+
+# Run a shard of consecutive runs of one input in a worker process
+# Forked workers inherit the random state of the parent, so each shard
+# reseeds random and np.random with its own seed to keep the runs independent
+# Returns whether the per run checks passed and the aggregate of the shard
+def runShard(task):
+  input_num, numRuns, seed = task
+  random.seed(seed)
+  np.random.seed(seed)
+  config = shardState['config']
+  inputData = shardState['inputs'][input_num]
+  perRunFunc = shardState['perRunFunc']
+  inpAgg = shardState['inpAgg']
+  passed = True
+  agg = None
+  for run in range(numRuns):
+    output = mapRunnerOutput(shardState['runner'](parallelInputFileName(input_num), config),
+                             shardState['readOutput'])
+    if perRunFunc and not shardState['skipAcc']:
+      passed &= perRunFunc(config, inputData, output)
+    if inpAgg:
+      if shardState['inpAggContext']:
+        agg = inpAgg(agg, run, output, config, inputData)
+      else:
+        agg = inpAgg(agg, run, output)
+  return passed, agg
+
+
+# Run all runs of all inputs of a configuration on a pool of worker processes
+# The runs of each input are split into shards so that every worker is busy,
+# and the aggregates of the shards are merged in order with inpAggMerge
+# Returns one (passed, aggregate) tuple per input
+def runShardsInParallel(workers, runs, config, inputsData, runner, perRunFunc,
+                        inpAgg, inpAggContext, inpAggMerge, skipAcc, readOutput=None):
+  global shardState
+  for input_num in range(len(inputsData)):
+    writeDataToFile(inputsData[input_num], parallelInputFileName(input_num))
+  shardState = {'config': config, 'inputs': inputsData, 'runner': runner,
+                'perRunFunc': perRunFunc, 'inpAgg': inpAgg,
+                'inpAggContext': inpAggContext, 'skipAcc': skipAcc,
+                'readOutput': readOutput}
+  shardsPerInput = min(runs, math.ceil(workers / len(inputsData)))
+  # distinct shard seeds, reproducible if the parent is seeded
+  seedBase = random.getrandbits(32)
+  tasks = []
+  for input_num in range(len(inputsData)):
+    for shard in range(shardsPerInput):
+      # spread the remainder over the first shards
+      tasks.append((input_num, runs // shardsPerInput + (1 if shard < runs % shardsPerInput else 0),
+                    (seedBase + len(tasks)) % 2**32))
+  with multiprocessing.get_context('fork').Pool(workers) as pool:
+    shards = pool.map(runShard, tasks)
+  shardState = None
+  results = []
+  for input_num in range(len(inputsData)):
+    passed = True
+    agg = None
+    for shardPassed, shardAgg in shards[input_num*shardsPerInput:(input_num+1)*shardsPerInput]:
+      passed &= shardPassed
+      if inpAggMerge:
+        agg = inpAggMerge(agg, shardAgg)
+    results.append((passed, agg))
+  return results
+
+
+# If workers is greater than 1, the runs are spread over that many worker
+# processes; the runner must then be safe to run concurrently
 def checkProperties(configDict, runs, inputs, inputGen, inputGenParams, runner,
                     inpAgg=None, cfgAgg=None, perRunFunc=None, perInpFunc=None,
-                    perConfigFunc=None, finalFunc=None, spec=None, skipAcc=False):
+                    perConfigFunc=None, finalFunc=None, spec=None, skipAcc=False,
+                    genOptions=[], workers=None, inpAggMerge=None):
 
   if not os.path.isdir('outputs'):
     os.mkdir('outputs')
@@ -120,11 +832,23 @@ def checkProperties(configDict, runs, inputs, inputGen, inputGenParams, runner,
   else:
     print("Using existing 'outputs' directory for time and memory data")
 
+  # generated streaming aggregators also take the configuration and input
+  inpAggContext = False
+  # sequential test hook of the generated checker, see CodeGen.genSeqTest
+  seqTest = None
+  # reader of binary outputs, see mapRunnerOutput
+  readOutput = None
+  # number of runs and inputs needed by the tests of the spec for each
+  # configuration, see CodeGen.genSamplePlans
+  requiredRuns = None
+  requiredInputs = None
   if(spec is not None):
-    newFunctions = generateFunctionsFromSpec(spec)
+    newFunctions = generateFunctionsFromSpec(spec, genOptions)
     # make the new functions local
     if (inpAgg is None):
       inpAgg = newFunctions['inpAgg'] if ('inpAgg' in newFunctions) else None
+      inpAggContext = newFunctions.get('inpAggContext', False)
+      inpAggMerge = newFunctions.get('inpAggMerge', None)
     if(cfgAgg is None):
       cfgAgg = newFunctions['cfgAgg'] if ('cfgAgg' in newFunctions) else None
     if(perRunFunc is None):
@@ -135,24 +859,37 @@ def checkProperties(configDict, runs, inputs, inputGen, inputGenParams, runner,
       perConfigFunc = newFunctions['perConfigFunc'] if ('perConfigFunc' in newFunctions) else None
     if(finalFunc is None):
       finalFunc = newFunctions['finalFunc'] if ('finalFunc' in newFunctions) else None
+    if inpAggContext:
+      seqTest = newFunctions.get('seqTest', None)
+    readOutput = newFunctions.get('readOutput', None)
+    if runs is None:
+      requiredRuns = newFunctions.get('requiredRuns', None)
+    if inputs is None:
+      requiredInputs = newFunctions.get('requiredInputs', None)
+    for warning in newFunctions.get('designWarnings', []):
+      print("[Warning]", warning)
     print(inpAgg, cfgAgg, perRunFunc, perInpFunc, perConfigFunc, finalFunc)
   else:
     print("No specification provided, using user-provided functions directly")
 
   samplesReqd = binomialSamplesReqd(alpha=0.05, beta=0.2, delta=0.1)
 
-  if runs is None:
+  if requiredRuns:
+    print("No. of runs is planned for each configuration from the specification")
+  elif runs is None:
     if (perRunFunc is None) and (perInpFunc is not None):
       runs = samplesReqd
     elif (perRunFunc is not None) and (perInpFunc is None):
-      runs = 320
+      runs = defaultSamplesReqd
     else:
-      runs = 320  # cannot decide, be conservative
+      runs = defaultSamplesReqd  # cannot decide, be conservative
     print("Selected no. of required runs:", runs)
   else:
     print("Using user-provided no. of runs:", runs)
 
-  if inputs is None:
+  if requiredInputs:
+    print("No. of inputs is planned for each configuration from the specification")
+  elif inputs is None:
     if perConfigFunc is None:
       inputs = 1
     else:
@@ -161,6 +898,18 @@ def checkProperties(configDict, runs, inputs, inputGen, inputGenParams, runner,
   else:
     print("Using user-provided no. of inputs:", inputs)
 
+  if workers is not None and workers > 1:
+    if inpAgg is not None and inpAggMerge is None:
+      print("No merge function for the input aggregator, running sequentially")
+      workers = None
+    else:
+      print("Spreading runs over", workers, "worker processes")
+      if seqTest:
+        print("Sequential testing is not available in parallel mode")
+        seqTest = None
+  else:
+    workers = None
+
   # Build a list of configurations to be tested
   paramNames, configList = extractConfigsFromDict(configDict)
   outputList = dict.fromkeys(configList)
@@ -173,27 +922,59 @@ def checkProperties(configDict, runs, inputs, inputGen, inputGenParams, runner,
     for name in paramNames:
       thisConfigDict[name] = config[paramNames.index(name)]
     print("Running test program for configuration", thisConfigDict)
+    if requiredRuns:
+      runs = requiredRuns(thisConfigDict)
+      print("Planned no. of runs:", runs)
+    if requiredInputs:
+      inputs = requiredInputs(thisConfigDict)
+      print("Planned no. of inputs:", inputs)
 
+    cfgVerdict = 0
+    if workers:
+      # inputs are generated here so that they are the same as in a sequential run
+      inputsData = []
+      for input_num in range(inputs):
+        configIGParams = inputGenParams(thisConfigDict, input_num)
+        inputsData.append(inputGen(*configIGParams))
+      shardResults = runShardsInParallel(workers, runs, thisConfigDict, inputsData,
+                                         runner, perRunFunc, inpAgg, inpAggContext,
+                                         inpAggMerge, skipAcc, readOutput)
     for input_num in range(inputs):
       print("Input", input_num + 1)
-      inpAggregate = None
-      configIGParams = inputGenParams(thisConfigDict, input_num)
-      inputData = inputGen(*configIGParams)
-      writeDataToFile(inputData, defaultInputFileName)
-      for run in range(runs):
-        sys.stdout.write('.')
+      inpVerdict = 0
+      if workers:
+        inputData = inputsData[input_num]
+        passed, inpAggregate = shardResults[input_num]
+        allChecksPassed &= passed
+      else:
+        inpAggregate = None
+        configIGParams = inputGenParams(thisConfigDict, input_num)
+        inputData = inputGen(*configIGParams)
+        writeDataToFile(inputData, defaultInputFileName)
+        for run in range(runs):
+          sys.stdout.write('.')
+          sys.stdout.flush()
+          output = mapRunnerOutput(runner(defaultInputFileName, thisConfigDict), readOutput)
+          if perRunFunc:
+            if not skipAcc:
+              allChecksPassed &= perRunFunc(thisConfigDict, inputData, output)
+          if inpAgg:
+            if inpAggContext:
+              inpAggregate = inpAgg(inpAggregate, run, output, thisConfigDict, inputData)
+            else:
+              inpAggregate = inpAgg(inpAggregate, run, output)
+          if seqTest and perInpFunc and not skipAcc:
+            inpVerdict = seqTest(thisConfigDict, inputData, inpAggregate)
+            if inpVerdict != 0:
+              break
+        sys.stdout.write('\n')
         sys.stdout.flush()
-        output = runner(defaultInputFileName, thisConfigDict)
-        if perRunFunc:
-          if not skipAcc:
-            allChecksPassed &= perRunFunc(thisConfigDict, inputData, output)
-        if inpAgg:
-          inpAggregate = inpAgg(inpAggregate, run, output)
-      sys.stdout.write('\n')
-      sys.stdout.flush()
       if perInpFunc:
         if not skipAcc:
-          allChecksPassed &= perInpFunc(thisConfigDict, inputData, runs, inpAggregate)
+          if inpVerdict != 0:
+            allChecksPassed &= sequentialVerdict(inpVerdict, run + 1, "runs")
+          else:
+            allChecksPassed &= perInpFunc(thisConfigDict, inputData, runs, inpAggregate)
       if cfgAgg:
           cfgAggregate = cfgAgg(cfgAggregate, input_num, inpAggregate)
       elif inputs == 1:
@@ -203,9 +984,16 @@ def checkProperties(configDict, runs, inputs, inputGen, inputGenParams, runner,
           if cfgAggregate is None:
               cfgAggregate = [inpAggregate]
           cfgAggregate.append(inpAggregate)
+      if seqTest and perConfigFunc and not skipAcc:
+        cfgVerdict = seqTest(thisConfigDict, inputData, cfgAggregate)
+        if cfgVerdict != 0:
+          break
     if perConfigFunc:
       if not skipAcc:
-        allChecksPassed &= perConfigFunc(thisConfigDict, runs, inputs, cfgAggregate)
+        if cfgVerdict != 0:
+          allChecksPassed &= sequentialVerdict(cfgVerdict, input_num + 1, "inputs")
+        else:
+          allChecksPassed &= perConfigFunc(thisConfigDict, runs, inputs, cfgAggregate)
     outputList[config] = cfgAggregate
   if allChecksPassed:
     print("All checks passed!")
@@ -213,7 +1001,7 @@ def checkProperties(configDict, runs, inputs, inputGen, inputGenParams, runner,
     print("One or more checks failed.")
   if finalFunc:
     finalFunc(paramNames, outputList, runs, inputs)
-  os.system("rm -f {} {} _axprof_temp_input".format(defaultInputFileName, defaultOutputFileName))
+  os.system("rm -f {} {} _axprof_temp_input _AxProf_input_*.txt".format(defaultInputFileName, defaultOutputFileName))
 
 
 def selectInputFeatures(configs, inputGenerator, igparams,
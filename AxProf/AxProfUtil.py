@@ -2,6 +2,7 @@
 
 import numpy as np
 import itertools
+import os
 from collections import namedtuple
 
 # Write a list of real numbers, lists, or matrices to a file
@@ -22,6 +23,117 @@ def writeDataToFile(data, fileName):
   dataFile.close()
 
 
+# Binary output format (checker generator flag --binary-output)
+# A list of reals is stored as consecutive little endian doubles, and a map
+# from reals to reals as (key, value) pairs of doubles sorted by key, so
+# programs can write it with a single fwrite and checkers can map it
+def writeBinaryOutput(data, fileName):
+  if isinstance(data, dict):
+    records = np.array(sorted(data.items()), dtype='<f8').reshape(-1, 2)
+  else:
+    records = np.asarray(data, dtype='<f8')
+  records.tofile(fileName)
+
+
+# Map a binary output file with the layout given by the generated checker
+# Lists are returned as arrays and maps as MappedMap; the file is copied
+# into memory if layout['copy'] is set
+def readBinaryOutput(fileName, layout):
+  if layout['kind'] == 'map':
+    dtype = np.dtype([('key', layout['dtype']), ('value', layout['dtype'])])
+  else:
+    dtype = np.dtype(layout['dtype'])
+  if os.path.getsize(fileName) == 0:
+    # empty files cannot be mapped
+    records = np.zeros(0, dtype=dtype)
+  else:
+    records = np.memmap(fileName, dtype=dtype, mode='r')
+  if layout['copy']:
+    records = np.array(records)
+  if layout['kind'] == 'map':
+    return MappedMap(records)
+  return records
+
+
+# Read only map over (key, value) records sorted by key
+# Supports the operations generated checkers use on dicts; lookups are
+# binary searches over the key column
+class MappedMap:
+  def __init__(self, records):
+    self.keyColumn = records['key']
+    self.valueColumn = records['value']
+
+  def __len__(self):
+    return len(self.keyColumn)
+
+  def __iter__(self):
+    return iter(self.keyColumn)
+
+  def find(self, key):
+    pos = np.searchsorted(self.keyColumn, key)
+    if pos < len(self.keyColumn) and self.keyColumn[pos] == key:
+      return pos
+    return -1
+
+  def __contains__(self, key):
+    return self.find(key) >= 0
+
+  def __getitem__(self, key):
+    pos = self.find(key)
+    if pos < 0:
+      raise KeyError(key)
+    return self.valueColumn[pos]
+
+  def get(self, key, default=None):
+    pos = self.find(key)
+    return self.valueColumn[pos] if pos >= 0 else default
+
+  def keys(self):
+    return self.keyColumn
+
+  def values(self):
+    return self.valueColumn
+
+  def items(self):
+    return zip(self.keyColumn, self.valueColumn)
+
+
+# Write a single value in the text format read by the java interpreter
+# (see checkerGen/Value.java): numbers as is, lists and maps preceded by their
+# size, and matrices preceded by their number of rows and columns
+def writeValue(datum, dataFile):
+  if isinstance(datum, dict):
+    print(len(datum), file=dataFile)
+    for key, val in datum.items():
+      writeValue(key, dataFile)
+      writeValue(val, dataFile)
+  elif isinstance(datum, np.ndarray) and len(np.shape(datum)) == 2:
+    print(*np.shape(datum), file=dataFile)
+    for row in datum:
+      print(*row, file=dataFile)
+  elif isinstance(datum, (list, tuple, set, np.ndarray)):
+    print(len(datum), file=dataFile)
+    for item in datum:
+      writeValue(item, dataFile)
+  else:
+    print(float(datum), file=dataFile)
+
+
+# Write the data for one check by the java interpreter
+# (see checkerGen/Interpreter.java)
+def writeInterpreterRecord(dataFile, config, inputData, outputs, runs=1, inputs=1):
+  print('config', len(config), file=dataFile)
+  for name, val in config.items():
+    print(name, float(val), file=dataFile)
+  print('runs', runs, 'inputs', inputs, file=dataFile)
+  if inputData is not None:
+    print('input', file=dataFile)
+    writeValue(inputData, dataFile)
+  print('outputs', len(outputs), file=dataFile)
+  for output in outputs:
+    writeValue(output, dataFile)
+
+
 # Get all configs that need testing
 # Also return the list of configuration parameter names
 def extractConfigsFromDict(configDict):
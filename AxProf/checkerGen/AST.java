@@ -1,11 +1,15 @@
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
 
 /* AST class
    Consists of subclasses for each type of AST node
    Also provides:
    1) Helper functions for obtaining the specification type
    2) Helper functions for comparing types
+   3) Helper functions for finding the variables an expression depends on
+   4) A helper function listing the children of a node, for passes that walk the AST
 */
 
 public class AST {
@@ -79,25 +83,42 @@ public class AST {
   public static class typeDecl extends ASTNode {
     public String name;
     public dataType type;
+    //declared as a pure function
+    public boolean pure;
     public typeDecl(String n, dataType t) {
       name = n;
       type = t;
     }
+    public typeDecl(String n, dataType t, boolean p) {
+      name = n;
+      type = t;
+      pure = p;
+    }
   }
 
   public static class spec extends ASTNode {
     public dataExp timeExp, spaceExp;
+    //percentile time models: percentiles (0-100) and their expressions, in order
+    public List<String> latencyPercentiles = new ArrayList<String>();
+    public List<dataExp> latencyExps = new ArrayList<dataExp>();
+    //runs per second model, or null
+    public dataExp throughputExp;
     public boolExp exp;
     public List<typeDecl> typeDecls;
+    //randomized matrix checks: number of random vectors and tolerance (see AxProf.freivaldsCheck), or null
+    public String freivaldsTrials, freivaldsTol;
     public spec() {}
     public void addDecls(List<typeDecl> tds) { typeDecls = tds; }
     public void addTime(dataExp te) { timeExp = te; }
     public void addSpace(dataExp se) { spaceExp = se; }
+    public void addLatency(String pct, dataExp le) { latencyPercentiles.add(pct); latencyExps.add(le); }
+    public void addThroughput(dataExp te) { throughputExp = te; }
     public void addAcc(boolExp be) { exp = be; }
+    public void addFreivalds(String trials, String tol) { freivaldsTrials = trials; freivaldsTol = tol; }
     public SpecType specType() {
       if(exp!=null)
         return exp.specType();
-      else if(timeExp!=null || spaceExp!=null)
+      else if(timeExp!=null || spaceExp!=null || !latencyExps.isEmpty() || throughputExp!=null)
         return SpecType.PERF;
       else
         return SpecType.NONE;
@@ -194,7 +215,13 @@ public class AST {
   }
 
   public static class dataExp extends ASTNode {
+    //binding times: the value is known once the configuration, the input, or the output of a run is
+    public static final int CONFIG=0;
+    public static final int INPUT=1;
+    public static final int RUN=2;
     public dataType type;
+    //assigned by Semantic
+    public int bindingTime = RUN;
     public dataExp() {
     }
   }
@@ -315,6 +342,8 @@ public class AST {
   public static class funcCall extends dataExp {
     public String funcName;
     public List<ASTNode> params;
+    //calls a function declared pure; assigned by Semantic
+    public boolean pure;
     public funcCall(String fn, List<ASTNode> p) {
       funcName = fn;
       params = p;
@@ -335,4 +364,115 @@ public class AST {
     }
   }
 
+  /* Returns the names of the variables that occur free in the given node
+     Range items and let names are bound in the expressions they scope over
+  */
+
+  public static Set<String> freeVars(ASTNode n) {
+    Set<String> vars = new HashSet<String>();
+    addFreeVars(n,new HashSet<String>(),vars);
+    return vars;
+  }
+
+  private static void addRangeFreeVars(List<range> ranges, ASTNode body, Set<String> bound, Set<String> vars) {
+    Set<String> inner = new HashSet<String>(bound);
+    for(range r : ranges) {
+      addFreeVars(r.coll,inner,vars);
+      inner.add(((varId)r.item).name);
+    }
+    addFreeVars(body,inner,vars);
+  }
+
+  private static void addFreeVars(ASTNode n, Set<String> bound, Set<String> vars) {
+    if(n instanceof forall) {
+      addRangeFreeVars(((forall)n).ranges,((forall)n).exp,bound,vars);
+    } else if(n instanceof let) {
+      let l = (let)n;
+      addFreeVars(l.value,bound,vars);
+      Set<String> inner = new HashSet<String>(bound);
+      inner.add(l.name);
+      addFreeVars(l.exp,inner,vars);
+    } else if(n instanceof probabilityItems) {
+      addRangeFreeVars(((probabilityItems)n).ranges,((probabilityItems)n).exp,bound,vars);
+    } else if(n instanceof expectationItems) {
+      addRangeFreeVars(((expectationItems)n).ranges,((expectationItems)n).exp,bound,vars);
+    } else if(n instanceof varId) {
+      if(!bound.contains(((varId)n).name))
+        vars.add(((varId)n).name);
+    } else {
+      for(ASTNode child : children(n))
+        addFreeVars(child,bound,vars);
+    }
+  }
+
+  /* Returns true if the given node does not depend on any of the given variables */
+
+  public static boolean independentOf(ASTNode n, Set<String> names) {
+    for(String var : freeVars(n))
+      if(names.contains(var))
+        return false;
+    return true;
+  }
+
+  /* Returns the children of the given node in the order they are evaluated
+     The collections of ranges come before the expression the ranges scope over,
+     and the value of a let before its expression
+  */
+
+  public static List<ASTNode> children(ASTNode n) {
+    List<ASTNode> children = new ArrayList<ASTNode>();
+    if(n instanceof forall) {
+      addRangeColls(((forall)n).ranges,children);
+      children.add(((forall)n).exp);
+    } else if(n instanceof let) {
+      children.add(((let)n).value);
+      children.add(((let)n).exp);
+    } else if(n instanceof isInData) {
+      children.add(((isInData)n).item);
+      children.add(((isInData)n).data);
+    } else if(n instanceof approxEq) {
+      children.add(((approxEq)n).e1);
+      children.add(((approxEq)n).e2);
+    } else if(n instanceof comparison) {
+      children.add(((comparison)n).e1);
+      children.add(((comparison)n).e2);
+    } else if(n instanceof boolAndOr) {
+      children.add(((boolAndOr)n).e1);
+      children.add(((boolAndOr)n).e2);
+    } else if(n instanceof boolNot) {
+      children.add(((boolNot)n).exp);
+    } else if(n instanceof probabilityInputs) {
+      children.add(((probabilityInputs)n).exp);
+    } else if(n instanceof probabilityRuns) {
+      children.add(((probabilityRuns)n).exp);
+    } else if(n instanceof probabilityItems) {
+      addRangeColls(((probabilityItems)n).ranges,children);
+      children.add(((probabilityItems)n).exp);
+    } else if(n instanceof expectationInputs) {
+      children.add(((expectationInputs)n).exp);
+    } else if(n instanceof expectationRuns) {
+      children.add(((expectationRuns)n).exp);
+    } else if(n instanceof expectationItems) {
+      addRangeColls(((expectationItems)n).ranges,children);
+      children.add(((expectationItems)n).exp);
+    } else if(n instanceof lookup) {
+      children.add(((lookup)n).coll);
+      children.add(((lookup)n).key);
+    } else if(n instanceof dataExpList) {
+      children.addAll(((dataExpList)n).list);
+    } else if(n instanceof dataOp) {
+      children.add(((dataOp)n).e1);
+      children.add(((dataOp)n).e2);
+    } else if(n instanceof dataSize) {
+      children.add(((dataSize)n).coll);
+    } else if(n instanceof funcCall) {
+      children.addAll(((funcCall)n).params);
+    }
+    return children;
+  }
+
+  private static void addRangeColls(List<range> ranges, List<ASTNode> children) {
+    for(range r : ranges)
+      children.add(r.coll);
+  }
 }
@@ -21,10 +21,13 @@ type returns [AST.dataType value]
 
 /* Type declaration rule
    associates a name with a type for type checking and code generation
+   'pure' declares a function of the user (by its result type) whose result only depends on
+   its arguments; its calls are memoized and may be hoisted by the optimizer
 */
 
 typeDecl returns [AST.typeDecl value]
     : name=Id t=type ';' { $value = new AST.typeDecl($name.getText(),$t.value); }
+    | 'pure' name=Id t=type ';' { $value = new AST.typeDecl($name.getText(),$t.value,true); }
     ;
 
 /* Type declaration list rule
@@ -39,6 +42,11 @@ typeDeclList returns [List<AST.typeDecl> value]
 
 /* Main specification rule
    consists of a list of type declarations, followed by optional time, space, and accuracy specifications in that order
+   LATENCY after the space specification models a percentile of the time of a run (e.g. LATENCY 99 n;
+   for the 99th percentile) and may be repeated; THROUGHPUT models the runs per second
+   FREIVALDS before the accuracy specification checks matrix equalities with the given number of
+   random vectors instead of multiplying matrices, optionally with a tolerance relative
+   to the largest entry of the products (see AxProf.freivaldsCheck)
 */
 
 spec returns [AST.spec value]
@@ -46,6 +54,9 @@ spec returns [AST.spec value]
     : tds=typeDeclList { $value.addDecls($tds.value); }
         ('TIME' de1=dataExp ';' { $value.addTime($de1.value); })?
         ('SPACE' de2=dataExp ';' { $value.addSpace($de2.value); })?
+        ('LATENCY' pct=Real de3=dataExp ';' { $value.addLatency($pct.getText(),$de3.value); })*
+        ('THROUGHPUT' de4=dataExp ';' { $value.addThroughput($de4.value); })?
+        ('FREIVALDS' trials=Real (tol=Real)? ';' { $value.addFreivalds($trials.getText(),$tol == null ? null : $tol.getText()); })?
         ('ACC' be=boolExp { $value.addAcc($be.value); })?
     ;
 
@@ -56,19 +67,18 @@ spec returns [AST.spec value]
    3) item present in set
    4) binary comparisions
    5) boolean operations (and, or, not)
+   Alternatives starting with a data expression are factored into one, so that the
+   parser chooses between them after the data expression with one token of lookahead
 */
 
 boolExp returns [AST.boolExp value]
     : 'forall' ranges=rangeList ':' be=boolExp { $value = new AST.forall($ranges.value,$be.value); }
     | 'let' name=Id '=' dat=dataExp 'in' be=boolExp { $value = new AST.let($name.getText(),$dat.value,$be.value); }
-    | item=dataExp 'in' dat=dataExp { $value = new AST.isInData($item.value,$dat.value); }
-    | de1=dataExp '.==' de2=dataExp { $value = new AST.approxEq($de1.value,$de2.value); }
-    | de1=dataExp '==' de2=dataExp { $value = new AST.comparison($de1.value,"==",$de2.value); }
-    | de1=dataExp '!=' de2=dataExp { $value = new AST.comparison($de1.value,"!=",$de2.value); }
-    | de1=dataExp '>'  de2=dataExp { $value = new AST.comparison($de1.value,">" ,$de2.value); }
-    | de1=dataExp '<'  de2=dataExp { $value = new AST.comparison($de1.value,"<" ,$de2.value); }
-    | de1=dataExp '>=' de2=dataExp { $value = new AST.comparison($de1.value,">=",$de2.value); }
-    | de1=dataExp '<=' de2=dataExp { $value = new AST.comparison($de1.value,"<=",$de2.value); }
+    | de1=dataExp
+        ( 'in' dat=dataExp { $value = new AST.isInData($de1.value,$dat.value); }
+        | '.==' de2=dataExp { $value = new AST.approxEq($de1.value,$de2.value); }
+        | op=('=='|'!='|'>'|'<'|'>='|'<=') de2=dataExp { $value = new AST.comparison($de1.value,$op.getText(),$de2.value); }
+        )
     | be1=boolExp '&&' be2=boolExp { $value = new AST.boolAndOr($be1.value,"and",$be2.value); }
     | be1=boolExp '||' be2=boolExp { $value = new AST.boolAndOr($be1.value,"or" ,$be2.value); }
     | '!' be=boolExp { $value = new AST.boolNot($be.value); }
@@ -86,16 +96,21 @@ boolExp returns [AST.boolExp value]
    6) numerical binary operations
    7) list/set/map size
    8) external function call
+   Probabilities and expected values are factored like the comparisons in boolExp
 */
 
 dataExp returns [AST.dataExp value]
     : realVal=Real { $value = new AST.realConst($realVal.getText()); }
-    | 'Probability' 'over' 'inputs' '[' be=boolExp ']' { $value = new AST.probabilityInputs($be.value); }
-    | 'Probability' 'over' 'runs' '[' be=boolExp ']' { $value = new AST.probabilityRuns($be.value); }
-    | 'Probability' 'over' ranges=rangeList '[' be=boolExp ']' { $value = new AST.probabilityItems($ranges.value,$be.value); }
-    | 'Expectation' 'over' 'inputs' '[' de=dataExp ']' { $value = new AST.expectationInputs($de.value); }
-    | 'Expectation' 'over' 'runs' '[' de=dataExp ']' { $value = new AST.expectationRuns($de.value); }
-    | 'Expectation' 'over' ranges=rangeList '[' de=dataExp ']' { $value = new AST.expectationItems($ranges.value,$de.value); }
+    | 'Probability' 'over'
+        ( 'inputs' '[' be=boolExp ']' { $value = new AST.probabilityInputs($be.value); }
+        | 'runs' '[' be=boolExp ']' { $value = new AST.probabilityRuns($be.value); }
+        | ranges=rangeList '[' be=boolExp ']' { $value = new AST.probabilityItems($ranges.value,$be.value); }
+        )
+    | 'Expectation' 'over'
+        ( 'inputs' '[' de=dataExp ']' { $value = new AST.expectationInputs($de.value); }
+        | 'runs' '[' de=dataExp ']' { $value = new AST.expectationRuns($de.value); }
+        | ranges=rangeList '[' de=dataExp ']' { $value = new AST.expectationItems($ranges.value,$de.value); }
+        )
     | coll=dataExp '[' key=dataExp ']' { $value = new AST.lookup($coll.value,$key.value); }
     | name=Id { $value = new AST.varId($name.getText()); }
     | expList=dataExpList { $value = new AST.dataExpList($expList.value); }
@@ -127,9 +142,11 @@ dataExpList returns [List<AST.dataExp> value]
 */
 
 range returns [AST.range value]
-    : item=dataExp 'in' col=dataExp { $value = new AST.range($item.value,$col.value,AST.range.DIRECT); }
-    | item=dataExp 'in' 'uniques' '(' col=dataExp ')' { $value = new AST.range($item.value,$col.value,AST.range.UNIQUE); }
-    | item=dataExp 'in' 'indices' '(' col=dataExp ')' { $value = new AST.range($item.value,$col.value,AST.range.INDEX); }
+    : item=dataExp 'in'
+        ( 'uniques' '(' col=dataExp ')' { $value = new AST.range($item.value,$col.value,AST.range.UNIQUE); }
+        | 'indices' '(' col=dataExp ')' { $value = new AST.range($item.value,$col.value,AST.range.INDEX); }
+        | col=dataExp { $value = new AST.range($item.value,$col.value,AST.range.DIRECT); }
+        )
     ;
 
 /* Range list rule
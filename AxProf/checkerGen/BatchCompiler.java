@@ -0,0 +1,182 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/* Batch checker generator
+   Generates checkers for many specs in one JVM, spreading the specs over a pool of threads
+   Specs are given as a directory (every regular file in it is a spec) or as a
+   manifest file listing one spec path per line; paths are relative to the manifest,
+   and empty lines and lines starting with # are skipped
+   The checker of spec <name>[.ext] is written to <out>/<name>.py
+   Every spec runs through its own lexer, parser, semantic analysis, and code generator
+   (see MainClass.generate); the only shared state is the cache, if one is given
+*/
+
+public class BatchCompiler {
+
+  /* Outcome of generating the checker of one spec */
+
+  public static class Result {
+    public Path spec, output;
+    public boolean success;
+    public long nanos;
+    public String errors;
+  }
+
+  private CheckerCache cache;
+  private CodeGen.Options options;
+  private Path outDir;
+
+  public BatchCompiler(CheckerCache c, CodeGen.Options opts, Path out) {
+    cache = c;
+    options = opts;
+    outDir = out;
+  }
+
+  /* Returns the spec files of a directory or manifest, in order */
+
+  public static List<Path> specFiles(Path source) throws IOException {
+    List<Path> specs = new ArrayList<Path>();
+    if(Files.isDirectory(source)) {
+      try(DirectoryStream<Path> dir = Files.newDirectoryStream(source)) {
+        for(Path path : dir)
+          if(Files.isRegularFile(path) && !path.getFileName().toString().startsWith("."))
+            specs.add(path);
+      }
+      Collections.sort(specs);
+    } else {
+      Path base = source.toAbsolutePath().getParent();
+      for(String line : Files.readAllLines(source,StandardCharsets.UTF_8)) {
+        line = line.trim();
+        if(line.isEmpty() || line.startsWith("#"))
+          continue;
+        specs.add(base.resolve(line));
+      }
+    }
+    return specs;
+  }
+
+  /* Returns the name of the checker of a spec file */
+
+  private static String checkerName(Path spec) {
+    String name = spec.getFileName().toString();
+    int dot = name.lastIndexOf('.');
+    return dot > 0 ? name.substring(0,dot) : name;
+  }
+
+  /* Generate the checkers of all specs using the given number of threads
+     Returns the results in the order of the specs
+  */
+
+  public List<Result> compile(List<Path> specs, int jobs) throws IOException, InterruptedException {
+    Files.createDirectories(outDir);
+    List<Result> results = new ArrayList<Result>();
+    Set<String> names = new HashSet<String>();
+    ExecutorService executor = Executors.newFixedThreadPool(jobs);
+    try{
+      List<Future<Result>> pending = new ArrayList<Future<Result>>();
+      for(Path spec : specs) {
+        String name = checkerName(spec);
+        if(!names.add(name)) {
+          //two specs would overwrite the same checker
+          Result result = new Result();
+          result.spec = spec;
+          result.errors = "Error: another spec is also named "+name+"\n";
+          pending.add(null);
+          results.add(result);
+          continue;
+        }
+        Path output = outDir.resolve(name+".py");
+        pending.add(executor.submit(() -> compile(spec,output)));
+        results.add(null);
+      }
+      for(int i=0; i<pending.size(); ++i) {
+        if(pending.get(i) == null)
+          continue;
+        try{
+          results.set(i,pending.get(i).get());
+        }catch(ExecutionException e){
+          Result result = new Result();
+          result.spec = specs.get(i);
+          result.errors = e.getCause().toString()+"\n";
+          results.set(i,result);
+        }
+      }
+    }finally{
+      executor.shutdown();
+    }
+    return results;
+  }
+
+  /* Generate the checker of one spec; errors are kept in the result */
+
+  private Result compile(Path spec, Path output) {
+    Result result = new Result();
+    result.spec = spec;
+    result.errors = "";
+    long start = System.nanoTime();
+    try(Writer writer = Files.newBufferedWriter(output,StandardCharsets.UTF_8)) {
+      String specText = new String(Files.readAllBytes(spec),StandardCharsets.UTF_8);
+      MainClass.compile(specText,writer,options,cache);
+      result.output = output;
+      result.success = true;
+    }catch(IllegalArgumentException e){
+      result.errors = e.getMessage();
+    }catch(IOException | RuntimeException e){
+      StringWriter trace = new StringWriter();
+      e.printStackTrace(new PrintWriter(trace));
+      result.errors = trace.toString();
+    }
+    result.nanos = System.nanoTime()-start;
+    if(!result.success) {
+      try{
+        Files.deleteIfExists(output);
+      }catch(IOException e){
+        //the summary still reports the failure
+      }
+    }
+    return result;
+  }
+
+  /* Print the outcome and generation time of each spec, with the errors of failed
+     specs, followed by the total timings
+     Returns the number of failed specs
+  */
+
+  public static int printSummary(List<Result> results, long wallNanos, PrintStream out) {
+    int failed = 0;
+    long totalNanos = 0;
+    Result slowest = null;
+    for(Result result : results) {
+      totalNanos += result.nanos;
+      if(slowest == null || result.nanos > slowest.nanos)
+        slowest = result;
+      out.printf("%-6s %10.3f ms  %s%n",result.success ? "OK" : "FAILED",result.nanos/1e6,result.spec);
+      if(!result.success) {
+        failed++;
+        out.print(result.errors);
+      }
+    }
+    out.printf("Generated %d of %d checkers in %.3f ms (%d failed)%n",
+               results.size()-failed,results.size(),wallNanos/1e6,failed);
+    if(slowest != null)
+      out.printf("Total generation time %.3f ms, mean %.3f ms, slowest %.3f ms (%s)%n",
+                 totalNanos/1e6,totalNanos/1e6/results.size(),slowest.nanos/1e6,slowest.spec);
+    return failed;
+  }
+}
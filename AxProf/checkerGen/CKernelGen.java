@@ -0,0 +1,453 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.HashSet;
+
+/* C kernel generation class (CodeGen.Options.cKernels)
+   Lowers a forall, Probability over items, or Expectation over items to a C
+   function over flat double buffers, so that the loops over large outputs
+   do not run in the python interpreter
+   Supported: reals and lists of reals (as declared by typeDecls), arithmetic,
+   list lookups and sizes, comparisons, and/or/not, membership in lists,
+   lets of reals, and nested foralls
+   Each kernel has the signature
+     void kN(<args>, double* result)
+   where a real argument is a double and a list argument is a const double*
+   followed by its int64_t length; the arguments are the free variables of the
+   site, in the order of Kernel.args. The kernel writes up to 3 results:
+     forall: [1 if the body holds for all items, else 0]
+     Probability: [successes, trials]
+     Expectation: [count, mean, sum of squared deviations] (see AxProf.welfordUpdate)
+   followed, in result[3], by the first error the python checker would have
+   raised (see the AX_ERR codes), which AxProf.runCKernel raises instead
+   Lookup keys must be integers in python, so only sites whose keys are integer
+   valued by construction (constants, index range items, sizes, and their sums,
+   differences, and products) are lowered
+   Statistical tests over these results stay in python
+   Throws UnsupportedOperationException for sites it cannot lower
+*/
+
+public class CKernelGen {
+
+  public static class Kernel {
+    public String name;
+    //names of the free variables passed to the kernel
+    public List<String> args;
+    //one character per argument: 'd' for a real, 'l' for a list of reals
+    public String signature;
+  }
+
+  private static final String HELPERS =
+    "#include <math.h>\n"+
+    "#include <stdint.h>\n"+
+    "#include <stdlib.h>\n"+
+    "#include <string.h>\n\n"+
+    "/* errors of the python checker, reported in result[3] */\n"+
+    "#define AX_ERR_INDEX 1\n"+
+    "#define AX_ERR_ZERO_DIVISION 2\n"+
+    "#define AX_ERR_POWER 3\n\n"+
+    "static inline void ax_fail(int* err, int code) {\n"+
+    "  if(!*err)\n"+
+    "    *err = code;\n"+
+    "}\n\n"+
+    "static inline int ax_cmp(const void* a, const void* b) {\n"+
+    "  double x = *(const double*)a, y = *(const double*)b;\n"+
+    "  return (x > y) - (x < y);\n"+
+    "}\n\n"+
+    "/* sorted copy of a list, for membership tests by binary search */\n"+
+    "static inline double* ax_sorted(const double* v, int64_t n) {\n"+
+    "  double* s = malloc((n > 0 ? n : 1)*sizeof(double));\n"+
+    "  memcpy(s, v, n*sizeof(double));\n"+
+    "  qsort(s, n, sizeof(double), ax_cmp);\n"+
+    "  return s;\n"+
+    "}\n\n"+
+    "/* sorted distinct items of a list; returns their number */\n"+
+    "static inline int64_t ax_uniques(const double* v, int64_t n, double** u) {\n"+
+    "  double* s = ax_sorted(v, n);\n"+
+    "  int64_t m = 0;\n"+
+    "  for(int64_t i = 0; i < n; ++i)\n"+
+    "    if(m == 0 || s[i] != s[m-1])\n"+
+    "      s[m++] = s[i];\n"+
+    "  *u = s;\n"+
+    "  return m;\n"+
+    "}\n\n"+
+    "static inline int ax_contains(const double* s, int64_t n, double x) {\n"+
+    "  int64_t lo = 0, hi = n;\n"+
+    "  while(lo < hi) {\n"+
+    "    int64_t mid = lo + (hi-lo)/2;\n"+
+    "    if(s[mid] < x)\n"+
+    "      lo = mid+1;\n"+
+    "    else\n"+
+    "      hi = mid;\n"+
+    "  }\n"+
+    "  return lo < n && s[lo] == x;\n"+
+    "}\n\n"+
+    "/* list lookup with python's negative indices; the index is an integer (see isInteger) */\n"+
+    "static inline double ax_at(const double* v, int64_t n, double index, int* err) {\n"+
+    "  int64_t i = (int64_t)index;\n"+
+    "  if(i < 0)\n"+
+    "    i += n;\n"+
+    "  if(i < 0 || i >= n) {\n"+
+    "    ax_fail(err, AX_ERR_INDEX);\n"+
+    "    return NAN;\n"+
+    "  }\n"+
+    "  return v[i];\n"+
+    "}\n\n"+
+    "static inline double ax_div(double x, double y, int* err) {\n"+
+    "  if(y == 0)\n"+
+    "    ax_fail(err, AX_ERR_ZERO_DIVISION);\n"+
+    "  return x / y;\n"+
+    "}\n\n"+
+    "/* python raises for 0 to a negative power and for overflow, and gives a\n"+
+    "   complex number for a negative base with a fractional exponent */\n"+
+    "static inline double ax_pow(double x, double y, int* err) {\n"+
+    "  double r = pow(x, y);\n"+
+    "  if(x == 0 && y < 0)\n"+
+    "    ax_fail(err, AX_ERR_ZERO_DIVISION);\n"+
+    "  else if((x < 0 && y != floor(y)) || (isinf(r) && isfinite(x) && isfinite(y)))\n"+
+    "    ax_fail(err, AX_ERR_POWER);\n"+
+    "  return r;\n"+
+    "}\n";
+
+  private StringBuilder kernels;
+  private Map<String,String> signatures;
+  private int kernelCount;
+
+  //state of the kernel being generated
+  private StringBuilder body;
+  private StringBuilder prologue;
+  private StringBuilder epilogue;
+  private Map<String,AST.dataType> params;
+  private Map<String,String> locals;
+  private Map<String,String> preparedLists;
+  //variables bound to integers: items of index ranges and lets of integer values
+  private Set<String> integerLocals;
+  private int tempCount;
+
+  public CKernelGen() {
+    kernels = new StringBuilder();
+    signatures = new LinkedHashMap<String,String>();
+  }
+
+  /* Returns true if no kernel was generated */
+  public boolean isEmpty() {
+    return kernelCount == 0;
+  }
+
+  /* C source of all generated kernels */
+  public String source() {
+    return HELPERS+kernels;
+  }
+
+  /* Signatures of all generated kernels by name, as expected by AxProf.buildCKernels */
+  public Map<String,String> signatures() {
+    return signatures;
+  }
+
+  /* Lower a site to a new kernel
+     The kernel is only added if the whole site can be lowered
+  */
+
+  public Kernel lower(AST.ASTNode site) {
+    body = new StringBuilder();
+    prologue = new StringBuilder();
+    epilogue = new StringBuilder();
+    params = new LinkedHashMap<String,AST.dataType>();
+    locals = new HashMap<String,String>();
+    preparedLists = new HashMap<String,String>();
+    integerLocals = new HashSet<String>();
+    tempCount = 0;
+    prologue.append("  int err = 0;\n");
+    if(site instanceof AST.forall) {
+      AST.forall forall = (AST.forall)site;
+      printLine("int ok = 1;",1);
+      int loops = genLoops(forall.ranges,1);
+      String cond = genBool(forall.exp,1+loops);
+      printLine("if(!"+cond+") {",1+loops);
+      printLine("ok = 0;",2+loops);
+      printLine("goto done;",2+loops);
+      printLine("}",1+loops);
+      closeLoops(loops,1);
+      printLine("done:",0);
+      printLine("result[0] = ok;",1);
+      printLine("result[3] = err;",1);
+    } else if(site instanceof AST.probabilityItems) {
+      AST.probabilityItems probItems = (AST.probabilityItems)site;
+      printLine("int64_t count = 0, trials = 0;",1);
+      int loops = genLoops(probItems.ranges,1);
+      String cond = genBool(probItems.exp,1+loops);
+      printLine("++trials;",1+loops);
+      printLine("if"+cond,1+loops);
+      printLine("++count;",2+loops);
+      closeLoops(loops,1);
+      printLine("result[0] = (double)count;",1);
+      printLine("result[1] = (double)trials;",1);
+      printLine("result[3] = err;",1);
+    } else if(site instanceof AST.expectationItems) {
+      AST.expectationItems expItems = (AST.expectationItems)site;
+      printLine("double n = 0, mean = 0, m2 = 0;",1);
+      int loops = genLoops(expItems.ranges,1);
+      String value = genData(expItems.exp,1+loops);
+      //welford update, as AxProf.welfordUpdate
+      printLine("double value = "+value+";",1+loops);
+      printLine("n += 1;",1+loops);
+      printLine("double delta = value - mean;",1+loops);
+      printLine("mean += delta / n;",1+loops);
+      printLine("m2 += delta * (value - mean);",1+loops);
+      closeLoops(loops,1);
+      printLine("result[0] = n;",1);
+      printLine("result[1] = mean;",1);
+      printLine("result[2] = m2;",1);
+      printLine("result[3] = err;",1);
+    } else {
+      throw new UnsupportedOperationException("Only quantifiers and items sites can be lowered");
+    }
+    Kernel kernel = new Kernel();
+    kernel.name = "k"+(kernelCount++);
+    kernel.args = new ArrayList<String>(params.keySet());
+    StringBuilder signature = new StringBuilder();
+    List<String> cParams = new ArrayList<String>();
+    for(Map.Entry<String,AST.dataType> param : params.entrySet()) {
+      String cName = cName(param.getKey());
+      if(param.getValue().baseType == AST.dataType.REAL) {
+        signature.append('d');
+        cParams.add("double v_"+cName);
+      } else {
+        signature.append('l');
+        cParams.add("const double* v_"+cName);
+        cParams.add("int64_t n_"+cName);
+      }
+    }
+    cParams.add("double* result");
+    kernel.signature = signature.toString();
+    signatures.put(kernel.name,kernel.signature);
+    kernels.append("\nvoid ").append(kernel.name).append("(").append(String.join(", ",cParams)).append(") {\n");
+    kernels.append(prologue).append(body).append(epilogue).append("}\n");
+    return kernel;
+  }
+
+  private void printLine(String line, int indents) {
+    for(int i=0; i<indents; ++i)
+      body.append("  ");
+    body.append(line).append('\n');
+  }
+
+  /* C identifier for a spec variable */
+  private static String cName(String name) {
+    return name.replace('.','_');
+  }
+
+  private static boolean isReal(AST.dataType type) {
+    return type != null && type.baseType == AST.dataType.REAL;
+  }
+
+  private static boolean isRealList(AST.dataType type) {
+    return type != null && type.baseType == AST.dataType.LIST && isReal(type.kType);
+  }
+
+  /* Record a free variable as an argument of the kernel */
+
+  private void addParam(AST.varId var) {
+    if(!isReal(var.type) && !isRealList(var.type))
+      throw new UnsupportedOperationException("Variable "+var.name+" is not a real or a list of reals");
+    params.put(var.name,var.type);
+  }
+
+  /* C name of a list of reals; lists are always free variables of the site */
+
+  private String genList(AST.dataExp exp) {
+    if(!(exp instanceof AST.varId) || !isRealList(exp.type) || locals.containsKey(((AST.varId)exp).name))
+      throw new UnsupportedOperationException("Only lists of reals passed to the kernel can be used");
+    addParam((AST.varId)exp);
+    return cName(((AST.varId)exp).name);
+  }
+
+  /* C name of the sorted (or sorted and distinct) copy of a list, made once in the prologue */
+
+  private String genPreparedList(String list, boolean unique) {
+    String key = (unique ? "u_" : "s_")+list;
+    if(!preparedLists.containsKey(key)) {
+      if(unique) {
+        prologue.append("  double* u_"+list+";\n");
+        prologue.append("  int64_t nu_"+list+" = ax_uniques(v_"+list+", n_"+list+", &u_"+list+");\n");
+      } else {
+        prologue.append("  double* s_"+list+" = ax_sorted(v_"+list+", n_"+list+");\n");
+      }
+      epilogue.append("  free("+key+");\n");
+      preparedLists.put(key,key);
+    }
+    return key;
+  }
+
+  /* Print loops over the given ranges and return the number of loops opened */
+
+  private int genLoops(List<AST.range> ranges, int indents) {
+    int numRanges = ranges.size();
+    for(int i=0; i<numRanges; ++i) {
+      AST.range range = ranges.get(i);
+      String list = genList(range.coll);
+      String items = "v_"+list;
+      String size = "n_"+list;
+      if(range.type == AST.range.UNIQUE) {
+        items = genPreparedList(list,true);
+        size = "n"+items;
+      }
+      String index = "i"+(tempCount++);
+      String item = "l"+(tempCount++);
+      printLine("for(int64_t "+index+" = 0; "+index+" < "+size+"; ++"+index+") {",indents+i);
+      String itemName = ((AST.varId)range.item).name;
+      if(range.type == AST.range.INDEX)
+        printLine("double "+item+" = (double)"+index+";",indents+i+1);
+      else
+        printLine("double "+item+" = "+items+"["+index+"];",indents+i+1);
+      locals.put(itemName,item);
+      if(range.type == AST.range.INDEX)
+        integerLocals.add(itemName);
+      else
+        integerLocals.remove(itemName);
+    }
+    return numRanges;
+  }
+
+  private void closeLoops(int loops, int indents) {
+    for(int i=loops-1; i>=0; --i)
+      printLine("}",indents+i);
+  }
+
+  /* Generate code for a boolean expression
+     Prints the statements it needs and returns a parenthesized C condition
+  */
+
+  private String genBool(AST.boolExp exp, int indents) {
+    if(exp instanceof AST.forall) {
+      AST.forall forall = (AST.forall)exp;
+      Map<String,String> saved = new HashMap<String,String>(locals);
+      Set<String> savedIntegers = new HashSet<String>(integerLocals);
+      String flag = "f"+(tempCount++);
+      String label = "e"+(tempCount++);
+      printLine("int "+flag+" = 1;",indents);
+      int loops = genLoops(forall.ranges,indents);
+      String cond = genBool(forall.exp,indents+loops);
+      printLine("if(!"+cond+") {",indents+loops);
+      printLine(flag+" = 0;",indents+loops+1);
+      printLine("goto "+label+";",indents+loops+1);
+      printLine("}",indents+loops);
+      closeLoops(loops,indents);
+      printLine(label+": ;",indents);
+      locals = saved;
+      integerLocals = savedIntegers;
+      return "("+flag+")";
+    } else if(exp instanceof AST.let) {
+      AST.let let = (AST.let)exp;
+      if(!isReal(let.value.type))
+        throw new UnsupportedOperationException("Only reals can be bound in kernels");
+      String value = genData(let.value,indents);
+      String local = "l"+(tempCount++);
+      printLine("double "+local+" = "+value+";",indents);
+      Map<String,String> saved = new HashMap<String,String>(locals);
+      Set<String> savedIntegers = new HashSet<String>(integerLocals);
+      locals.put(let.name,local);
+      if(isInteger(let.value))
+        integerLocals.add(let.name);
+      else
+        integerLocals.remove(let.name);
+      String result = genBool(let.exp,indents);
+      locals = saved;
+      integerLocals = savedIntegers;
+      return result;
+    } else if(exp instanceof AST.isInData) {
+      AST.isInData isInData = (AST.isInData)exp;
+      if(!isReal(isInData.item.type))
+        throw new UnsupportedOperationException("Only reals can be searched in kernels");
+      String item = genData(isInData.item,indents);
+      String list = genList(isInData.data);
+      return "(ax_contains("+genPreparedList(list,false)+", n_"+list+", "+item+"))";
+    } else if(exp instanceof AST.comparison) {
+      AST.comparison comparison = (AST.comparison)exp;
+      if(!isReal(comparison.e1.type) || !isReal(comparison.e2.type))
+        throw new UnsupportedOperationException("Only reals can be compared in kernels");
+      return "("+genData(comparison.e1,indents)+" "+comparison.op+" "+genData(comparison.e2,indents)+")";
+    } else if(exp instanceof AST.boolAndOr) {
+      AST.boolAndOr boolAndOr = (AST.boolAndOr)exp;
+      //the right operand is only evaluated when python would, so that it reports no errors otherwise
+      String flag = "b"+(tempCount++);
+      printLine("int "+flag+" = "+genBool(boolAndOr.e1,indents)+";",indents);
+      printLine(boolAndOr.op.equals("and") ? "if("+flag+") {" : "if(!"+flag+") {",indents);
+      printLine(flag+" = "+genBool(boolAndOr.e2,indents+1)+";",indents+1);
+      printLine("}",indents);
+      return "("+flag+")";
+    } else if(exp instanceof AST.boolNot) {
+      return "(!"+genBool(((AST.boolNot)exp).exp,indents)+")";
+    }
+    throw new UnsupportedOperationException("Boolean expression cannot be lowered to C");
+  }
+
+  /* Generate code for a real data expression and return a C expression */
+
+  private String genData(AST.dataExp exp, int indents) {
+    if(exp instanceof AST.realConst) {
+      String val = ((AST.realConst)exp).val;
+      //keep arithmetic in double precision, as in python
+      if(!val.contains(".") && !val.contains("e") && !val.contains("E"))
+        val += ".0";
+      return "("+val+")";
+    } else if(exp instanceof AST.varId) {
+      AST.varId var = (AST.varId)exp;
+      if(locals.containsKey(var.name))
+        return locals.get(var.name);
+      if(!isReal(var.type))
+        throw new UnsupportedOperationException("Variable "+var.name+" is not a real");
+      addParam(var);
+      return "v_"+cName(var.name);
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      if(!isReal(lookup.key.type))
+        throw new UnsupportedOperationException("Only lists can be indexed in kernels");
+      if(!isInteger(lookup.key))
+        throw new UnsupportedOperationException("Only keys that are integers by construction can be used in kernels");
+      String list = genList(lookup.coll);
+      return "ax_at(v_"+list+", n_"+list+", "+genData(lookup.key,indents)+", &err)";
+    } else if(exp instanceof AST.dataSize) {
+      return "((double)n_"+genList(((AST.dataSize)exp).coll)+")";
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      if(!isReal(dataOp.e1.type) || !isReal(dataOp.e2.type))
+        throw new UnsupportedOperationException("Only reals can be combined in kernels");
+      String num1 = genData(dataOp.e1,indents);
+      String num2 = genData(dataOp.e2,indents);
+      if(dataOp.op.equals("**"))
+        return "ax_pow("+num1+", "+num2+", &err)";
+      if(dataOp.op.equals("/"))
+        return "ax_div("+num1+", "+num2+", &err)";
+      return "("+num1+" "+dataOp.op+" "+num2+")";
+    } else if(exp instanceof AST.funcCall) {
+      AST.funcCall funcCall = (AST.funcCall)exp;
+      if(funcCall.funcName.equals("abs") && funcCall.params.size() == 1 &&
+         funcCall.params.get(0) instanceof AST.dataExp && isReal(((AST.dataExp)funcCall.params.get(0)).type))
+        return "fabs("+genData((AST.dataExp)funcCall.params.get(0),indents)+")";
+      throw new UnsupportedOperationException("Function "+funcCall.funcName+" cannot be lowered to C");
+    }
+    throw new UnsupportedOperationException("Data expression cannot be lowered to C");
+  }
+
+  /* Returns true if the expression is an integer in python by construction */
+
+  private boolean isInteger(AST.dataExp exp) {
+    if(exp instanceof AST.realConst) {
+      String val = ((AST.realConst)exp).val;
+      return !val.contains(".") && !val.contains("e") && !val.contains("E");
+    } else if(exp instanceof AST.varId) {
+      return integerLocals.contains(((AST.varId)exp).name);
+    } else if(exp instanceof AST.dataSize) {
+      return true;
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      return (dataOp.op.equals("+") || dataOp.op.equals("-") || dataOp.op.equals("*")) &&
+        isInteger(dataOp.e1) && isInteger(dataOp.e2);
+    }
+    return false;
+  }
+}
@@ -0,0 +1,145 @@
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/* Checker interface
+   Implemented by the interpreter and by checkers compiled by JavaCodeGen
+   Also provides the runtime helpers called by compiled checkers
+*/
+
+public interface Checker {
+
+  Interpreter.Verdict check(Interpreter.Record record);
+
+  /* Configuration parameter lookup */
+
+  static double config(Map<String,Double> config, String name) {
+    Double val = config.get(name);
+    if(val == null)
+      throw new UnsupportedOperationException("Unknown configuration parameter "+name);
+    return val;
+  }
+
+  /* Conversions from runtime values to the types used by compiled code */
+
+  static double asReal(Value v) {
+    return v.asReal();
+  }
+
+  static double[] asReals(Value v) {
+    Value.List list = (Value.List)v;
+    if(list.reals != null)
+      return list.reals;
+    double[] reals = new double[list.items.length];
+    for(int i=0; i<reals.length; ++i)
+      reals[i] = list.items[i].asReal();
+    return reals;
+  }
+
+  static Value[] asItems(Value v) {
+    Value.List list = (Value.List)v;
+    if(list.items != null)
+      return list.items;
+    Value[] items = new Value[list.reals.length];
+    for(int i=0; i<items.length; ++i)
+      items[i] = new Value.Real(list.reals[i]);
+    return items;
+  }
+
+  static Map<Value,Value> asMap(Value v) {
+    return ((Value.Map)v).map;
+  }
+
+  static double[][] asMatrix(Value v) {
+    return ((Value.Matrix)v).rows;
+  }
+
+  /* Conversions from the types used by compiled code to runtime values */
+
+  static Value box(double v) {
+    return new Value.Real(v);
+  }
+
+  static Value box(double[] v) {
+    return new Value.List(v);
+  }
+
+  static Value box(Value[] v) {
+    return new Value.List(v);
+  }
+
+  static Value box(Map<Value,Value> v) {
+    return new Value.Map(v);
+  }
+
+  static Value box(double[][] v) {
+    return new Value.Matrix(v);
+  }
+
+  /* Map lookup with a default of 0, like the generated Python code */
+
+  static Value get(Map<Value,Value> map, Value key) {
+    Value v = map.get(key);
+    return v != null ? v : new Value.Real(0);
+  }
+
+  static boolean truthy(Value v) {
+    return v != null && v.truthy();
+  }
+
+  static boolean contains(double[] list, double item) {
+    for(int i=0; i<list.length; ++i)
+      if(list[i] == item)
+        return true;
+    return false;
+  }
+
+  static boolean contains(Value[] list, Value item) {
+    for(int i=0; i<list.length; ++i)
+      if(list[i].equals(item))
+        return true;
+    return false;
+  }
+
+  /* Distinct items of a list */
+
+  static double[] uniques(double[] list) {
+    double[] sorted = Arrays.copyOf(list,list.length);
+    Arrays.sort(sorted);
+    int count = 0;
+    for(int i=0; i<sorted.length; ++i)
+      if(i == 0 || sorted[i] != sorted[i-1])
+        sorted[count++] = sorted[i];
+    return Arrays.copyOf(sorted,count);
+  }
+
+  static Value[] uniques(Value[] list) {
+    return new LinkedHashSet<Value>(Arrays.asList(list)).toArray(new Value[0]);
+  }
+
+  static double[] grow(double[] samples) {
+    return Arrays.copyOf(samples,Math.max(16,2*samples.length));
+  }
+
+  static double[] minus(double[] samples, double v) {
+    double[] result = new double[samples.length];
+    for(int i=0; i<samples.length; ++i)
+      result[i] = samples[i]-v;
+    return result;
+  }
+
+  static double[][] matrixOp(String op, double[][] a, double[][] b) {
+    return ((Value.Matrix)Interpreter.matrixOp(op,a,b)).rows;
+  }
+
+  /* Verdict of a t-test, like the generated Python code */
+
+  static boolean expectationHolds(double[] t, String op) {
+    if(op.equals("=="))
+      return t[1] >= 0.05;
+    else if(op.charAt(0) == '>')
+      return t[1]/2 >= 0.05 || t[0] >= 0;
+    else
+      return t[1]/2 >= 0.05 || t[0] <= 0;
+  }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/* Persistent cache of generated checker code
+   Entries are stored as <key>.py files in the cache directory, where the key is
+   a SHA-256 hash of the generator version, the code generation options, and the spec text
+   The generator version is a hash of the compiled checker generator classes, so
+   rebuilding the generator invalidates every entry
+   The modification time of an entry is its last use; least recently used
+   entries are evicted once the total size exceeds the limit
+   AxProf.py computes the same keys to probe the cache without starting a JVM
+*/
+
+public class CheckerCache {
+
+  public static final String DIR_ENV = "AXPROF_CACHE_DIR";
+  public static final String MAX_BYTES_ENV = "AXPROF_CACHE_MAX_BYTES";
+  public static final long DEFAULT_MAX_BYTES = 64L*1024*1024;
+
+  private Path dir;
+  private long maxBytes;
+  private String version;
+
+  public CheckerCache(Path d, long max, String v) {
+    dir = d;
+    maxBytes = max;
+    version = v;
+  }
+
+  /* Create a cache using the directory and size limit from the environment
+     Defaults to ~/.cache/axprof/checkers and DEFAULT_MAX_BYTES
+  */
+
+  public static CheckerCache fromEnvironment() throws IOException {
+    String dirName = System.getenv(DIR_ENV);
+    Path d;
+    if(dirName != null && !dirName.isEmpty())
+      d = Paths.get(dirName);
+    else
+      d = Paths.get(System.getProperty("user.home"),".cache","axprof","checkers");
+    long max = DEFAULT_MAX_BYTES;
+    String maxStr = System.getenv(MAX_BYTES_ENV);
+    if(maxStr != null && !maxStr.isEmpty())
+      max = Long.parseLong(maxStr);
+    return new CheckerCache(d,max,generatorVersion());
+  }
+
+  /* Hash of the class files the generator was loaded from
+     Class files are hashed in name order, each preceded by its name
+  */
+
+  public static String generatorVersion() throws IOException {
+    Path location;
+    try{
+      location = Paths.get(MainClass.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    }catch(URISyntaxException e){
+      throw new IOException(e);
+    }
+    MessageDigest digest = sha256();
+    if(Files.isDirectory(location)) {
+      List<Path> classFiles;
+      try(Stream<Path> files = Files.list(location)) {
+        classFiles = files.filter(p -> p.getFileName().toString().endsWith(".class"))
+                          .sorted(Comparator.comparing(p -> p.getFileName().toString()))
+                          .collect(Collectors.toList());
+      }
+      for(Path classFile : classFiles) {
+        digest.update(classFile.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+        digest.update(Files.readAllBytes(classFile));
+      }
+    } else {
+      //packaged generator, e.g. a jar
+      digest.update(Files.readAllBytes(location));
+    }
+    return toHex(digest.digest());
+  }
+
+  /* Cache key for a spec generated with the given options (see CodeGen.Options.key) */
+
+  public String key(String spec, String options) {
+    MessageDigest digest = sha256();
+    digest.update(version.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte)'\n');
+    digest.update(options.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte)'\n');
+    digest.update(spec.getBytes(StandardCharsets.UTF_8));
+    return toHex(digest.digest());
+  }
+
+  /* Return the cached code for a spec, or null if there is no entry
+     A hit marks the entry as recently used
+  */
+
+  public synchronized String lookup(String spec, String options) throws IOException {
+    Path entry = dir.resolve(key(spec,options)+".py");
+    if(!Files.isRegularFile(entry))
+      return null;
+    String code = new String(Files.readAllBytes(entry),StandardCharsets.UTF_8);
+    Files.setLastModifiedTime(entry,FileTime.fromMillis(System.currentTimeMillis()));
+    return code;
+  }
+
+  /* Store the code generated for a spec and evict old entries if necessary
+     The entry is written to a temporary file first so readers never see partial code
+  */
+
+  public synchronized void store(String spec, String options, String code) throws IOException {
+    Files.createDirectories(dir);
+    String key = key(spec,options);
+    Path temp = Files.createTempFile(dir,key,".tmp");
+    Files.write(temp,code.getBytes(StandardCharsets.UTF_8));
+    Files.move(temp,dir.resolve(key+".py"),StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+    evict();
+  }
+
+  /* Remove least recently used entries until the cache fits in maxBytes */
+
+  private void evict() throws IOException {
+    List<Path> entries;
+    try(Stream<Path> files = Files.list(dir)) {
+      entries = files.filter(p -> p.getFileName().toString().endsWith(".py"))
+                     .collect(Collectors.toList());
+    }
+    long total = 0;
+    for(Path entry : entries)
+      total += Files.size(entry);
+    if(total <= maxBytes)
+      return;
+    entries.sort(Comparator.comparing(p -> {
+      try{
+        return Files.getLastModifiedTime(p);
+      }catch(IOException e){
+        return FileTime.fromMillis(0);
+      }
+    }));
+    for(Path entry : entries) {
+      if(total <= maxBytes)
+        break;
+      long size = Files.size(entry);
+      if(Files.deleteIfExists(entry))
+        total -= size;
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try{
+      return MessageDigest.getInstance("SHA-256");
+    }catch(NoSuchAlgorithmException e){
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for(byte b : bytes)
+      hex.append(String.format("%02x",b));
+    return hex.toString();
+  }
+}
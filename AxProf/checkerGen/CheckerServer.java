@@ -0,0 +1,152 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/* Checker generator server
+   Keeps one JVM resident so that many specs can be compiled without paying for
+   JVM startup, ANTLR class loading, and an empty parser DFA cache every time
+   Specs are read from stdin/stdout or from a local Unix socket (JDK 16 or newer)
+   Framing (all integers are big endian):
+   1) request: int length, followed by length bytes of UTF-8 code generation
+      options (space separated flags, see CodeGen.Options), then int length,
+      followed by length bytes of UTF-8 spec text
+   2) response: int status (0 - success, 1 - error), long generation time in
+      nanoseconds, int length, followed by length bytes of UTF-8 text
+      The text is the generated code on success and the error messages otherwise
+   Lengths above MAX_FRAME_LENGTH or below 0 are answered with an error, after
+   which the connection is closed since the rest of its stream cannot be framed
+   The server stops when the input stream is closed
+   Specs found in the cache (if one is given) are answered without running the pipeline
+*/
+
+public class CheckerServer {
+
+  public static final int STATUS_OK = 0;
+  public static final int STATUS_ERROR = 1;
+  public static final int MAX_FRAME_LENGTH = 16<<20;
+
+  private CheckerCache cache;
+  private long requests;
+  private long totalNanos;
+
+  public CheckerServer(CheckerCache c) {
+    cache = c;
+  }
+
+  /* Serve requests from the given streams until the input is closed */
+
+  public void serve(InputStream in, OutputStream out) throws IOException {
+    DataInputStream input = new DataInputStream(new BufferedInputStream(in));
+    DataOutputStream output = new DataOutputStream(new BufferedOutputStream(out));
+    while(true) {
+      int length;
+      try{
+        length = input.readInt();
+      }catch(EOFException e){
+        break;
+      }
+      byte[] options = readFrame(length,input,output);
+      if(options == null)
+        break;
+      byte[] spec = readFrame(input.readInt(),input,output);
+      if(spec == null)
+        break;
+      handle(new String(spec,StandardCharsets.UTF_8),new String(options,StandardCharsets.UTF_8),output);
+      output.flush();
+    }
+    printStats();
+  }
+
+  /* Read a frame of the given length, or answer with an error and return null
+     if the length is invalid
+  */
+
+  private static byte[] readFrame(int length, DataInputStream input, DataOutputStream output) throws IOException {
+    if(length < 0 || length > MAX_FRAME_LENGTH) {
+      byte[] payload = ("Invalid frame length "+length).getBytes(StandardCharsets.UTF_8);
+      output.writeInt(STATUS_ERROR);
+      output.writeLong(0);
+      output.writeInt(payload.length);
+      output.write(payload);
+      output.flush();
+      return null;
+    }
+    byte[] frame = new byte[length];
+    input.readFully(frame);
+    return frame;
+  }
+
+  /* Serve requests from connections to a Unix socket at the given path
+     The listener needs JDK 16 or newer and is loaded only here (see CheckerSocketServer)
+  */
+
+  public void serveUnixSocket(Path path) throws IOException {
+    Method serve;
+    try{
+      serve = Class.forName("CheckerSocketServer").getMethod("serve",CheckerServer.class,Path.class);
+    }catch(ClassNotFoundException | NoSuchMethodException | LinkageError e){
+      throw new UnsupportedOperationException("Serving on a Unix socket needs the checker generator to be built with JDK 16 or newer");
+    }
+    try{
+      serve.invoke(null,this,path);
+    }catch(IllegalAccessException e){
+      throw new IllegalStateException(e);
+    }catch(InvocationTargetException e){
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException)
+        throw (IOException)cause;
+      if(cause instanceof RuntimeException)
+        throw (RuntimeException)cause;
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /* Generate code for one spec and write the framed response */
+
+  private void handle(String spec, String options, DataOutputStream output) throws IOException {
+    StringBuilder code = new StringBuilder();
+    String errors = null;
+    long start = System.nanoTime();
+    try{
+      MainClass.compile(spec,code,CodeGen.Options.parse(options),cache);
+    }catch(IllegalArgumentException e){
+      //errors in the spec or unknown options
+      errors = e.getMessage();
+    }catch(RuntimeException e){
+      //keep serving other specs
+      StringWriter trace = new StringWriter();
+      e.printStackTrace(new PrintWriter(trace));
+      errors = trace.toString();
+    }
+    long elapsed = System.nanoTime()-start;
+    requests++;
+    totalNanos += elapsed;
+    boolean failed = errors != null;
+    byte[] payload = (failed ? errors : code.toString()).getBytes(StandardCharsets.UTF_8);
+    output.writeInt(failed ? STATUS_ERROR : STATUS_OK);
+    output.writeLong(elapsed);
+    output.writeInt(payload.length);
+    output.write(payload);
+  }
+
+  /* Report the number of requests served, the mean latency, and how the specs were parsed */
+
+  private void printStats() {
+    if(requests == 0)
+      return;
+    System.err.printf("Checker generator server: %d specs, mean generation time %.3f ms%n",
+                      requests,totalNanos/1e6/requests);
+    System.err.println(MainClass.parseStats());
+  }
+}
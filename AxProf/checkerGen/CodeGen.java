@@ -1,7 +1,15 @@
+import java.io.PrintStream;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.TreeMap;
+import java.util.Collections;
+import java.util.regex.Pattern;
 
 /* Code generation class
    Contains multiple functions for various aspects of code generation
@@ -10,11 +18,133 @@ import java.util.HashSet;
 
 public class CodeGen {
 
+  /* Code generation options
+     Each option is enabled by a command line flag of MainClass
+     The flags of the enabled options identify the generated code in the checker cache
+  */
+
+  public static class Options {
+    //lower quantifiers and probabilities to whole array NumPy operations
+    public boolean vectorize;
+    //aggregate sufficient statistics instead of every output when possible
+    public boolean streaming;
+    //stop running as soon as a sequential test reaches a verdict; implies streaming
+    public boolean sequential;
+    //run the Optimizer before code generation
+    public boolean optimize;
+    //run quantifiers and items sites over reals as compiled C kernels (see CKernelGen)
+    public boolean cKernels;
+    //read outputs of real lists and maps from memory mapped binary files
+    public boolean binaryOutput;
+    //lower matrix expressions to fused NumPy/BLAS calls instead of the mm_* helpers
+    public boolean blas;
+    //compute subexpressions of the checker that only depend on the configuration
+    //(or input) once per configuration (or input); see genStagedPrepares
+    public boolean stage;
+    //evaluate Probability and Expectation over items on this many uniformly
+    //sampled items instead of all of them, or 0 for all items; see genItemSample
+    public int sampleItems;
+
+    /* Enable the option for the given flag
+       Returns false if the flag is not a code generation option
+    */
+    public boolean parseFlag(String flag) {
+      switch(flag) {
+        case "--vectorize":
+          vectorize = true;
+          return true;
+        case "--streaming":
+          streaming = true;
+          return true;
+        case "--sequential":
+          sequential = true;
+          return true;
+        case "--optimize":
+          optimize = true;
+          return true;
+        case "--c-kernels":
+          cKernels = true;
+          return true;
+        case "--binary-output":
+          binaryOutput = true;
+          return true;
+        case "--blas":
+          blas = true;
+          return true;
+        case "--stage":
+          stage = true;
+          return true;
+        default:
+          if(!flag.startsWith("--sample-items="))
+            return false;
+          try{
+            sampleItems = Integer.parseInt(flag.substring("--sample-items=".length()));
+          }catch(NumberFormatException e){
+            return false;
+          }
+          return sampleItems > 0;
+      }
+    }
+
+    /* Parse a space separated list of flags */
+    public static Options parse(String flags) {
+      Options options = new Options();
+      for(String flag : flags.trim().split("\\s+"))
+        if(!flag.isEmpty() && !options.parseFlag(flag))
+          throw new IllegalArgumentException("Unknown code generation option "+flag);
+      return options;
+    }
+
+    /* Flags of the enabled options, in sorted order */
+    public List<String> flags() {
+      List<String> flags = new ArrayList<String>();
+      if(vectorize)
+        flags.add("--vectorize");
+      if(streaming)
+        flags.add("--streaming");
+      if(sequential)
+        flags.add("--sequential");
+      if(optimize)
+        flags.add("--optimize");
+      if(cKernels)
+        flags.add("--c-kernels");
+      if(binaryOutput)
+        flags.add("--binary-output");
+      if(blas)
+        flags.add("--blas");
+      if(stage)
+        flags.add("--stage");
+      if(sampleItems > 0)
+        flags.add("--sample-items="+sampleItems);
+      Collections.sort(flags);
+      return flags;
+    }
+
+    public String key() {
+      return String.join(" ",flags());
+    }
+  }
+
   private AST.spec spec;
   private AST.SpecType specType;
   private int tempCount;
   private Set<String> declaredVars;
   private String outputSuffix;
+  private Emitter out;
+  private PrintStream err;
+  private Options options;
+  private Map<String,String> vectorVars;
+  private List<AST.dataExp> streamingSites;
+  private Map<AST.dataExp,Integer> streamingSiteIndex;
+  private Map<AST.isInData,String> indexNames;
+  private CKernelGen cKernels;
+  //code of the staged subexpressions while the checker function is generated, or null
+  private Map<AST.dataExp,String> stagedNames;
+  private List<AST.dataExp> configStaged;
+  private List<AST.dataExp> inputStaged;
+  private Set<AST.dataExp> lazyStaged;
+  //true once an items site is evaluated on sampled items
+  private boolean sampledItems;
 
   /* Print the specified number of indents
      Python requires correct indentation
@@ -22,53 +152,57 @@ public class CodeGen {
 
   private void printIndents(int indents) {
     for(int i=0; i<indents; ++i)
-      System.out.print("  ");
+      out.print("  ");
   }
 
   /* Returns a string to iterate over a range */
 
   private String getRangeStr(int type, String collName, String itemName) {
-    String output = "for "+itemName+" in ";
+    StringBuilder output = new StringBuilder("for ").append(itemName).append(" in ");
     switch(type) {
       case AST.range.DIRECT:
-        output += collName;
+        output.append(collName);
         break;
       case AST.range.UNIQUE:
-        output += "set("+collName+")";
+        output.append("set(").append(collName).append(")");
         break;
       case AST.range.INDEX:
-        output += "range(len("+collName+"))";
+        output.append("range(len(").append(collName).append("))");
         break;
       default:
         assert(false);
     }
-    output += " :";
-    return output;
+    return output.append(" :").toString();
   }
 
   /* Returns a string to perform a binomial test of the appropriate type */
 
   private String getCheckFreqStr(String count, String trials, String prob, String op) {
-    String resultStr = "AxProf.binomialTest("+count+","+trials+","+prob+",alternative='";
+    String alternative = null;
     if(op.equals("==")) {
-      resultStr += "two-sided";
+      alternative = "two-sided";
     } else if(op.charAt(0) == '>') {
-      resultStr += "less";
+      alternative = "less";
     } else if(op.charAt(0) == '<') {
-      resultStr += "greater";
+      alternative = "greater";
     } else {
       assert(false);
     }
-    resultStr += "')";
-    return resultStr;
+    return "AxProf.binomialTest("+count+","+trials+","+prob+",alternative='"+alternative+"')";
   }
 
   /* Prints a string to perform a 1 sample t-test of the appropriate type */
 
   private String genCheckExpCode(String samples, String expVal, String op, boolean returnPVal, int indents) {
+    return genCheckExpResult("AxProf.ttest_1samp("+samples+","+expVal+")",op,returnPVal,indents);
+  }
+
+  /* Prints a string to perform the given t-test and returns its result of the appropriate type */
+
+  private String genCheckExpResult(String test, String op, boolean returnPVal, int indents) {
     String outTemp = "t"+(tempCount++);
     printIndents(indents);
-    System.out.println(outTemp+" = AxProf.ttest_1samp("+samples+","+expVal+")");
+    out.println(outTemp+" = "+test);
     String resultStr = null;
     if(returnPVal) {
       if(op.equals("==")) {
@@ -90,6 +224,1119 @@ public class CodeGen {
     return resultStr;
   }
 
+  /* Vectorized code generation (Options.vectorize)
+     Quantifiers over independent ranges of real lists are lowered to NumPy array
+     operations: each range becomes an array along its own axis, so that the body
+     broadcasts over the cross product of the ranges
+     Subexpressions that do not depend on the arrays are generated as usual
+     vectorVars maps the variables bound to arrays to the expressions holding them
+  */
+
+  private boolean isReal(AST.dataExp exp) {
+    return exp.type != null && exp.type.baseType == AST.dataType.REAL;
+  }
+
+  private boolean isRealList(AST.dataExp exp) {
+    return exp.type != null && exp.type.baseType == AST.dataType.LIST &&
+           exp.type.kType.baseType == AST.dataType.REAL;
+  }
+
+  /* Returns true if the ranges and the body over them can be vectorized
+     The collection of each range must not depend on earlier ranges
+  */
+
+  private boolean canVectorizeRanges(List<AST.range> ranges, AST.ASTNode body) {
+    if(!options.vectorize)
+      return false;
+    Set<String> arrays = new HashSet<String>(vectorVars.keySet());
+    Set<String> indexVars = new HashSet<String>();
+    for(AST.range range : ranges) {
+      if(!AST.independentOf(range.coll,arrays))
+        return false;
+      if(range.coll.type == null || range.coll.type.baseType != AST.dataType.LIST)
+        return false;
+      String itemName = ((AST.varId)range.item).name;
+      if(range.type == AST.range.INDEX)
+        indexVars.add(itemName);
+      else if(!isRealList(range.coll))
+        return false;
+      arrays.add(itemName);
+    }
+    return canVectorize(body,arrays,indexVars);
+  }
+
+  /* Returns true if the expression can be evaluated elementwise over the arrays
+     Lists can only be indexed by the items of index ranges
+  */
+
+  private boolean canVectorize(AST.ASTNode exp, Set<String> arrays, Set<String> indexVars) {
+    if(AST.independentOf(exp,arrays))
+      return true;
+    if(exp instanceof AST.varId) {
+      return isReal((AST.varId)exp);
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      return isReal(dataOp.e1) && isReal(dataOp.e2) &&
+             canVectorize(dataOp.e1,arrays,indexVars) && canVectorize(dataOp.e2,arrays,indexVars);
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      return isRealList(lookup.coll) && AST.independentOf(lookup.coll,arrays) &&
+             (lookup.key instanceof AST.varId) && indexVars.contains(((AST.varId)lookup.key).name);
+    } else if(exp instanceof AST.comparison) {
+      AST.comparison comparison = (AST.comparison)exp;
+      return isReal(comparison.e1) && isReal(comparison.e2) &&
+             canVectorize(comparison.e1,arrays,indexVars) && canVectorize(comparison.e2,arrays,indexVars);
+    } else if(exp instanceof AST.boolAndOr) {
+      AST.boolAndOr boolAndOr = (AST.boolAndOr)exp;
+      return canVectorize(boolAndOr.e1,arrays,indexVars) && canVectorize(boolAndOr.e2,arrays,indexVars);
+    } else if(exp instanceof AST.boolNot) {
+      return canVectorize(((AST.boolNot)exp).exp,arrays,indexVars);
+    } else if(exp instanceof AST.funcCall) {
+      AST.funcCall funcCall = (AST.funcCall)exp;
+      return funcCall.funcName.equals("abs") && funcCall.params.size() == 1 &&
+             isReal((AST.dataExp)funcCall.params.get(0)) &&
+             canVectorize(funcCall.params.get(0),arrays,indexVars);
+    }
+    return false;
+  }
+
+  /* Generate elementwise code for an expression accepted by canVectorize
+     Returns an expression holding an array, or a scalar if the expression
+     does not depend on the arrays
+  */
+
+  private String genVectorCode(AST.ASTNode exp, int indents) {
+    if(AST.independentOf(exp,vectorVars.keySet()))
+      return genExpCode(exp,indents);
+    if(exp instanceof AST.varId) {
+      return vectorVars.get(((AST.varId)exp).name);
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      return "("+genVectorCode(dataOp.e1,indents)+dataOp.op+genVectorCode(dataOp.e2,indents)+")";
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      String arrayTemp = "t"+(tempCount++);
+      printIndents(indents);
+      out.println(arrayTemp+" = np.asarray("+genExpCode(lookup.coll,indents)+",dtype=float)");
+      return arrayTemp+"["+vectorVars.get(((AST.varId)lookup.key).name)+"]";
+    } else if(exp instanceof AST.comparison) {
+      AST.comparison comparison = (AST.comparison)exp;
+      return "("+genVectorCode(comparison.e1,indents)+comparison.op+genVectorCode(comparison.e2,indents)+")";
+    } else if(exp instanceof AST.boolAndOr) {
+      AST.boolAndOr boolAndOr = (AST.boolAndOr)exp;
+      return "np.logical_"+boolAndOr.op+"("+genVectorCode(boolAndOr.e1,indents)+","+genVectorCode(boolAndOr.e2,indents)+")";
+    } else if(exp instanceof AST.boolNot) {
+      return "np.logical_not("+genVectorCode(((AST.boolNot)exp).exp,indents)+")";
+    } else if(exp instanceof AST.funcCall) {
+      return "np.abs("+genVectorCode(((AST.funcCall)exp).params.get(0),indents)+")";
+    }
+    assert(false);
+    return null;
+  }
+
+  /* Print the arrays for a list of ranges accepted by canVectorizeRanges
+     Binds the range items in vectorVars; the previous bindings are added to saved
+     Returns the shape of the cross product of the ranges
+  */
+
+  private String genVectorRanges(List<AST.range> ranges, Map<String,String> saved, int indents) {
+    int numRanges = ranges.size();
+    List<String> sizes = new ArrayList<String>();
+    for(int i=0; i<numRanges; ++i) {
+      AST.range range = ranges.get(i);
+      String itemName = ((AST.varId)range.item).name;
+      String collName = genExpCode(range.coll,indents);
+      String arrayStr = null;
+      switch(range.type) {
+        case AST.range.DIRECT:
+          arrayStr = "np.asarray("+collName+",dtype=float)";
+          break;
+        case AST.range.UNIQUE:
+          arrayStr = "np.unique(np.asarray("+collName+",dtype=float))";
+          break;
+        case AST.range.INDEX:
+          arrayStr = "np.arange(len("+collName+"))";
+          break;
+        default:
+          assert(false);
+      }
+      if(numRanges > 1) {
+        //put the items of the i-th range along the i-th axis
+        StringBuilder shape = new StringBuilder("(");
+        for(int j=0; j<numRanges; ++j)
+          shape.append(j==i ? "-1" : "1").append(",");
+        arrayStr += ".reshape("+shape+"))";
+      }
+      printIndents(indents);
+      out.println(itemName+" = "+arrayStr);
+      declaredVars.add(itemName);
+      if(!saved.containsKey(itemName))
+        saved.put(itemName,vectorVars.get(itemName));
+      vectorVars.put(itemName,itemName);
+      sizes.add(itemName+".size");
+    }
+    return "("+String.join(",",sizes)+",)";
+  }
+
+  private void restoreVectorVars(Map<String,String> saved) {
+    for(Map.Entry<String,String> entry : saved.entrySet()) {
+      if(entry.getValue() == null)
+        vectorVars.remove(entry.getKey());
+      else
+        vectorVars.put(entry.getKey(),entry.getValue());
+    }
+  }
+
+  /* Print a vectorized count of the outputs for which a condition holds
+     outputs is the expression of the list of tested outputs, trials their number
+     Returns null if the condition cannot be vectorized
+  */
+
+  private String genVectorOutputCount(AST.boolExp exp, String outputs, String trials, int indents) {
+    AST.dataType outputType = null;
+    for(AST.typeDecl typeDecl : spec.typeDecls)
+      if(typeDecl.name.equals("Output"))
+        outputType = typeDecl.type;
+    if(!options.vectorize || outputType == null || outputType.baseType != AST.dataType.REAL ||
+       !canVectorize(exp,Collections.singleton("Output"),Collections.<String>emptySet()))
+      return null;
+    String arrayTemp = "t"+(tempCount++);
+    String counterTemp = "t"+(tempCount++);
+    printIndents(indents);
+    out.println(arrayTemp+" = np.asarray("+outputs+",dtype=float)");
+    Map<String,String> saved = new HashMap<String,String>();
+    saved.put("Output",vectorVars.get("Output"));
+    vectorVars.put("Output",arrayTemp);
+    String mask = genVectorCode(exp,indents);
+    restoreVectorVars(saved);
+    printIndents(indents);
+    out.println(counterTemp+" = np.count_nonzero(np.broadcast_to("+mask+",("+trials+",)))");
+    return counterTemp;
+  }
+
+  /* Streaming aggregation (Options.streaming)
+     Probability and expectation over runs or inputs only need sufficient
+     statistics of the outputs: success and trial counts for binomial tests, and
+     the count, mean, and sum of squared deviations (Welford) for t-tests
+     If every use of Output is inside such a site, and the sites only depend on
+     Output, Input, and configuration parameters, the aggregators update these
+     statistics after each run instead of storing every output
+     A Probability over inputs has one trial per input, on the output of its
+     first run (see INPUT_TRIALS), so its counts are only updated by the first
+     run of each input
+  */
+
+  private static final Set<String> OUTPUT = Collections.singleton("Output");
+
+  /* Outputs tested by a Probability over inputs in the per configuration checker:
+     the output of the first run of each input, so that its trials are independent
+  */
+  private static final String INPUT_TRIALS = "Output[:Inputs*Runs:Runs]";
+
+  private static boolean isStreamingSite(AST.dataExp exp) {
+    return (exp instanceof AST.probabilityInputs) || (exp instanceof AST.probabilityRuns) ||
+           (exp instanceof AST.expectationInputs) || (exp instanceof AST.expectationRuns);
+  }
+
+  private static boolean isProbabilitySite(AST.dataExp site) {
+    return (site instanceof AST.probabilityInputs) || (site instanceof AST.probabilityRuns);
+  }
+
+  private static AST.ASTNode siteBody(AST.dataExp site) {
+    if(site instanceof AST.probabilityInputs)
+      return ((AST.probabilityInputs)site).exp;
+    else if(site instanceof AST.probabilityRuns)
+      return ((AST.probabilityRuns)site).exp;
+    else if(site instanceof AST.expectationInputs)
+      return ((AST.expectationInputs)site).exp;
+    else
+      return ((AST.expectationRuns)site).exp;
+  }
+
+  /* Collect the sites of a boolean expression in sites
+     bound contains the variables that are not available after each run
+     Returns false if the expression cannot be checked from streamed statistics
+  */
+
+  private boolean findStreamingSites(AST.boolExp exp, Set<String> bound, List<AST.dataExp> sites) {
+    if(exp instanceof AST.forall) {
+      AST.forall forall = (AST.forall)exp;
+      Set<String> inner = new HashSet<String>(bound);
+      for(AST.range range : forall.ranges) {
+        if(!AST.independentOf(range.coll,OUTPUT))
+          return false;
+        inner.add(((AST.varId)range.item).name);
+      }
+      return findStreamingSites(forall.exp,inner,sites);
+    } else if(exp instanceof AST.let) {
+      AST.let let = (AST.let)exp;
+      if(!AST.independentOf(let.value,OUTPUT))
+        return false;
+      Set<String> inner = new HashSet<String>(bound);
+      inner.add(let.name);
+      return findStreamingSites(let.exp,inner,sites);
+    } else if(exp instanceof AST.boolAndOr) {
+      AST.boolAndOr boolAndOr = (AST.boolAndOr)exp;
+      return findStreamingSites(boolAndOr.e1,bound,sites) && findStreamingSites(boolAndOr.e2,bound,sites);
+    } else if(exp instanceof AST.boolNot) {
+      return findStreamingSites(((AST.boolNot)exp).exp,bound,sites);
+    } else if(exp instanceof AST.comparison && isStreamingSite(((AST.comparison)exp).e1)) {
+      AST.comparison comparison = (AST.comparison)exp;
+      AST.ASTNode body = siteBody(comparison.e1);
+      if(!AST.independentOf(body,bound) || body.specType() != AST.SpecType.NONE ||
+         !AST.independentOf(comparison.e2,OUTPUT))
+        return false;
+      if(!isProbabilitySite(comparison.e1) &&
+         !((body instanceof AST.varId) && ((AST.varId)body).name.equals("Output")))
+        return false;
+      sites.add(comparison.e1);
+      return true;
+    }
+    return AST.independentOf(exp,OUTPUT);
+  }
+
+  /* Initial statistics of each site */
+
+  private String streamingStatsInit() {
+    List<String> stats = new ArrayList<String>();
+    for(AST.dataExp site : streamingSites)
+      stats.add(isProbabilitySite(site) ? "[0,0]" : "[0,0.0,0.0]");
+    return "["+String.join(",",stats)+"]";
+  }
+
+  /* Generate aggregators that update the statistics of each site
+     inpAggContext tells AxProf to pass the configuration and input to inpAgg
+  */
+
+  private void genStreamingAggregators() {
+    out.println("\ninpAggContext = True");
+    out.println("\ndef inpAgg(agg,run,output,Config,Input):\n  if agg==None:");
+    out.println("    agg = {'stats':"+streamingStatsInit()+", "+perfAggInit()+"}");
+    out.println("  Output = output['acc']");
+    for(int i=0; i<streamingSites.size(); ++i) {
+      AST.dataExp site = streamingSites.get(i);
+      String stats = "agg['stats']["+i+"]";
+      if(site instanceof AST.probabilityInputs) {
+        out.println("  if agg['n']==0:");
+        String bodyResult = genExpCode(siteBody(site),2);
+        out.println("    "+stats+"[0] += 1 if "+bodyResult+" else 0");
+        out.println("    "+stats+"[1] += 1");
+      } else if(isProbabilitySite(site)) {
+        String bodyResult = genExpCode(siteBody(site),1);
+        out.println("  "+stats+"[0] += 1 if "+bodyResult+" else 0");
+        out.println("  "+stats+"[1] += 1");
+      } else {
+        out.println("  AxProf.welfordUpdate("+stats+",Output)");
+      }
+    }
+    genPerfAggUpdate("run","output",false);
+    genAggMerge("inpAggMerge",true,false,true);
+    out.println("\ndef cfgAgg(agg,input,inpAgg):\n  if agg==None:");
+    out.println("    agg = {'stats':"+streamingStatsInit()+", "+perfAggInit()+"}");
+    if(specType == AST.SpecType.INPUTS) {
+      for(int i=0; i<streamingSites.size(); ++i) {
+        String stats = "['stats']["+i+"]";
+        if(isProbabilitySite(streamingSites.get(i))) {
+          out.println("  agg"+stats+"[0] += inpAgg"+stats+"[0]");
+          out.println("  agg"+stats+"[1] += inpAgg"+stats+"[1]");
+        } else {
+          out.println("  agg"+stats+" = AxProf.welfordMerge(agg"+stats+",inpAgg"+stats+")");
+        }
+      }
+    }
+    genPerfAggUpdate("input","inpAgg",true);
+    genAggMerge("cfgAggMerge",true,false,false);
+  }
+
+  /* Generate the merge function of an aggregator
+     Partial aggregates of consecutive runs (or inputs) are combined in order, so
+     that runs can be spread over worker processes (see AxProf.checkProperties)
+     Averages are weighted by the number of runs (or inputs) of each aggregate
+     If firstRun is true, the aggregates are of runs, and the counts of a
+     Probability over inputs are those of the first run (of agg1 unless it is empty)
+  */
+
+  private void genAggMerge(String name, boolean streamed, boolean mergeAcc) {
+    genAggMerge(name,streamed,mergeAcc,false);
+  }
+
+  private void genAggMerge(String name, boolean streamed, boolean mergeAcc, boolean firstRun) {
+    out.println("\ndef "+name+"(agg1,agg2):\n  if agg1==None:\n    return agg2\n  if agg2==None:\n    return agg1");
+    out.println("  agg = {'n':agg1['n']+agg2['n']}");
+    if(streamed) {
+      out.println("  agg['stats'] = []");
+      for(int i=0; i<streamingSites.size(); ++i) {
+        String stats1 = "agg1['stats']["+i+"]", stats2 = "agg2['stats']["+i+"]";
+        if(firstRun && streamingSites.get(i) instanceof AST.probabilityInputs)
+          out.println("  agg['stats'].append(list("+stats1+" if agg1['n']>0 else "+stats2+"))");
+        else if(isProbabilitySite(streamingSites.get(i)))
+          out.println("  agg['stats'].append(["+stats1+"[0]+"+stats2+"[0],"+stats1+"[1]+"+stats2+"[1]])");
+        else
+          out.println("  agg['stats'].append(AxProf.welfordMerge("+stats1+","+stats2+"))");
+      }
+    } else {
+      out.println("  agg['acc'] = "+(mergeAcc ? "agg1['acc']+agg2['acc']" : "[]"));
+    }
+    out.println("  agg['time'] = (agg1['time']*agg1['n'] + agg2['time']*agg2['n'])/max(agg['n'],1)");
+    out.println("  agg['space'] = (agg1['space']*agg1['n'] + agg2['space']*agg2['n'])/max(agg['n'],1)");
+    if(!spec.latencyExps.isEmpty())
+      out.println("  agg['latency'] = AxProf.TDigest.merged(agg1['latency'],agg2['latency'])");
+    out.println("  return agg");
+  }
+
+  /* Initial performance fields of an aggregate
+     latency holds a sketch of the times of all runs if the spec has LATENCY clauses
+  */
+
+  private String perfAggInit() {
+    return "'time':0, 'space':0, 'n':0"+(spec.latencyExps.isEmpty() ? "" : ", 'latency':AxProf.TDigest()");
+  }
+
+  /* Generate the update of the performance fields of an aggregate with the
+     output of a run (or the aggregate of an input) and the end of the aggregator
+  */
+
+  private void genPerfAggUpdate(String counter, String source, boolean aggregate) {
+    out.println("  agg['time'] = (agg['time']*"+counter+" + "+source+"['time'])/("+counter+"+1)");
+    out.println("  agg['space'] = (agg['space']*"+counter+" + "+source+"['space'])/("+counter+"+1)");
+    if(!spec.latencyExps.isEmpty()) {
+      if(aggregate)
+        out.println("  agg['latency'].merge("+source+"['latency'])");
+      else
+        out.println("  agg['latency'].add("+source+"['time'])");
+    }
+    out.println("  agg['n'] += 1\n  return agg");
+  }
+
+  /* Staging (Options.stage)
+     Maximal subexpressions of the checker whose binding time (see Semantic) is
+     earlier than the checker function are computed by perConfigPrepare(Config)
+     or perInputPrepare(Config,Input), which keep the results of the last
+     configuration (input) they were called with
+     The per run checker of ITEMS specs stages configuration and input
+     subexpressions and the per input checker of RUNS specs stages configuration
+     subexpressions; per configuration checkers have nothing to stage
+     Function calls with staged arguments are staged too, so they are assumed
+     to return the same value for the same arguments
+     Subexpressions that can fail (see Optimizer.canFail) in the right operand
+     of and/or or in a loop are not evaluated by the prepare functions, which
+     keep an AxProf.LazyValue that computes them on first use instead
+  */
+
+  private static boolean isStageable(AST.dataExp exp, int latest, Set<String> bound) {
+    return exp.bindingTime <= latest && exp.type != null &&
+      !(exp instanceof AST.realConst) && !(exp instanceof AST.varId) &&
+      AST.independentOf(exp,bound);
+  }
+
+  /* Collect the maximal stageable subexpressions of exp
+     bound grows with the variables bound inside exp, which staged
+     subexpressions must not use (the Optimizer binds variables after Semantic)
+     guarded is true if exp may not be evaluated by the checker; the staged
+     subexpressions there that can fail are added to lazy
+  */
+
+  private static void findStaged(AST.ASTNode exp, int latest, Set<String> bound, boolean guarded,
+                                 List<AST.dataExp> staged, Set<AST.dataExp> lazy) {
+    if(exp instanceof AST.dataExp && isStageable((AST.dataExp)exp,latest,bound)) {
+      staged.add((AST.dataExp)exp);
+      if(guarded && Optimizer.canFail(exp))
+        lazy.add((AST.dataExp)exp);
+    } else if(exp instanceof AST.forall) {
+      AST.forall forall = (AST.forall)exp;
+      findStagedRanges(forall.ranges,latest,bound,guarded,staged,lazy);
+      Set<String> inner = new HashSet<String>(bound);
+      inner.addAll(rangeItems(forall.ranges));
+      findStaged(forall.exp,latest,inner,true,staged,lazy);
+    } else if(exp instanceof AST.let) {
+      AST.let let = (AST.let)exp;
+      findStaged(let.value,latest,bound,guarded,staged,lazy);
+      Set<String> inner = new HashSet<String>(bound);
+      inner.add(let.name);
+      findStaged(let.exp,latest,inner,guarded,staged,lazy);
+    } else if(exp instanceof AST.probabilityItems) {
+      AST.probabilityItems probItems = (AST.probabilityItems)exp;
+      findStagedRanges(probItems.ranges,latest,bound,guarded,staged,lazy);
+      Set<String> inner = new HashSet<String>(bound);
+      inner.addAll(rangeItems(probItems.ranges));
+      findStaged(probItems.exp,latest,inner,true,staged,lazy);
+    } else if(exp instanceof AST.expectationItems) {
+      AST.expectationItems expItems = (AST.expectationItems)exp;
+      findStagedRanges(expItems.ranges,latest,bound,guarded,staged,lazy);
+      Set<String> inner = new HashSet<String>(bound);
+      inner.addAll(rangeItems(expItems.ranges));
+      findStaged(expItems.exp,latest,inner,true,staged,lazy);
+    } else if(exp instanceof AST.boolAndOr) {
+      findStaged(((AST.boolAndOr)exp).e1,latest,bound,guarded,staged,lazy);
+      findStaged(((AST.boolAndOr)exp).e2,latest,bound,true,staged,lazy);
+    } else if(exp instanceof AST.probabilityRuns) {
+      findStaged(((AST.probabilityRuns)exp).exp,latest,bound,true,staged,lazy);
+    } else if(exp instanceof AST.probabilityInputs) {
+      findStaged(((AST.probabilityInputs)exp).exp,latest,bound,true,staged,lazy);
+    } else if(exp instanceof AST.expectationRuns) {
+      findStaged(((AST.expectationRuns)exp).exp,latest,bound,true,staged,lazy);
+    } else if(exp instanceof AST.expectationInputs) {
+      findStaged(((AST.expectationInputs)exp).exp,latest,bound,true,staged,lazy);
+    } else {
+      for(AST.ASTNode child : AST.children(exp))
+        findStaged(child,latest,bound,guarded,staged,lazy);
+    }
+  }
+
+  /* Range collections are evaluated before the items are bound */
+
+  private static void findStagedRanges(List<AST.range> ranges, int latest, Set<String> bound, boolean guarded,
+                                       List<AST.dataExp> staged, Set<AST.dataExp> lazy) {
+    Set<String> inner = new HashSet<String>(bound);
+    for(int i=0; i<ranges.size(); ++i) {
+      AST.range range = ranges.get(i);
+      //later collections are evaluated once per item of the earlier ranges
+      findStaged(range.coll,latest,inner,guarded || i>0,staged,lazy);
+      inner.add(((AST.varId)range.item).name);
+    }
+  }
+
+  /* Select the staged subexpressions of the checker, print the calls of the
+     prepare functions at the start of the checker function, and make
+     genExpCode use their results
+  */
+
+  private void genStagedPrepareCalls() {
+    configStaged = new ArrayList<AST.dataExp>();
+    inputStaged = new ArrayList<AST.dataExp>();
+    int latest;
+    if(specType == AST.SpecType.ITEMS)
+      latest = AST.dataExp.INPUT;
+    else if(specType == AST.SpecType.RUNS)
+      latest = AST.dataExp.CONFIG;
+    else
+      return;
+    List<AST.dataExp> staged = new ArrayList<AST.dataExp>();
+    lazyStaged = Collections.newSetFromMap(new IdentityHashMap<AST.dataExp,Boolean>());
+    findStaged(spec.exp,latest,new HashSet<String>(),false,staged,lazyStaged);
+    stagedNames = new IdentityHashMap<AST.dataExp,String>();
+    for(AST.dataExp exp : staged) {
+      List<AST.dataExp> list = exp.bindingTime == AST.dataExp.CONFIG ? configStaged : inputStaged;
+      String name = (list == configStaged ? "ConfigPrep[" : "InputPrep[")+list.size()+"]";
+      stagedNames.put(exp,lazyStaged.contains(exp) ? name+"()" : name);
+      list.add(exp);
+    }
+    if(!configStaged.isEmpty())
+      out.println("  ConfigPrep = perConfigPrepare(Config)");
+    if(!inputStaged.isEmpty())
+      out.println("  InputPrep = perInputPrepare(Config,Input)");
+  }
+
+  /* Print the prepare functions of the staged subexpressions */
+
+  private void genStagedPrepares() {
+    stagedNames = null;
+    if(configStaged != null && !configStaged.isEmpty()) {
+      out.println("\n_configPrep = [None,None]\n\ndef perConfigPrepare(Config):");
+      out.println("  if _configPrep[0] != Config:");
+      genStagedValues("_configPrep[1]",configStaged);
+      out.println("    _configPrep[0] = dict(Config)\n  return _configPrep[1]");
+    }
+    if(inputStaged != null && !inputStaged.isEmpty()) {
+      //the cache holds on to the input, so it cannot be another input at the same address
+      out.println("\n_inputPrep = [None,None,None]\n\ndef perInputPrepare(Config,Input):");
+      out.println("  if _inputPrep[0] is not Input or _inputPrep[1] != Config:");
+      genStagedValues("_inputPrep[2]",inputStaged);
+      out.println("    _inputPrep[0] = Input\n    _inputPrep[1] = dict(Config)\n  return _inputPrep[2]");
+    }
+  }
+
+  private void genStagedValues(String target, List<AST.dataExp> staged) {
+    tempCount = 0;
+    List<String> values = new ArrayList<String>();
+    int lazyCount = 0;
+    for(AST.dataExp exp : staged) {
+      if(lazyStaged.contains(exp)) {
+        String lazyName = "_lazy"+(lazyCount++);
+        out.println("    def "+lazyName+"():");
+        String value = genExpCode(exp,3);
+        out.println("      return "+value);
+        values.add("AxProf.LazyValue("+lazyName+")");
+      } else {
+        values.add(genExpCode(exp,2));
+      }
+    }
+    out.println("    "+target+" = ["+String.join(",",values)+"]");
+  }
+
+  /* Sample size planning
+     Each comparison of a Probability or Expectation over runs (inputs) with a
+     value is a test that needs enough runs per input (inputs per configuration)
+     to detect a deviation with the usual power; requiredRuns(Config) and
+     requiredInputs(Config) return the largest requirement of their tests (see
+     AxProf.probabilitySamplesReqd and AxProf.expectationSamplesReqd)
+     A threshold that depends on more than the configuration is planned for the
+     worst case, and distribution comparisons (.==) for AxProf.defaultSamplesReqd
+     designWarnings lists the tests that cannot work as intended
+  */
+
+  private static boolean isRunsSite(AST.dataExp exp) {
+    return (exp instanceof AST.probabilityRuns) || (exp instanceof AST.expectationRuns);
+  }
+
+  private static boolean isInputsSite(AST.dataExp exp) {
+    return (exp instanceof AST.probabilityInputs) || (exp instanceof AST.expectationInputs);
+  }
+
+  /* Collect the tests over runs and inputs, and the distribution comparisons, in exp
+     names gets the names of the items and lets bound in exp
+  */
+
+  private static void findSampleSites(AST.ASTNode exp, Set<String> names, List<AST.boolExp> sites) {
+    if(exp instanceof AST.forall) {
+      AST.forall forall = (AST.forall)exp;
+      names.addAll(rangeItems(forall.ranges));
+      findSampleSites(forall.exp,names,sites);
+    } else if(exp instanceof AST.let) {
+      AST.let let = (AST.let)exp;
+      names.add(let.name);
+      findSampleSites(let.exp,names,sites);
+    } else if(exp instanceof AST.boolAndOr) {
+      findSampleSites(((AST.boolAndOr)exp).e1,names,sites);
+      findSampleSites(((AST.boolAndOr)exp).e2,names,sites);
+    } else if(exp instanceof AST.boolNot) {
+      findSampleSites(((AST.boolNot)exp).exp,names,sites);
+    } else if(exp instanceof AST.comparison) {
+      AST.comparison comparison = (AST.comparison)exp;
+      if(isRunsSite(comparison.e1) || isInputsSite(comparison.e1))
+        sites.add(comparison);
+    } else if(exp instanceof AST.approxEq) {
+      sites.add((AST.approxEq)exp);
+    }
+  }
+
+  private static String siteDescription(AST.dataExp exp) {
+    String kind = (exp instanceof AST.probabilityRuns || exp instanceof AST.probabilityInputs) ?
+      "Probability" : "Expectation";
+    return kind+" over "+(isRunsSite(exp) ? "runs" : "inputs");
+  }
+
+  /* Generate the function that returns the number of runs (or inputs) needed
+     by the tests in sites
+     Thresholds that depend on names in nonConfig are planned for the worst case
+  */
+
+  private void genSamplePlan(String name, List<AST.boolExp> sites, Set<String> nonConfig) {
+    List<String> reqs = new ArrayList<String>();
+    tempCount = 0;
+    out.println("\ndef "+name+"(Config):");
+    for(AST.boolExp site : sites) {
+      if(site instanceof AST.approxEq) {
+        reqs.add("AxProf.defaultSamplesReqd");
+        continue;
+      }
+      AST.comparison comparison = (AST.comparison)site;
+      String op = "'"+comparison.op+"'";
+      if(comparison.e1 instanceof AST.probabilityRuns || comparison.e1 instanceof AST.probabilityInputs) {
+        String target = AST.independentOf(comparison.e2,nonConfig) ? genExpCode(comparison.e2,1) : "0.5";
+        reqs.add("AxProf.probabilitySamplesReqd("+op+","+target+")");
+      } else {
+        reqs.add("AxProf.expectationSamplesReqd("+op+")");
+      }
+    }
+    out.println("  return AxProf.maxSamplesReqd(["+String.join(",",reqs)+"])");
+  }
+
+  //number of tests from which the family-wise error of a spec is reported
+  private static final int FAMILY_WARNING_TESTS = 5;
+
+  /* Static checks of the design of the tests in sites */
+
+  private List<String> sampleDesignWarnings(List<AST.boolExp> sites) {
+    List<String> warnings = new ArrayList<String>();
+    for(AST.boolExp site : sites) {
+      if(site instanceof AST.approxEq) {
+        warnings.add("The sample size of distribution comparisons (.==) is not planned; using "+
+                     "AxProf.defaultSamplesReqd runs");
+        continue;
+      }
+      AST.comparison comparison = (AST.comparison)site;
+      String description = siteDescription(comparison.e1);
+      if(!(comparison.e2 instanceof AST.realConst))
+        continue;
+      if(!(comparison.e1 instanceof AST.probabilityRuns || comparison.e1 instanceof AST.probabilityInputs))
+        continue;
+      String val = ((AST.realConst)comparison.e2).val;
+      double target;
+      try{target=Double.parseDouble(val);}catch(NumberFormatException e){continue;}
+      String op = comparison.op;
+      //AxProf.binomialTest rejects a probability of 0 on any success, and the
+      //binomial test rejects a probability of 1 on any failure
+      if(target < 0 || target > 1) {
+        warnings.add(description+" is compared with "+val+", outside [0, 1]");
+      } else if(op.equals(">=") && target == 0) {
+        warnings.add(description+" >= "+val+" always holds, but the test fails on any success; remove it");
+      } else if(op.equals("<=") && target == 1) {
+        warnings.add(description+" <= "+val+" always holds; the test can never fail");
+      } else if((op.equals("==") || op.equals("<=")) && target == 0) {
+        warnings.add(description+" "+op+" "+val+" fails on any success; compare with a small "+
+                     "probability instead if rare successes are allowed");
+      } else if((op.equals("==") || op.equals(">=")) && target == 1) {
+        warnings.add(description+" "+op+" "+val+" fails on any failure; compare with a probability "+
+                     "close to 1 instead if rare failures are allowed");
+      }
+    }
+    int tests = sites.size();
+    if(tests >= FAMILY_WARNING_TESTS)
+      warnings.add(tests+" statistical tests at significance 0.05 each; a correct program fails "+
+                   "some test with probability up to "+String.format("%.2f",Math.min(1.0,tests*0.05)));
+    return warnings;
+  }
+
+  /* Generate requiredRuns, requiredInputs, and designWarnings for the spec */
+
+  private void genSamplePlans() {
+    List<AST.boolExp> sites = new ArrayList<AST.boolExp>();
+    //thresholds may only use configuration parameters
+    Set<String> nonConfig = new HashSet<String>(Arrays.asList("Config","Input","Output","Runs","Inputs"));
+    for(AST.typeDecl typeDecl : spec.typeDecls)
+      nonConfig.add(typeDecl.name);
+    findSampleSites(spec.exp,nonConfig,sites);
+    if(sites.isEmpty())
+      return;
+    List<AST.boolExp> runSites = new ArrayList<AST.boolExp>();
+    List<AST.boolExp> inputSites = new ArrayList<AST.boolExp>();
+    for(AST.boolExp site : sites) {
+      //distribution comparisons are made over the runs of an input
+      if(site instanceof AST.approxEq || isRunsSite(((AST.comparison)site).e1))
+        runSites.add(site);
+      else
+        inputSites.add(site);
+    }
+    if(!runSites.isEmpty())
+      genSamplePlan("requiredRuns",runSites,nonConfig);
+    if(!inputSites.isEmpty())
+      genSamplePlan("requiredInputs",inputSites,nonConfig);
+    List<String> warnings = sampleDesignWarnings(sites);
+    if(!warnings.isEmpty()) {
+      List<String> quoted = new ArrayList<String>();
+      for(String warning : warnings)
+        quoted.add("'"+warning+"'");
+      out.println("\ndesignWarnings = ["+String.join(",\n                  ",quoted)+"]");
+    }
+  }
+
+  /* Generate the test of a site from its streamed statistics */
+
+  private String genStreamingSiteCode(AST.comparison comparison, int site, boolean returnPVal, int indents) {
+    String stats = "Stats["+site+"]";
+    String rhs = genExpCode(comparison.e2,indents);
+    if(!isProbabilitySite(comparison.e1))
+      return genCheckExpResult("AxProf.ttestFromStats("+stats+","+rhs+")",comparison.op,returnPVal,indents);
+    String pValue = getCheckFreqStr(stats+"[0]",stats+"[1]",rhs,comparison.op);
+    if(returnPVal)
+      return pValue;
+    else
+      return "("+pValue+">=0.05)";
+  }
+
+  /* Sequential testing (Options.sequential)
+     Probability over runs or inputs sites are also decided by Wald's sequential
+     probability ratio test on their streamed counters (see AxProf.sprtDecision)
+     The generated seqTest hook returns 1 if the spec is accepted, -1 if it is
+     rejected, and 0 if more runs (or inputs) are needed
+     Verdicts of sites are combined with three valued logic: and is min, or is
+     max, not is negation; any other part of the spec is undecided
+  */
+
+  private boolean isSequentialSite(AST.boolExp exp) {
+    if(!(exp instanceof AST.comparison))
+      return false;
+    AST.comparison comparison = (AST.comparison)exp;
+    return streamingSiteIndex.containsKey(comparison.e1) && isProbabilitySite(comparison.e1) &&
+           (comparison.op.charAt(0) == '<' || comparison.op.charAt(0) == '>' || comparison.op.equals("=="));
+  }
+
+  /* Returns true if some site of the expression can be decided sequentially */
+
+  private boolean canDecideSequentially(AST.boolExp exp) {
+    if(exp instanceof AST.boolAndOr)
+      return canDecideSequentially(((AST.boolAndOr)exp).e1) || canDecideSequentially(((AST.boolAndOr)exp).e2);
+    else if(exp instanceof AST.boolNot)
+      return canDecideSequentially(((AST.boolNot)exp).exp);
+    return isSequentialSite(exp);
+  }
+
+  private String genSeqDecision(AST.boolExp exp, int indents) {
+    if(exp instanceof AST.boolAndOr) {
+      AST.boolAndOr boolAndOr = (AST.boolAndOr)exp;
+      String d1 = genSeqDecision(boolAndOr.e1,indents);
+      String d2 = genSeqDecision(boolAndOr.e2,indents);
+      return (boolAndOr.op.equals("or") ? "max(" : "min(")+d1+","+d2+")";
+    } else if(exp instanceof AST.boolNot) {
+      return "(-"+genSeqDecision(((AST.boolNot)exp).exp,indents)+")";
+    } else if(isSequentialSite(exp)) {
+      AST.comparison comparison = (AST.comparison)exp;
+      String stats = "Stats["+streamingSiteIndex.get(comparison.e1)+"]";
+      String rhs = genExpCode(comparison.e2,indents);
+      return "AxProf.sprtDecision("+stats+"[0],"+stats+"[1],"+rhs+",'"+comparison.op+"')";
+    }
+    return "0";
+  }
+
+  /* Generate the seqTest hook, called by AxProf with the aggregate after each
+     run for RUNS specs, and after each input for INPUTS specs
+  */
+
+  private void genSeqTest() {
+    if(!canDecideSequentially(spec.exp))
+      return;
+    out.println("\ndef seqTest(Config, Input, Output):\n  Stats = Output['stats']");
+    tempCount = 0;
+    String decision = genSeqDecision(spec.exp,1);
+    out.println("  return "+decision);
+  }
+
+  /* Returns the names of the items of the given ranges */
+
+  private static Set<String> rangeItems(List<AST.range> ranges) {
+    Set<String> items = new HashSet<String>();
+    for(AST.range range : ranges)
+      items.add(((AST.varId)range.item).name);
+    return items;
+  }
+
+  /* Returns the code of a hash index over a list with items of the given type,
+     or null if the items cannot be hashed
+  */
+
+  private static String indexCode(AST.dataType itemType, String data) {
+    if(itemType == null)
+      return null;
+    if(itemType.baseType == AST.dataType.REAL)
+      return "set("+data+")";
+    if(itemType.baseType == AST.dataType.LIST && itemType.kType != null &&
+       itemType.kType.baseType == AST.dataType.REAL)
+      return "set(map(tuple,"+data+"))";
+    return null;
+  }
+
+  /* Collect the membership tests in lists that do not depend on the variables in bound
+     bound grows with the variables bound inside exp
+     guarded is true if exp may not be evaluated when the index is built: in a
+     loop, which may be empty, or in the right operand of and/or; the lists of
+     guarded tests are only indexed if evaluating them cannot fail (see Optimizer.canFail)
+     Sites of streamed statistics are skipped since they are checked in another function
+  */
+
+  private void findIndexSites(AST.ASTNode exp, Set<String> bound, boolean guarded,
+                              List<AST.isInData> sites) {
+    if(exp instanceof AST.isInData) {
+      AST.isInData isInData = (AST.isInData)exp;
+      if(!indexNames.containsKey(isInData) && isInData.data.type.baseType == AST.dataType.LIST &&
+         indexCode(isInData.data.type.kType,"") != null && AST.independentOf(isInData.data,bound) &&
+         (!guarded || !Optimizer.canFail(isInData.data)))
+        sites.add(isInData);
+    } else if(exp instanceof AST.forall) {
+      AST.forall forall = (AST.forall)exp;
+      Set<String> inner = new HashSet<String>(bound);
+      inner.addAll(rangeItems(forall.ranges));
+      findIndexSites(forall.exp,inner,true,sites);
+    } else if(exp instanceof AST.let) {
+      AST.let let = (AST.let)exp;
+      Set<String> inner = new HashSet<String>(bound);
+      inner.add(let.name);
+      findIndexSites(let.exp,inner,guarded,sites);
+    } else if(exp instanceof AST.boolAndOr) {
+      findIndexSites(((AST.boolAndOr)exp).e1,bound,guarded,sites);
+      findIndexSites(((AST.boolAndOr)exp).e2,bound,true,sites);
+    } else if(exp instanceof AST.boolNot) {
+      findIndexSites(((AST.boolNot)exp).exp,bound,guarded,sites);
+    } else if(exp instanceof AST.comparison) {
+      if(!streamingSiteIndex.containsKey(((AST.comparison)exp).e1))
+        findIndexSites(((AST.comparison)exp).e1,bound,guarded,sites);
+    } else if(exp instanceof AST.probabilityItems) {
+      AST.probabilityItems probItems = (AST.probabilityItems)exp;
+      Set<String> inner = new HashSet<String>(bound);
+      inner.addAll(rangeItems(probItems.ranges));
+      findIndexSites(probItems.exp,inner,true,sites);
+    } else if(exp instanceof AST.probabilityRuns) {
+      Set<String> inner = new HashSet<String>(bound);
+      inner.addAll(OUTPUT);
+      findIndexSites(((AST.probabilityRuns)exp).exp,inner,true,sites);
+    } else if(exp instanceof AST.probabilityInputs) {
+      Set<String> inner = new HashSet<String>(bound);
+      inner.addAll(OUTPUT);
+      findIndexSites(((AST.probabilityInputs)exp).exp,inner,true,sites);
+    }
+  }
+
+  /* Build hash indexes before a loop for the membership tests in its body whose
+     lists do not depend on the variables bound by the loop
+     Tests in the same list share an index; the tests are then generated as index lookups
+  */
+
+  private void genIndexes(Set<String> bound, AST.ASTNode body, int indents) {
+    List<AST.isInData> sites = new ArrayList<AST.isInData>();
+    //the loop may be empty, so its body is guarded
+    findIndexSites(body,bound,true,sites);
+    Map<String,String> built = new HashMap<String,String>();
+    for(AST.isInData site : sites) {
+      String key = Optimizer.key(site.data);
+      String indexTemp = built.get(key);
+      if(indexTemp == null) {
+        indexTemp = "t"+(tempCount++);
+        String data = genExpCode(site.data,indents);
+        printIndents(indents);
+        out.println(indexTemp+" = "+indexCode(site.data.type.kType,data));
+        built.put(key,indexTemp);
+      }
+      indexNames.put(site,indexTemp);
+    }
+  }
+
+  /* Item sampling (Options.sampleItems)
+     Probability and Expectation over items are evaluated on a uniform random
+     sample, with replacement, of Options.sampleItems tuples of the cross
+     product of their ranges (see AxProf.sampleItems); the items are then
+     independent draws, so the binomial test and the t-test are made on the
+     sample with its size as the number of trials
+     Ranges whose collections depend on earlier items are not a cross product
+     and are still enumerated, as are cross products no larger than the sample
+  */
+
+  private boolean canSampleRanges(List<AST.range> ranges) {
+    if(options.sampleItems <= 0)
+      return false;
+    Set<String> earlierItems = new HashSet<String>();
+    for(AST.range range : ranges) {
+      if(!AST.independentOf(range.coll,earlierItems))
+        return false;
+      earlierItems.add(((AST.varId)range.item).name);
+    }
+    return true;
+  }
+
+  /* Print the sample of the ranges and the loop over it, and return the sample */
+
+  private String genItemSample(List<AST.range> ranges, int indents) {
+    List<String> collections = new ArrayList<String>();
+    List<String> items = new ArrayList<String>();
+    for(AST.range range : ranges) {
+      String collName = genExpCode(range.coll,indents);
+      if(range.type == AST.range.UNIQUE)
+        collName = "set("+collName+")";
+      else if(range.type == AST.range.INDEX)
+        collName = "range(len("+collName+"))";
+      collections.add(collName);
+      String itemName = ((AST.varId)range.item).name;
+      declaredVars.add(itemName);
+      items.add(itemName);
+    }
+    String sampleTemp = "t"+(tempCount++);
+    printIndents(indents);
+    out.println(sampleTemp+" = AxProf.sampleItems(["+String.join(",",collections)+"],"+options.sampleItems+")");
+    printIndents(indents);
+    out.println("for ("+String.join(",",items)+(items.size() == 1 ? "," : "")+") in "+sampleTemp+" :");
+    sampledItems = true;
+    return sampleTemp;
+  }
+
+  /* With Options.optimize, build the sets of UNIQUE ranges whose collections do
+     not depend on earlier ranges once, before the loops over the ranges
+     The same set is then used for the loop and for counting trials
+     Returns the set for each range, or null for ranges that need no set
+  */
+
+  private List<String> genUniqueSets(List<AST.range> ranges, int indents) {
+    List<String> sets = new ArrayList<String>();
+    Set<String> earlierItems = new HashSet<String>();
+    for(AST.range range : ranges) {
+      String setTemp = null;
+      if(options.optimize && range.type == AST.range.UNIQUE && AST.independentOf(range.coll,earlierItems)) {
+        setTemp = "t"+(tempCount++);
+        String collName = genExpCode(range.coll,indents);
+        printIndents(indents);
+        out.println(setTemp+" = set("+collName+")");
+      }
+      sets.add(setTemp);
+      earlierItems.add(((AST.varId)range.item).name);
+    }
+    return sets;
+  }
+
+  /* Matrix code generation (Options.blas)
+     A tree of matrix sums, differences, and products is flattened to signed terms,
+     each a product of factors, and evaluated into one accumulator:
+     1) a chain of three or more factors is one multi_dot call, which orders the
+        products by the dimensions of the factors
+     2) a product of two factors added to the accumulator is one GEMM call that
+        updates the accumulator in place (see AxProf.gemmAcc)
+     3) other terms are added to the accumulator in place
+     Matrices are NumPy arrays of reals
+  */
+
+  private static boolean isMatrixOp(AST.dataExp exp, String ops) {
+    if(!(exp instanceof AST.dataOp))
+      return false;
+    AST.dataOp dataOp = (AST.dataOp)exp;
+    return ops.contains(dataOp.op) && dataOp.e1.type.baseType == AST.dataType.MATRIX &&
+           dataOp.e2.type.baseType == AST.dataType.MATRIX;
+  }
+
+  private static void matrixTerms(AST.dataExp exp, boolean negate, List<AST.dataExp> terms, List<Boolean> signs) {
+    if(isMatrixOp(exp,"+-")) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      matrixTerms(dataOp.e1,negate,terms,signs);
+      matrixTerms(dataOp.e2,dataOp.op.equals("-") ? !negate : negate,terms,signs);
+    } else {
+      terms.add(exp);
+      signs.add(negate);
+    }
+  }
+
+  private static void matrixFactors(AST.dataExp exp, List<AST.dataExp> factors) {
+    if(isMatrixOp(exp,"*")) {
+      matrixFactors(((AST.dataOp)exp).e1,factors);
+      matrixFactors(((AST.dataOp)exp).e2,factors);
+    } else {
+      factors.add(exp);
+    }
+  }
+
+  /* A factor of a product is a sum or difference, or a matrix from elsewhere */
+
+  private String genMatrixFactor(AST.dataExp factor, int indents) {
+    if(isMatrixOp(factor,"+-"))
+      return genMatrixCode(factor,indents);
+    return "np.asarray("+genExpCode(factor,indents)+",dtype=float)";
+  }
+
+  private String genMatrixFactors(List<AST.dataExp> factors, int indents) {
+    List<String> factorStrs = new ArrayList<String>();
+    for(AST.dataExp factor : factors)
+      factorStrs.add(genMatrixFactor(factor,indents));
+    if(factorStrs.size() == 2)
+      return "np.matmul("+factorStrs.get(0)+","+factorStrs.get(1)+")";
+    return "np.linalg.multi_dot(["+String.join(",",factorStrs)+"])";
+  }
+
+  /* Prints the evaluation of a matrix expression and returns the name of a new array holding it */
+
+  private String genMatrixCode(AST.dataExp exp, int indents) {
+    List<AST.dataExp> terms = new ArrayList<AST.dataExp>();
+    List<Boolean> signs = new ArrayList<Boolean>();
+    matrixTerms(exp,false,terms,signs);
+    List<List<AST.dataExp>> products = new ArrayList<List<AST.dataExp>>();
+    int first = -1;
+    for(int i=0; i<terms.size(); ++i) {
+      List<AST.dataExp> factors = new ArrayList<AST.dataExp>();
+      matrixFactors(terms.get(i),factors);
+      products.add(factors);
+      //start from a term that is not a product, so that products can be accumulated
+      if(first < 0 && factors.size() == 1)
+        first = i;
+    }
+    if(first < 0)
+      first = 0;
+    String accTemp = "t"+(tempCount++);
+    List<AST.dataExp> firstFactors = products.get(first);
+    if(firstFactors.size() == 1) {
+      String term = genExpCode(firstFactors.get(0),indents);
+      printIndents(indents);
+      //copy, since the accumulator is updated in place
+      out.println(accTemp+" = "+(signs.get(first) ? "-" : "")+"np.array("+term+",dtype=float)");
+    } else {
+      String product = genMatrixFactors(firstFactors,indents);
+      printIndents(indents);
+      out.println(accTemp+" = "+product);
+      if(signs.get(first)) {
+        printIndents(indents);
+        out.println("np.negative("+accTemp+",out="+accTemp+")");
+      }
+    }
+    for(int i=0; i<terms.size(); ++i) {
+      if(i == first)
+        continue;
+      List<AST.dataExp> factors = products.get(i);
+      String alpha = signs.get(i) ? "-1.0" : "1.0";
+      if(factors.size() == 2) {
+        String a = genMatrixFactor(factors.get(0),indents);
+        String b = genMatrixFactor(factors.get(1),indents);
+        printIndents(indents);
+        out.println(accTemp+" = AxProf.gemmAcc("+a+","+b+","+accTemp+",alpha="+alpha+")");
+      } else {
+        String term = factors.size() > 2 ? genMatrixFactors(factors,indents) : genExpCode(factors.get(0),indents);
+        printIndents(indents);
+        out.println((signs.get(i) ? "np.subtract(" : "np.add(")+accTemp+","+term+",out="+accTemp+")");
+      }
+    }
+    return accTemp;
+  }
+
+  /* Randomized matrix checks (FREIVALDS clause of the spec)
+     An equality of matrix expressions is checked by multiplying both sides with
+     random vectors (see AxProf.freivaldsCheck), so the products in the expressions
+     are never formed; each side is passed as sums of products of its factors
+  */
+
+  private boolean isFreivaldsCheck(AST.comparison comparison) {
+    return spec.freivaldsTrials != null && (comparison.op.equals("==") || comparison.op.equals("!=")) &&
+           comparison.e1.type.baseType == AST.dataType.MATRIX && comparison.e2.type.baseType == AST.dataType.MATRIX;
+  }
+
+  /* Returns an AxProf.MatSum for a matrix expression, or the matrix itself if it is not a sum or product */
+
+  private String genMatrixProductForm(AST.dataExp exp, int indents) {
+    if(!isMatrixOp(exp,"+-*"))
+      return genExpCode(exp,indents);
+    List<AST.dataExp> terms = new ArrayList<AST.dataExp>();
+    List<Boolean> signs = new ArrayList<Boolean>();
+    matrixTerms(exp,false,terms,signs);
+    List<String> termStrs = new ArrayList<String>();
+    for(int i=0; i<terms.size(); ++i) {
+      List<AST.dataExp> factors = new ArrayList<AST.dataExp>();
+      matrixFactors(terms.get(i),factors);
+      List<String> factorStrs = new ArrayList<String>();
+      for(AST.dataExp factor : factors)
+        factorStrs.add(genMatrixProductForm(factor,indents));
+      termStrs.add("("+(signs.get(i) ? "-1.0" : "1.0")+",["+String.join(",",factorStrs)+"])");
+    }
+    return "AxProf.MatSum(["+String.join(",",termStrs)+"])";
+  }
+
+  /* C kernels (Options.cKernels)
+     Prints a call of the kernel for a quantifier or an items site and returns the
+     name of the list of its results (see CKernelGen), or null if the site cannot
+     be lowered, in which case the usual python code is generated
+  */
+
+  private String genCKernelCall(AST.ASTNode site, int indents) {
+    if(cKernels == null)
+      return null;
+    CKernelGen.Kernel kernel = null;
+    try{
+      kernel = cKernels.lower(site);
+    }catch(UnsupportedOperationException e){
+      return null;
+    }
+    List<String> args = new ArrayList<String>();
+    for(String name : kernel.args)
+      args.add(genExpCode(new AST.varId(name),indents));
+    String resultTemp = "t"+(tempCount++);
+    printIndents(indents);
+    out.println(resultTemp+" = AxProf.runCKernel(_cKernels['"+kernel.name+"'],'"+kernel.signature+"',["+String.join(",",args)+"])");
+    return resultTemp;
+  }
+
+  /* Print the statement that builds the kernels used by the generated functions
+     The library is compiled once per kernel source and cached (see AxProf.buildCKernels)
+  */
+
+  private void genCKernels() {
+    if(cKernels == null || cKernels.isEmpty())
+      return;
+    List<String> signatures = new ArrayList<String>();
+    for(Map.Entry<String,String> entry : cKernels.signatures().entrySet())
+      signatures.add("'"+entry.getKey()+"':'"+entry.getValue()+"'");
+    out.println("\n_cKernels = AxProf.buildCKernels(r'''"+cKernels.source()+"''',{"+String.join(",",signatures)+"})");
+  }
+
   /* Generate expression code assuming that a boolean expression must be returned */
 
   public String genExpCode(AST.ASTNode exp, int indents) {
@@ -105,20 +1352,46 @@ public class CodeGen {
   */
 
   public String genExpCode(AST.ASTNode exp, int indents, boolean returnPVal) {
+    if(stagedNames != null && stagedNames.containsKey(exp))
+      return stagedNames.get(exp);
     //begin boolean expressions
     if(exp instanceof AST.forall) {
       //universal quantification - run multiple tests and combine the result
       AST.forall forall = (AST.forall)exp;
       boolean containsApproxComp = (forall.specType() == AST.SpecType.RUNS);
+      String kernelResult = containsApproxComp ? null : genCKernelCall(forall,indents);
+      if(kernelResult != null) {
+        String resultTemp = "t"+(tempCount++);
+        printIndents(indents);
+        out.println(resultTemp+" = 1 if "+kernelResult+"[0] else 0");
+        if(returnPVal)
+          return resultTemp;
+        else
+          return "("+resultTemp+">=0.05)";
+      }
+      if(!containsApproxComp && canVectorizeRanges(forall.ranges,forall.exp)) {
+        String resultTemp = "t"+(tempCount++);
+        Map<String,String> saved = new HashMap<String,String>();
+        String shape = genVectorRanges(forall.ranges,saved,indents);
+        String mask = genVectorCode(forall.exp,indents);
+        restoreVectorVars(saved);
+        printIndents(indents);
+        out.println(resultTemp+" = 1 if np.all(np.broadcast_to("+mask+","+shape+")) else 0");
+        if(returnPVal)
+          return resultTemp;
+        else
+          return "("+resultTemp+">=0.05)";
+      }
+      genIndexes(rangeItems(forall.ranges),forall.exp,indents);
       int numRanges = forall.ranges.size();
       String resultTemp = "t"+(tempCount++);
       String pValsTemp = null;
       printIndents(indents);
       if(containsApproxComp) {
         pValsTemp = "t"+(tempCount++);
-        System.out.println(pValsTemp+" = []");
+        out.println(pValsTemp+" = []");
       } else {
-        System.out.println(resultTemp+" = 1");
+        out.println(resultTemp+" = 1");
       }
       List<String> collections = new ArrayList<String>();
       for(int i=0; i<numRanges; ++i) {
@@ -128,21 +1401,21 @@ public class CodeGen {
         collections.add(collName);
         declaredVars.add(itemName);
         printIndents(indents+i);
-        System.out.println(getRangeStr(range.type,collName,itemName));
+        out.println(getRangeStr(range.type,collName,itemName));
       }
       String bodyResult = genExpCode(forall.exp,indents+numRanges,containsApproxComp);
       printIndents(indents+numRanges);
       if(containsApproxComp) {
-        System.out.println(pValsTemp+".append("+bodyResult+")");
+        out.println(pValsTemp+".append("+bodyResult+")");
         printIndents(indents);
-        System.out.println(resultTemp+" = AxProf.combine_pvalues("+pValsTemp+")[1]");
+        out.println(resultTemp+" = AxProf.combine_pvalues("+pValsTemp+")[1]");
       } else {
-        System.out.println(resultTemp+" *= "+bodyResult);
+        out.println(resultTemp+" *= "+bodyResult);
         for(int i=numRanges-1; i>=0; --i) {
           printIndents(indents+i+1);
-          System.out.println("if not "+resultTemp+":");
+          out.println("if not "+resultTemp+":");
           printIndents(indents+i+2);
-          System.out.println("break");
+          out.println("break");
         }
       }
       if(returnPVal)
@@ -153,9 +1426,9 @@ public class CodeGen {
       AST.let let = (AST.let)exp;
       String val = genExpCode(let.value,indents);
       printIndents(indents);
-      System.out.println(let.name+" = "+val);
+      out.println(let.name+" = "+val);
       declaredVars.add(let.name);
-      String result = genExpCode(let.exp,indents);
+      String result = genExpCode(let.exp,indents,returnPVal);
       return result;
     } else if(exp instanceof AST.isInData) {
       AST.isInData isInData = (AST.isInData)exp;
@@ -163,7 +1436,9 @@ public class CodeGen {
       if(isInData.item.type.baseType == AST.dataType.LIST) {
         item = "tuple("+item+")";
       }
-      String data = genExpCode(isInData.data,indents);
+      String data = indexNames.get(isInData);
+      if(data == null)
+        data = genExpCode(isInData.data,indents);
       String resultStr = null;
       if(isInData.data.type.baseType == AST.dataType.LIST) {
         resultStr = "("+item+" in "+data+")";
@@ -184,7 +1459,10 @@ public class CodeGen {
       String outerTemp = "t"+(tempCount++);
       String innerTemp = "t"+(tempCount++);
       printIndents(indents);
-      System.out.println(outerTemp+" = ["+innerTemp+"-"+rhs+" for "+innerTemp+" in Output]");
+      if(options.vectorize)
+        out.println(outerTemp+" = np.asarray(Output,dtype=float)-"+rhs);
+      else
+        out.println(outerTemp+" = ["+innerTemp+"-"+rhs+" for "+innerTemp+" in Output]");
       String pValue = "AxProf.wilcoxon("+outerTemp+").pvalue";
       if(returnPVal)
         return pValue;
@@ -193,18 +1471,24 @@ public class CodeGen {
     } else if(exp instanceof AST.comparison) {
       //comparisons are handled differently if they contain a probabilistic expression
       AST.comparison comparison = (AST.comparison)exp;
-      if(comparison.e1 instanceof AST.probabilityInputs) {
+      if(streamingSiteIndex.containsKey(comparison.e1)) {
+        return genStreamingSiteCode(comparison,streamingSiteIndex.get(comparison.e1),returnPVal,indents);
+      } else if(comparison.e1 instanceof AST.probabilityInputs) {
         AST.probabilityInputs probInputs = (AST.probabilityInputs)comparison.e1;
-        String counterTemp = "t"+(tempCount++);
-        outputSuffix = "t"+(tempCount++);
-        printIndents(indents);
-        System.out.println(counterTemp+" = 0");
-        printIndents(indents);
-        System.out.println("for "+outputSuffix+" in range(Inputs):");
-        String bodyResult = genExpCode(probInputs.exp,indents+1);
-        outputSuffix = null;
-        printIndents(indents+1);
-        System.out.println(counterTemp+" += 1 if "+bodyResult+" else 0");
+        String counterTemp = genVectorOutputCount(probInputs.exp,INPUT_TRIALS,"Inputs",indents);
+        if(counterTemp == null) {
+          counterTemp = "t"+(tempCount++);
+          outputSuffix = "t"+(tempCount++);
+          printIndents(indents);
+          out.println(counterTemp+" = 0");
+          genIndexes(OUTPUT,probInputs.exp,indents);
+          printIndents(indents);
+          out.println("for "+outputSuffix+" in range(0,Inputs*Runs,Runs):");
+          String bodyResult = genExpCode(probInputs.exp,indents+1);
+          outputSuffix = null;
+          printIndents(indents+1);
+          out.println(counterTemp+" += 1 if "+bodyResult+" else 0");
+        }
         String rhs = genExpCode(comparison.e2,indents);
         String pValue = getCheckFreqStr(counterTemp,"Inputs",rhs,comparison.op);
         if(returnPVal)
@@ -213,16 +1497,20 @@ public class CodeGen {
           return "("+pValue+">=0.05)";
       } else if(comparison.e1 instanceof AST.probabilityRuns) {
         AST.probabilityRuns probRuns = (AST.probabilityRuns)comparison.e1;
-        String counterTemp = "t"+(tempCount++);
-        outputSuffix = "t"+(tempCount++);
-        printIndents(indents);
-        System.out.println(counterTemp+" = 0");
-        printIndents(indents);
-        System.out.println("for "+outputSuffix+" in range(Runs):");
-        String bodyResult = genExpCode(probRuns.exp,indents+1);
-        outputSuffix = null;
-        printIndents(indents+1);
-        System.out.println(counterTemp+" += 1 if "+bodyResult+" else 0");
+        String counterTemp = genVectorOutputCount(probRuns.exp,"Output","Runs",indents);
+        if(counterTemp == null) {
+          counterTemp = "t"+(tempCount++);
+          outputSuffix = "t"+(tempCount++);
+          printIndents(indents);
+          out.println(counterTemp+" = 0");
+          genIndexes(OUTPUT,probRuns.exp,indents);
+          printIndents(indents);
+          out.println("for "+outputSuffix+" in range(Runs):");
+          String bodyResult = genExpCode(probRuns.exp,indents+1);
+          outputSuffix = null;
+          printIndents(indents+1);
+          out.println(counterTemp+" += 1 if "+bodyResult+" else 0");
+        }
         String rhs = genExpCode(comparison.e2,indents);
         String pValue = getCheckFreqStr(counterTemp,"Runs",rhs,comparison.op);
         if(returnPVal)
@@ -255,55 +1543,134 @@ public class CodeGen {
         return genCheckExpCode(valueString,rhs,comparison.op,returnPVal,indents);
       } else if(comparison.e1 instanceof AST.probabilityItems) {
         AST.probabilityItems probItems = (AST.probabilityItems)comparison.e1;
+        if(canSampleRanges(probItems.ranges)) {
+          String counterTemp = "t"+(tempCount++);
+          printIndents(indents);
+          out.println(counterTemp+" = 0");
+          String sampleTemp = genItemSample(probItems.ranges,indents);
+          String bodyResult = genExpCode(probItems.exp,indents+1);
+          printIndents(indents+1);
+          out.println(counterTemp+" += 1 if "+bodyResult+" else 0");
+          String rhs = genExpCode(comparison.e2,indents);
+          String pValue = getCheckFreqStr(counterTemp,"len("+sampleTemp+")",rhs,comparison.op);
+          if(returnPVal)
+            return pValue;
+          else
+            return "("+pValue+">=0.05)";
+        }
+        String kernelResult = genCKernelCall(probItems,indents);
+        if(kernelResult != null) {
+          String rhs = genExpCode(comparison.e2,indents);
+          String pValue = getCheckFreqStr("int("+kernelResult+"[0])","int("+kernelResult+"[1])",rhs,comparison.op);
+          if(returnPVal)
+            return pValue;
+          else
+            return "("+pValue+">=0.05)";
+        }
+        if(canVectorizeRanges(probItems.ranges,probItems.exp)) {
+          String counterTemp = "t"+(tempCount++);
+          Map<String,String> saved = new HashMap<String,String>();
+          String shape = genVectorRanges(probItems.ranges,saved,indents);
+          String mask = genVectorCode(probItems.exp,indents);
+          restoreVectorVars(saved);
+          printIndents(indents);
+          out.println(counterTemp+" = np.count_nonzero(np.broadcast_to("+mask+","+shape+"))");
+          String rhs = genExpCode(comparison.e2,indents);
+          String pValue = getCheckFreqStr(counterTemp,"int(np.prod("+shape+"))",rhs,comparison.op);
+          if(returnPVal)
+            return pValue;
+          else
+            return "("+pValue+">=0.05)";
+        }
         int numRanges = probItems.ranges.size();
         String counterTemp = "t"+(tempCount++);
         printIndents(indents);
-        System.out.println(counterTemp+" = 0");
+        out.println(counterTemp+" = 0");
+        genIndexes(rangeItems(probItems.ranges),probItems.exp,indents);
+        List<String> setTemps = genUniqueSets(probItems.ranges,indents);
         List<String> collections = new ArrayList<String>();
         for(int i=0; i<numRanges; ++i) {
           AST.range range = probItems.ranges.get(i);
           String itemName = ((AST.varId)range.item).name;
-          String collName = genExpCode(range.coll,indents+i);
-          collections.add(collName);
+          String collName = setTemps.get(i);
+          int rangeType = AST.range.DIRECT;
+          if(collName == null) {
+            collName = genExpCode(range.coll,indents+i);
+            rangeType = range.type;
+          }
+          collections.add(rangeType == AST.range.UNIQUE ? "set("+collName+")" : collName);
           declaredVars.add(itemName);
           printIndents(indents+i);
-          System.out.println(getRangeStr(range.type,collName,itemName));
+          out.println(getRangeStr(rangeType,collName,itemName));
         }
         String bodyResult = genExpCode(probItems.exp,indents+numRanges);
         printIndents(indents+numRanges);
-        System.out.println(counterTemp+" += 1 if "+bodyResult+" else 0");
+        out.println(counterTemp+" += 1 if "+bodyResult+" else 0");
         String rhs = genExpCode(comparison.e2,indents);
-        String trialsStr = "1";
-        for(int i=0; i<numRanges; ++i) {
-          String collStr = collections.get(i);
-          if(probItems.ranges.get(i).type == AST.range.UNIQUE)
-            collStr = "set("+collStr+")";
-          trialsStr += "*len("+collStr+")";
-        }
-        String pValue = getCheckFreqStr(counterTemp,trialsStr,rhs,comparison.op);
+        StringBuilder trialsStr = new StringBuilder("1");
+        for(int i=0; i<numRanges; ++i)
+          trialsStr.append("*len(").append(collections.get(i)).append(")");
+        String pValue = getCheckFreqStr(counterTemp,trialsStr.toString(),rhs,comparison.op);
         if(returnPVal)
           return pValue;
         else
           return "("+pValue+">=0.05)";
       } else if(comparison.e1 instanceof AST.expectationItems) {
         AST.expectationItems expItems = (AST.expectationItems)comparison.e1;
+        if(canSampleRanges(expItems.ranges)) {
+          String samplesTemp = "t"+(tempCount++);
+          printIndents(indents);
+          out.println(samplesTemp+" = []");
+          genItemSample(expItems.ranges,indents);
+          String bodyResult = genExpCode(expItems.exp,indents+1);
+          printIndents(indents+1);
+          out.println(samplesTemp+".append("+bodyResult+")");
+          String rhs = genExpCode(comparison.e2,indents);
+          return genCheckExpCode(samplesTemp,rhs,comparison.op,returnPVal,indents);
+        }
+        String kernelResult = genCKernelCall(expItems,indents);
+        if(kernelResult != null) {
+          String rhs = genExpCode(comparison.e2,indents);
+          return genCheckExpResult("AxProf.ttestFromStats("+kernelResult+","+rhs+")",comparison.op,returnPVal,indents);
+        }
+        if(canVectorizeRanges(expItems.ranges,expItems.exp)) {
+          String samplesTemp = "t"+(tempCount++);
+          Map<String,String> saved = new HashMap<String,String>();
+          String shape = genVectorRanges(expItems.ranges,saved,indents);
+          String samples = genVectorCode(expItems.exp,indents);
+          restoreVectorVars(saved);
+          printIndents(indents);
+          out.println(samplesTemp+" = np.broadcast_to("+samples+","+shape+").ravel()");
+          String rhs = genExpCode(comparison.e2,indents);
+          return genCheckExpCode(samplesTemp,rhs,comparison.op,returnPVal,indents);
+        }
         int numRanges = expItems.ranges.size();
         String samplesTemp = "t"+(tempCount++);
         printIndents(indents);
-        System.out.println(samplesTemp+" = []");
+        out.println(samplesTemp+" = []");
         for(int i=0; i<numRanges; ++i) {
           AST.range range = expItems.ranges.get(i);
           String itemName = ((AST.varId)range.item).name;
           String collName = genExpCode(range.coll,indents+i);
           declaredVars.add(itemName);
           printIndents(indents+i);
-          System.out.println(getRangeStr(range.type,collName,itemName));
+          out.println(getRangeStr(range.type,collName,itemName));
         }
         String bodyResult = genExpCode(expItems.exp,indents+numRanges);
         printIndents(indents+numRanges);
-        System.out.println(samplesTemp+".append("+bodyResult+")");
+        out.println(samplesTemp+".append("+bodyResult+")");
         String rhs = genExpCode(comparison.e2,indents);
         return genCheckExpCode(samplesTemp,rhs,comparison.op,returnPVal,indents);
+      } else if(isFreivaldsCheck(comparison)) {
+        String lhs = genMatrixProductForm(comparison.e1,indents);
+        String rhs = genMatrixProductForm(comparison.e2,indents);
+        String tol = spec.freivaldsTol == null ? "None" : spec.freivaldsTol;
+        String check = "AxProf.freivaldsCheck("+lhs+","+rhs+","+spec.freivaldsTrials+","+tol+")";
+        String comp = comparison.op.equals("==") ? check : "(not "+check+")";
+        if(returnPVal)
+          return "(1 if "+comp+" else 0)";
+        else
+          return comp;
       } else {
         String num1 = genExpCode(comparison.e1,indents);
         String num2 = genExpCode(comparison.e2,indents);
@@ -362,17 +1729,11 @@ public class CodeGen {
       for(AST.dataExp item : ((AST.dataExpList)exp).list) {
         items.add(genExpCode(item,indents));
       }
-      int numItems = items.size();
-      String resultStr = "[";
-      for(int i=0; i<numItems; ++i) {
-        if(i>0)
-          resultStr += ",";
-        resultStr += items.get(i);
-      }
-      resultStr += "]";
-      return resultStr;
+      return "["+String.join(",",items)+"]";
     } else if(exp instanceof AST.dataOp) {
       AST.dataOp dataOp = (AST.dataOp)exp;
+      if(options.blas && isMatrixOp(dataOp,"+-*"))
+        return genMatrixCode(dataOp,indents);
       String num1 = genExpCode(dataOp.e1,indents);
       String num2 = genExpCode(dataOp.e2,indents);
       AST.dataType t1 = dataOp.e1.type;
@@ -410,20 +1771,41 @@ public class CodeGen {
           assert(false);
         }
       }
-      String resultStr = funcCall.funcName+"(";
-      for(int i=0; i<numParams; ++i){
-        resultStr += paramStrs.get(i);
-        if(i<numParams-1)
-          resultStr += ",";
-      }
-      resultStr += ")";
-      return resultStr;
+      if(funcCall.pure)
+        return pureWrapperName(funcCall.funcName)+"("+String.join(",",paramStrs)+")";
+      return funcCall.funcName+"("+String.join(",",paramStrs)+")";
     } else {
       assert(false);
       return null;
     }
   }
 
+  /* Pure functions
+     Calls of functions declared pure go through a memoizing wrapper
+     (see AxProf.memoize), defined once per checker; finalFunc reports the
+     hits and misses of each cache
+  */
+
+  private static String pureWrapperName(String funcName) {
+    return "_pure_"+funcName.replace('.','_');
+  }
+
+  private boolean hasPureFuncs() {
+    if(specType == AST.SpecType.NONE || specType == AST.SpecType.CONFLICT || specType == AST.SpecType.PERF)
+      return false;
+    for(AST.typeDecl typeDecl : spec.typeDecls)
+      if(typeDecl.pure)
+        return true;
+    return false;
+  }
+
+  private void genPureWrappers() {
+    for(AST.typeDecl typeDecl : spec.typeDecls)
+      if(typeDecl.pure)
+        out.println(pureWrapperName(typeDecl.name)+" = AxProf.memoize("+typeDecl.name+",'"+typeDecl.name+"')");
+    out.println("");
+  }
+
   /* Generate curve fit function expression assuming the expression is not at the top level */
 
   public String fitFuncGen(AST.dataExp exp, List<String> vars) {
@@ -437,13 +1819,77 @@ public class CodeGen {
   */
 
   public String fitFuncGen(AST.dataExp exp, List<String> vars, boolean topExpression) {
+    return fitTerm(exp,vars,topExpression).value;
+  }
+
+  /* Curve fit function expression with its partial derivatives by parameter
+     derivatives maps the index of each parameter (p0, p1, ...) the expression
+     depends on to the derivative by it; it is null if the expression contains a
+     function that cannot be differentiated
+  */
+
+  private static class FitTerm {
+    String value;
+    Map<Integer,String> derivatives;
+    FitTerm(String v) {
+      value = v;
+      derivatives = new TreeMap<Integer,String>();
+    }
+  }
+
+  private static String symMul(String a, String b) {
+    if(a.equals("1"))
+      return b;
+    if(b.equals("1"))
+      return a;
+    return "("+a+"*"+b+")";
+  }
+
+  /* Add the derivatives of a subexpression times factor to the derivatives of term (chain rule) */
+
+  private static void addDerivatives(FitTerm term, FitTerm sub, String factor) {
+    if(term.derivatives == null)
+      return;
+    if(sub.derivatives == null) {
+      term.derivatives = null;
+      return;
+    }
+    for(Map.Entry<Integer,String> entry : sub.derivatives.entrySet()) {
+      String derivative = symMul(entry.getValue(),factor);
+      String previous = term.derivatives.get(entry.getKey());
+      term.derivatives.put(entry.getKey(),previous == null ? derivative : "("+previous+"+"+derivative+")");
+    }
+  }
+
+  /* Derivative at x of functions of one argument that fit expressions commonly use, or null */
+
+  private static String funcDerivative(String funcName, String x) {
+    switch(funcName.substring(funcName.lastIndexOf('.')+1)) {
+      case "log":
+        return "(1/"+x+")";
+      case "log2":
+        return "(1/("+x+"*0.6931471805599453))";
+      case "log10":
+        return "(1/("+x+"*2.302585092994046))";
+      case "sqrt":
+        return "(0.5/"+funcName+"("+x+"))";
+      case "exp":
+        return funcName+"("+x+")";
+      default:
+        return null;
+    }
+  }
+
+  private FitTerm fitTerm(AST.dataExp exp, List<String> vars, boolean topExpression) {
     if(exp instanceof AST.realConst) {
       if(topExpression) {
         int temp = tempCount;
         tempCount += 1;
-        return "p"+Integer.toString(temp);
+        FitTerm term = new FitTerm("p"+Integer.toString(temp));
+        term.derivatives.put(temp,"1");
+        return term;
       } else {
-        return ((AST.realConst)exp).val;
+        return new FitTerm(((AST.realConst)exp).val);
       }
     } else if(exp instanceof AST.varId) {
       String name = ((AST.varId)exp).name;
@@ -454,7 +1900,10 @@ public class CodeGen {
       }
       int temp = tempCount;
       tempCount += 2;
-      return "(p"+Integer.toString(temp)+"*Cfg["+Integer.toString(index)+"]+p"+Integer.toString(temp+1)+")";
+      FitTerm term = new FitTerm("(p"+Integer.toString(temp)+"*Cfg["+Integer.toString(index)+"]+p"+Integer.toString(temp+1)+")");
+      term.derivatives.put(temp,"Cfg["+Integer.toString(index)+"]");
+      term.derivatives.put(temp+1,"1");
+      return term;
     } else if(exp instanceof AST.dataOp) {
       AST.dataOp dataOp = (AST.dataOp)exp;
       String op = dataOp.op;
@@ -463,33 +1912,62 @@ public class CodeGen {
         int exponent = -1;
         try{exponent=Integer.parseInt(expStr);}catch(NumberFormatException e){exponent=-1;}
         if(exponent==0) {
-          return "1";
+          return new FitTerm("1");
         } else if(exponent==1) {
-          return fitFuncGen(dataOp.e1,vars);
+          return fitTerm(dataOp.e1,vars,false);
         } else if(exponent>0) {
-          String op1 = fitFuncGen(dataOp.e1,vars);
+          FitTerm op1 = fitTerm(dataOp.e1,vars,false);
           int temp = tempCount;
           tempCount += exponent+1;
-          String result = "(p"+Integer.toString(temp);
+          StringBuilder result = new StringBuilder("(p").append(temp);
+          FitTerm term = new FitTerm(null);
+          term.derivatives.put(temp,"1");
+          //derivative of the polynomial by its argument
+          List<String> slope = new ArrayList<String>();
           for(int i=exponent; i>0; --i){
             temp++;
-            result = result+"+p"+Integer.toString(temp)+"*"+op1+"**"+Integer.toString(i);
+            result.append("+p").append(temp).append("*").append(op1.value).append("**").append(i);
+            term.derivatives.put(temp,op1.value+"**"+i);
+            slope.add("p"+temp+"*"+i+"*"+op1.value+"**"+(i-1));
           }
-          return result+")";
+          term.value = result.append(")").toString();
+          addDerivatives(term,op1,"("+String.join("+",slope)+")");
+          return term;
         }
       }
-      String op1 = fitFuncGen(dataOp.e1,vars);
-      String op2 = fitFuncGen(dataOp.e2,vars);
+      FitTerm op1 = fitTerm(dataOp.e1,vars,false);
+      FitTerm op2 = fitTerm(dataOp.e2,vars,false);
       if(op.equals("+") || op.equals("-")) {
-        return "("+op1+op+op2+")";
+        FitTerm term = new FitTerm("("+op1.value+op+op2.value+")");
+        addDerivatives(term,op1,"1");
+        addDerivatives(term,op2,op.equals("-") ? "-1" : "1");
+        return term;
       } else if(op.equals("*") || op.equals("/")) {
         int temp = tempCount;
         tempCount += 1;
-        return "("+op1+op+op2+"+p"+Integer.toString(temp)+")";
+        FitTerm term = new FitTerm("("+op1.value+op+op2.value+"+p"+Integer.toString(temp)+")");
+        if(op.equals("*")) {
+          addDerivatives(term,op1,op2.value);
+          addDerivatives(term,op2,op1.value);
+        } else {
+          addDerivatives(term,op1,"(1/"+op2.value+")");
+          addDerivatives(term,op2,"(-"+op1.value+"/"+op2.value+"**2)");
+        }
+        if(term.derivatives != null)
+          term.derivatives.put(temp,"1");
+        return term;
       } else if(op.equals("**")) {
         int temp = tempCount;
         tempCount += 2;
-        return "(("+op1+"**"+op2+")*p"+Integer.toString(temp)+"+p"+Integer.toString(temp+1)+")";
+        String power = "("+op1.value+"**"+op2.value+")";
+        FitTerm term = new FitTerm("("+power+"*p"+Integer.toString(temp)+"+p"+Integer.toString(temp+1)+")");
+        addDerivatives(term,op1,"p"+temp+"*"+op2.value+"*"+op1.value+"**("+op2.value+"-1)");
+        addDerivatives(term,op2,"p"+temp+"*"+power+"*AxProf.np.log("+op1.value+")");
+        if(term.derivatives != null) {
+          term.derivatives.put(temp,power);
+          term.derivatives.put(temp+1,"1");
+        }
+        return term;
       } else {
         assert(false);
         return null;
@@ -503,38 +1981,111 @@ public class CodeGen {
       }
       int temp = tempCount;
       tempCount += 2;
-      return "(p"+Integer.toString(temp)+"*len(Cfg["+Integer.toString(index)+"])+p"+Integer.toString(temp+1)+")";
+      FitTerm term = new FitTerm("(p"+Integer.toString(temp)+"*len(Cfg["+Integer.toString(index)+"])+p"+Integer.toString(temp+1)+")");
+      term.derivatives.put(temp,"len(Cfg["+Integer.toString(index)+"])");
+      term.derivatives.put(temp+1,"1");
+      return term;
     } else if(exp instanceof AST.funcCall) {
       AST.funcCall funcCall = (AST.funcCall)exp;
       int numParams = funcCall.params.size();
+      List<FitTerm> paramTerms = new ArrayList<FitTerm>();
       List<String> paramStrs = new ArrayList<String>();
       for(int i=0; i<numParams; ++i){
         AST.ASTNode param = funcCall.params.get(i);
         if(param instanceof AST.dataExp) {
-          paramStrs.add(fitFuncGen((AST.dataExp)param,vars));
+          FitTerm paramTerm = fitTerm((AST.dataExp)param,vars,false);
+          paramTerms.add(paramTerm);
+          paramStrs.add(paramTerm.value);
         } else {
           assert(false);
         }
       }
-      String resultStr = funcCall.funcName+"(";
-      for(int i=0; i<numParams; ++i){
-        resultStr += paramStrs.get(i);
-        if(i<numParams-1)
-          resultStr += ",";
-      }
-      resultStr += ")";
+      String resultStr = funcCall.funcName+"("+String.join(",",paramStrs)+")";
       int temp = tempCount;
       tempCount += 2;
-      return "("+resultStr+"*p"+Integer.toString(temp)+"+p"+Integer.toString(temp+1)+")";
+      FitTerm term = new FitTerm("("+resultStr+"*p"+Integer.toString(temp)+"+p"+Integer.toString(temp+1)+")");
+      for(FitTerm paramTerm : paramTerms) {
+        String derivative = numParams == 1 ? funcDerivative(funcCall.funcName,paramTerm.value) : null;
+        if(paramTerm.derivatives != null && paramTerm.derivatives.isEmpty())
+          continue;
+        if(derivative == null)
+          term.derivatives = null;
+        else
+          addDerivatives(term,paramTerm,"p"+temp+"*"+derivative);
+      }
+      if(term.derivatives != null) {
+        term.derivatives.put(temp,resultStr);
+        term.derivatives.put(temp+1,"1");
+      }
+      return term;
     } else {
       assert(false);
       return null;
     }
   }
 
-  /* Initialize class and declare some variables that are always present */
+  private static final Pattern FIT_PARAM = Pattern.compile("\\bp[0-9]+\\b");
+
+  /* Print the derivatives of a curve fit function with the given number of
+     parameters and return the matching arguments of AxProf.fitFuncToData
+     If no derivative depends on a parameter, the function is linear in its
+     parameters and is fit by least squares over the derivatives (the basis),
+     printed as <prefix>FitBasis(Cfg); otherwise its Jacobian is printed as
+     <prefix>FitJac(Cfg,p0,...) (see AxProf.stackJacobian)
+     Returns an empty string if the function cannot be differentiated
+  */
+
+  private String genFitDerivatives(String prefix, FitTerm fit, int numParams) {
+    if(fit.derivatives == null)
+      return "";
+    List<String> derivatives = new ArrayList<String>();
+    boolean linear = true;
+    for(int i=0; i<numParams; ++i) {
+      String derivative = fit.derivatives.getOrDefault(i,"0");
+      derivatives.add(derivative);
+      if(FIT_PARAM.matcher(derivative).find())
+        linear = false;
+    }
+    String stack = "):\n    return AxProf.stackJacobian(Cfg,["+String.join(",",derivatives)+"])\n";
+    if(linear) {
+      out.println("  def "+prefix+"FitBasis(Cfg"+stack);
+      return ",basis="+prefix+"FitBasis";
+    }
+    out.print("  def "+prefix+"FitJac(Cfg");
+    for(int i=0; i<numParams; ++i)
+      out.print(",p"+Integer.toString(i));
+    out.println(stack);
+    return ",jac="+prefix+"FitJac";
+  }
+
+  /* Initialize class and declare some variables that are always present
+     Generated code is printed to standard output and errors to standard error
+  */
 
   public CodeGen(AST.spec s) {
+    this(s,System.out,System.err);
+  }
+
+  /* Initialize class with the sink that receives generated code and the stream for errors */
+
+  public CodeGen(AST.spec s, Appendable o, PrintStream e) {
+    this(s,o,e,new Options());
+  }
+
+  /* Initialize class with the sink, the error stream, and the code generation options
+     Generated code is buffered (see Emitter) and passed to the sink by generate
+  */
+
+  public CodeGen(AST.spec s, Appendable o, PrintStream e, Options opts) {
+    out = new Emitter(o);
+    err = e;
+    options = opts;
+    vectorVars = new HashMap<String,String>();
+    streamingSites = new ArrayList<AST.dataExp>();
+    streamingSiteIndex = new IdentityHashMap<AST.dataExp,Integer>();
+    indexNames = new IdentityHashMap<AST.isInData,String>();
+    if(options.cKernels)
+      cKernels = new CKernelGen();
     spec = s;
     specType = spec.specType();
     declaredVars = new HashSet<String>();
@@ -550,98 +2101,188 @@ public class CodeGen {
     }
   }
 
+  /* Binary output (Options.binaryOutput)
+     For an Output declared as a list of reals or a map from reals to reals, prints
+     the layout of its binary file and a reader that memory maps the file
+     (see AxProfUtil.readBinaryOutput); runners then return the name of the file
+     as the 'acc' output. Outputs kept by the aggregators are copied out of the
+     file, since the next run overwrites it
+  */
+
+  private void genOutputReader() {
+    AST.dataType outputType = null;
+    for(AST.typeDecl typeDecl : spec.typeDecls)
+      if(typeDecl.name.equals("Output"))
+        outputType = typeDecl.type;
+    String kind = null;
+    if(outputType == null) {
+      return;
+    } else if(outputType.baseType == AST.dataType.LIST && outputType.kType.baseType == AST.dataType.REAL) {
+      kind = "list";
+    } else if(outputType.baseType == AST.dataType.MAP && outputType.kType.baseType == AST.dataType.REAL &&
+              outputType.vType.baseType == AST.dataType.REAL) {
+      kind = "map";
+    } else {
+      return;
+    }
+    boolean copy = (specType == AST.SpecType.RUNS || specType == AST.SpecType.INPUTS);
+    out.println("outputLayout = {'kind':'"+kind+"', 'dtype':'<f8', 'copy':"+(copy ? "True" : "False")+"}\n");
+    out.println("def readOutput(fileName):\n  return AxProf.readBinaryOutput(fileName,outputLayout)\n");
+  }
+
   /* Generate all necessary functions
      Generates a per run function for per run checkers
      Generates a per input function for per input checkers
      Generates a final function to dump time and memory usage data
      Generates aggregators for time, space, and accuracy data
+     Generates a reader of binary outputs if Options.binaryOutput is set
+     Returns false if no code could be generated for the spec
   */
 
-  public void generate() {
+  public boolean generate() {
+    try{
+      return generateFunctions();
+    }finally{
+      out.flush();
+    }
+  }
+
+  private boolean generateFunctions() {
+    if((options.vectorize || options.blas) && specType != AST.SpecType.NONE && specType != AST.SpecType.CONFLICT)
+      out.println("import numpy as np\n");
+    if(hasPureFuncs())
+      genPureWrappers();
+    if(options.binaryOutput && specType != AST.SpecType.NONE && specType != AST.SpecType.CONFLICT &&
+       specType != AST.SpecType.PERF)
+      genOutputReader();
+    boolean streaming = false;
+    if((options.streaming || options.sequential) && (specType == AST.SpecType.RUNS || specType == AST.SpecType.INPUTS)) {
+      List<AST.dataExp> sites = new ArrayList<AST.dataExp>();
+      Set<String> bound = new HashSet<String>(Arrays.asList("Runs","Inputs"));
+      if(findStreamingSites(spec.exp,bound,sites)) {
+        streaming = true;
+        streamingSites = sites;
+        for(int i=0; i<sites.size(); ++i)
+          streamingSiteIndex.put(sites.get(i),i);
+      }
+    }
+    String outputAccess = streaming ? "  Stats = Output['stats']" : "  Output = Output['acc']";
     switch(specType) {
       case NONE:
-        System.err.println("Error: spec is empty or contains unimplemented elements.");
-        return;
+        err.println("Error: spec is empty or contains unimplemented elements.");
+        return false;
       case INPUTS:
-        System.out.println("def perConfigFunc(Config, Runs, Inputs, Output):\n  Output = Output['acc']");
+        out.println("def perConfigFunc(Config, Runs, Inputs, Output):\n"+outputAccess);
         break;
       case RUNS:
-        System.out.println("def perInpFunc(Config, Input, Runs, Output):\n  Output = Output['acc']");
+        out.println("def perInpFunc(Config, Input, Runs, Output):\n"+outputAccess);
         break;
       case ITEMS:
-        System.out.println("def perRunFunc(Config, Input, Output):\n  Output = Output['acc']");
+        out.println("def perRunFunc(Config, Input, Output):\n  Output = Output['acc']");
         break;
       case PERF:
         break;
       case CONFLICT:
       default:
-        System.err.println("Error: conflicting probability types in spec.");
-        return;
+        err.println("Error: conflicting probability types in spec.");
+        return false;
     }
     if(specType != AST.SpecType.PERF) {
       tempCount = 0;
+      if(options.stage)
+        genStagedPrepareCalls();
       String specResult = genExpCode(spec.exp,1);
       if(specResult.length()>3){
         String resultTemp = "t"+(tempCount++);
-        System.out.println("  "+resultTemp+" = "+specResult);
+        out.println("  "+resultTemp+" = "+specResult);
         specResult = resultTemp;
       }
-      System.out.println("  if not "+specResult+":");
-      System.out.println("    print('Checker detected a possible error')");
-      System.out.println("  return "+specResult);
+      out.println("  if not "+specResult+":");
+      out.println("    print('Checker detected a possible error')");
+      out.println("  return "+specResult);
+      if(options.stage)
+        genStagedPrepares();
+      genCKernels();
     }
-    System.out.println("\ndef inpAgg(agg,run,output):\n  if agg==None:\n    agg = {'acc':[], 'time':0, 'space':0}");
     if(specType == AST.SpecType.RUNS || specType == AST.SpecType.INPUTS)
-      System.out.println("  agg['acc'].append(output['acc'])");
-    System.out.println("  agg['time'] = (agg['time']*run + output['time'])/(run+1)\n  agg['space'] = (agg['space']*run + output['space'])/(run+1)\n  return agg");
-    System.out.println("\ndef cfgAgg(agg,input,inpAgg):\n  if agg==None:\n    agg = {'acc':[], 'time':0, 'space':0}");
-    if(specType == AST.SpecType.INPUTS)
-      System.out.println("  agg['acc'] += inpAgg['acc']");
-    System.out.println("  agg['time'] = (agg['time']*input + inpAgg['time'])/(input+1)\n  agg['space'] = (agg['space']*input + inpAgg['space'])/(input+1)\n  return agg");
-    System.out.println("\ndef finalFunc(paramNames, outputs, runs, inputs):");
-    System.out.println("  times = {k:v['time'] for k, v in outputs.items()}");
-    System.out.println("  AxProf.dumpObtainedData(times,'outputs/%FILENAME%-timeData.txt',paramNames,dataName='time')");
-    System.out.println("  spaces = {k:v['space'] for k, v in outputs.items()}");
-    System.out.println("  AxProf.dumpObtainedData(spaces,'outputs/%FILENAME%-spaceData.txt',paramNames,dataName='space')");
-    if(spec.timeExp!=null) {
-      List<String> timeFuncVars = new ArrayList<String>();
-      tempCount = 0;
-      String funcBody = fitFuncGen(spec.timeExp,timeFuncVars,true);
-      System.out.print("\n  def timeFitFunc(Cfg");
-      for(int i=0; i<tempCount; ++i)
-        System.out.print(",p"+Integer.toString(i));
-      System.out.println("):\n    return "+funcBody+"\n");
-      System.out.print("  try:\n    popt, rsqd = AxProf.fitFuncToData(times,timeFitFunc,[");
-      for(int i=0; i<timeFuncVars.size(); ++i) {
-        if(i>0)
-          System.out.print(",");
-        System.out.print("'"+timeFuncVars.get(i)+"'");
-      }
-      System.out.println("],paramNames)");
-      System.out.println("    print('Time usage:\\nOptimal curve fit parameters:',popt,'\\nR^2 metric:',rsqd)");
-      //Future work: fully autmoatic visualization generation
-      //System.out.println("  AxProf.visualizeOutput(times,'outputs/%FILENAME%-timeData.png',paramNames,/*tbd*/,dataName='time')");
-      System.out.println("  except (RuntimeError, TypeError):\n    print('Unable to find optimal curve fit parameters for time data')");
-    }
-    if(spec.spaceExp!=null) {
-      List<String> spaceFuncVars = new ArrayList<String>();
-      tempCount = 0;
-      String funcBody = fitFuncGen(spec.spaceExp,spaceFuncVars,true);
-      System.out.print("\n  def spaceFitFunc(Cfg");
-      for(int i=0; i<tempCount; ++i)
-        System.out.print(",p"+Integer.toString(i));
-      System.out.println("):\n    return "+funcBody+"\n");
-      System.out.print("  try:\n    popt, rsqd = AxProf.fitFuncToData(spaces,spaceFitFunc,[");
-      for(int i=0; i<spaceFuncVars.size(); ++i) {
-        if(i>0)
-          System.out.print(",");
-        System.out.print("'"+spaceFuncVars.get(i)+"'");
-      }
-      System.out.println("],paramNames)");
-      System.out.println("    print('space usage:\\nOptimal curve fit parameters:',popt,'\\nR^2 metric:',rsqd)");
-      //Future work: fully autmoatic visualization generation
-      //System.out.println("  AxProf.visualizeOutput(spaces,'outputs/%FILENAME%-spaceData.png',paramNames,/*tbd*/,dataName='space')");
-      System.out.println("  except (RuntimeError, TypeError):\n    print('Unable to find optimal curve fit parameters for space data')");
+      genSamplePlans();
+    if(streaming) {
+      genStreamingAggregators();
+      if(options.sequential)
+        genSeqTest();
+    } else {
+      boolean runsAcc = (specType == AST.SpecType.RUNS || specType == AST.SpecType.INPUTS);
+      boolean inputsAcc = (specType == AST.SpecType.INPUTS);
+      out.println("\ndef inpAgg(agg,run,output):\n  if agg==None:\n    agg = {'acc':[], "+perfAggInit()+"}");
+      if(runsAcc)
+        out.println("  agg['acc'].append(output['acc'])");
+      genPerfAggUpdate("run","output",false);
+      genAggMerge("inpAggMerge",false,runsAcc);
+      out.println("\ndef cfgAgg(agg,input,inpAgg):\n  if agg==None:\n    agg = {'acc':[], "+perfAggInit()+"}");
+      if(inputsAcc)
+        out.println("  agg['acc'] += inpAgg['acc']");
+      genPerfAggUpdate("input","inpAgg",true);
+      genAggMerge("cfgAggMerge",false,inputsAcc);
+    }
+    out.println("\ndef finalFunc(paramNames, outputs, runs, inputs):");
+    if(hasPureFuncs())
+      for(AST.typeDecl typeDecl : spec.typeDecls)
+        if(typeDecl.pure)
+          out.println("  "+pureWrapperName(typeDecl.name)+".report()");
+    if(sampledItems)
+      out.println("  print('Items sites evaluated on',"+options.sampleItems+
+                  ",'random items; the fraction of sampled items that satisfy a condition is within',"+
+                  "AxProf.samplingConfidence("+options.sampleItems+"),'of the fraction of all items at 95% confidence')");
+    if(spec.freivaldsTrials != null && specType != AST.SpecType.PERF)
+      out.println("  print('Matrix equalities checked with',"+spec.freivaldsTrials+
+                  ",'random vectors; false acceptance probability at most',AxProf.freivaldsErrorProbability("+
+                  spec.freivaldsTrials+"))");
+    out.println("  times = {k:v['time'] for k, v in outputs.items()}");
+    out.println("  AxProf.dumpObtainedData(times,'outputs/%FILENAME%-timeData.txt',paramNames,dataName='time')");
+    out.println("  spaces = {k:v['space'] for k, v in outputs.items()}");
+    out.println("  AxProf.dumpObtainedData(spaces,'outputs/%FILENAME%-spaceData.txt',paramNames,dataName='space')");
+    if(spec.timeExp!=null)
+      genFit("time","times",spec.timeExp,"Time usage","time");
+    if(spec.spaceExp!=null)
+      genFit("space","spaces",spec.spaceExp,"space usage","space");
+    for(int i=0; i<spec.latencyExps.size(); ++i) {
+      String pct = spec.latencyPercentiles.get(i);
+      String name = "latency"+pct.replace('.','_');
+      out.println("  "+name+" = {k:v['latency'].quantile("+pct+"/100) for k, v in outputs.items()}");
+      out.println("  AxProf.dumpObtainedData("+name+",'outputs/%FILENAME%-"+name+"Data.txt',paramNames,dataName='p"+pct+" time')");
+      genFit(name,name,spec.latencyExps.get(i),"p"+pct+" latency","p"+pct+" latency");
+    }
+    if(spec.throughputExp!=null) {
+      out.println("  throughputs = {k:1/v['time'] for k, v in outputs.items() if v['time'] > 0}");
+      out.println("  AxProf.dumpObtainedData(throughputs,'outputs/%FILENAME%-throughputData.txt',paramNames,dataName='runs per second')");
+      genFit("throughput","throughputs",spec.throughputExp,"Throughput (runs per second)","throughput");
+    }
+    return true;
+  }
+
+  /* Generate the curve fit of a performance model in finalFunc
+     data is the dict from configuration to measured value, and name prefixes the fit functions
+  */
+
+  private void genFit(String name, String data, AST.dataExp exp, String heading, String dataName) {
+    List<String> funcVars = new ArrayList<String>();
+    tempCount = 0;
+    FitTerm fit = fitTerm(exp,funcVars,true);
+    out.print("\n  def "+name+"FitFunc(Cfg");
+    for(int i=0; i<tempCount; ++i)
+      out.print(",p"+Integer.toString(i));
+    out.println("):\n    return "+fit.value+"\n");
+    String fitArgs = genFitDerivatives(name,fit,tempCount);
+    out.print("  try:\n    popt, rsqd = AxProf.fitFuncToData("+data+","+name+"FitFunc,[");
+    for(int i=0; i<funcVars.size(); ++i) {
+      if(i>0)
+        out.print(",");
+      out.print("'"+funcVars.get(i)+"'");
     }
+    out.println("],paramNames"+fitArgs+")");
+    out.println("    print('"+heading+":\\nOptimal curve fit parameters:',popt,'\\nR^2 metric:',rsqd)");
+    //Future work: fully autmoatic visualization generation
+    //out.println("  AxProf.visualizeOutput("+data+",'outputs/%FILENAME%-"+name+"Data.png',paramNames,/*tbd*/,dataName='"+dataName+"')");
+    out.println("  except (RuntimeError, TypeError, ValueError, AxProf.np.linalg.LinAlgError):\n    print('Unable to find optimal curve fit parameters for "+dataName+" data')");
   }
 }
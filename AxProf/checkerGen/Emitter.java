@@ -0,0 +1,60 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/* Buffered output of generated code
+   CodeGen prints many small fragments; they are collected in a buffer and passed
+   to the sink in large chunks, so any Appendable (a StringBuilder, a Writer, a
+   PrintStream, ...) can receive the code at the cost of one append per chunk
+   I/O errors of the sink are rethrown unchecked, since code generation cannot
+   continue without its output
+*/
+
+public class Emitter {
+
+  private static final int CHUNK_SIZE = 8192;
+
+  private Appendable sink;
+  private StringBuilder buffer;
+
+  public Emitter(Appendable s) {
+    sink = s;
+    buffer = new StringBuilder(2*CHUNK_SIZE);
+  }
+
+  public void print(String s) {
+    buffer.append(s);
+    if(buffer.length() >= CHUNK_SIZE)
+      drain();
+  }
+
+  public void println(String s) {
+    buffer.append(s).append('\n');
+    if(buffer.length() >= CHUNK_SIZE)
+      drain();
+  }
+
+  /* Pass the buffered code to the sink and flush the sink if it can be flushed */
+
+  public void flush() {
+    drain();
+    if(sink instanceof Flushable) {
+      try{
+        ((Flushable)sink).flush();
+      }catch(IOException e){
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private void drain() {
+    if(buffer.length() == 0)
+      return;
+    try{
+      sink.append(buffer);
+    }catch(IOException e){
+      throw new UncheckedIOException(e);
+    }
+    buffer.setLength(0);
+  }
+}
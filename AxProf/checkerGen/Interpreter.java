@@ -0,0 +1,686 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+
+/* Interpreter class
+   Evaluates the typed AST of a specification directly over program outputs,
+   instead of generating Python checker code
+   Must be run after Semantic
+   Follows the semantics of the code generated by CodeGen:
+   1) ITEMS specs are checked once per run with a single Input and Output
+   2) RUNS specs are checked once per input with Output holding the output of every run
+   3) INPUTS specs are checked once per configuration with Output holding every output
+   Real valued data is kept in primitive arrays and counters in longs, so that
+   quantifiers over large outputs do not allocate per item
+*/
+
+public class Interpreter implements Checker {
+
+  /* Data for a single check
+     Text format, keywords followed by values (see Value for the format of values):
+     config <number of parameters> (<name> <real>)*
+     runs <runs>
+     inputs <inputs>
+     input <Input value>           (optional, not used by INPUTS specs)
+     outputs <count> <Output value>*
+  */
+
+  public static class Record {
+    public Map<String,Double> config = new HashMap<String,Double>();
+    public int runs = 1, inputs = 1;
+    public Value input;
+    public List<Value> outputs = new ArrayList<Value>();
+  }
+
+  /* Result of a check: the verdict and the p values of the top level statistical tests */
+
+  public static class Verdict {
+    public boolean passed;
+    public List<Double> pValues = new ArrayList<Double>();
+    public String toString() {
+      StringBuilder result = new StringBuilder(passed ? "PASS" : "FAIL");
+      for(double p : pValues)
+        result.append(' ').append(p);
+      return result.toString();
+    }
+  }
+
+  /* Variable storage; real values are kept unboxed */
+
+  private static class Slot {
+    double real;
+    Value value;
+    void set(double r) {
+      real = r;
+      value = null;
+    }
+    void set(Value v) {
+      if(v instanceof Value.Real)
+        set(((Value.Real)v).val);
+      else
+        value = v;
+    }
+    Value get() {
+      return value != null ? value : new Value.Real(real);
+    }
+    double getReal() {
+      return value != null ? value.asReal() : real;
+    }
+  }
+
+  /* Body of a loop over a range list; returns false to stop iterating */
+
+  private interface RangeBody {
+    boolean visit();
+  }
+
+  private AST.spec spec;
+  private AST.SpecType specType;
+  private Map<String,Slot> env;
+  private Map<String,Double> config;
+  private Map<AST.realConst,Double> constants;
+  private List<Double> pValues;
+  private int loopDepth;
+
+  public Interpreter(AST.spec s) {
+    spec = s;
+    specType = spec.specType();
+    constants = new IdentityHashMap<AST.realConst,Double>();
+    if(specType != AST.SpecType.ITEMS && specType != AST.SpecType.RUNS && specType != AST.SpecType.INPUTS)
+      throw new UnsupportedOperationException("Spec has no accuracy specification that can be interpreted");
+    checkSupported(spec.exp);
+  }
+
+  /* Reject calls and ranges the interpreter cannot evaluate before any record is checked */
+
+  private static void checkSupported(AST.ASTNode n) {
+    if(n instanceof AST.funcCall) {
+      AST.funcCall funcCall = (AST.funcCall)n;
+      int numArgs = funcCall.params.size();
+      boolean supported;
+      switch(funcCall.funcName) {
+        case "abs": case "sqrt": case "exp": case "log2": case "log10": case "floor": case "ceil":
+          supported = numArgs == 1;
+          break;
+        case "log":
+          supported = numArgs == 1 || numArgs == 2;
+          break;
+        case "pow":
+          supported = numArgs == 2;
+          break;
+        case "min": case "max":
+          supported = numArgs >= 1;
+          break;
+        default:
+          throw new UnsupportedOperationException("Function "+funcCall.funcName+" cannot be evaluated natively");
+      }
+      if(!supported)
+        throw new UnsupportedOperationException("Function "+funcCall.funcName+" cannot be evaluated natively with "+
+                                                numArgs+" arguments");
+      for(AST.ASTNode param : funcCall.params)
+        if(!(param instanceof AST.dataExp))
+          throw new UnsupportedOperationException("Function "+funcCall.funcName+" cannot be evaluated natively");
+    }
+    List<AST.range> ranges = null;
+    if(n instanceof AST.forall)
+      ranges = ((AST.forall)n).ranges;
+    else if(n instanceof AST.probabilityItems)
+      ranges = ((AST.probabilityItems)n).ranges;
+    else if(n instanceof AST.expectationItems)
+      ranges = ((AST.expectationItems)n).ranges;
+    if(ranges != null)
+      for(AST.range range : ranges)
+        if(range.coll.type != null && range.coll.type.baseType == AST.dataType.MATRIX)
+          throw new UnsupportedOperationException("Ranges over matrices cannot be evaluated natively");
+    for(AST.ASTNode child : AST.children(n))
+      checkSupported(child);
+  }
+
+  /* Read the data for a check of the given spec, or return null at the end of the data */
+
+  public static Record readRecord(Value.Tokens tokens, AST.spec spec) throws IOException {
+    if(tokens.peek() == null)
+      return null;
+    AST.dataType inputType = null, outputType = null;
+    for(AST.typeDecl typeDecl : spec.typeDecls) {
+      if(typeDecl.name.equals("Input"))
+        inputType = typeDecl.type;
+      if(typeDecl.name.equals("Output"))
+        outputType = typeDecl.type;
+    }
+    Record record = new Record();
+    tokens.expect("config");
+    int numParams = tokens.nextCount();
+    for(int i=0; i<numParams; ++i) {
+      String name = tokens.next();
+      record.config.put(name,tokens.nextReal());
+    }
+    tokens.expect("runs");
+    record.runs = tokens.nextCount();
+    tokens.expect("inputs");
+    record.inputs = tokens.nextCount();
+    if("input".equals(tokens.peek())) {
+      tokens.next();
+      record.input = Value.read(tokens,inputType);
+    }
+    tokens.expect("outputs");
+    int numOutputs = tokens.nextCount();
+    for(int i=0; i<numOutputs; ++i)
+      record.outputs.add(Value.read(tokens,outputType));
+    return record;
+  }
+
+  /* Check the accuracy specification against the data of one record */
+
+  public Verdict check(Record record) {
+    env = new HashMap<String,Slot>();
+    config = record.config;
+    pValues = new ArrayList<Double>();
+    loopDepth = 0;
+    switch(specType) {
+      case ITEMS:
+        if(record.outputs.size() != 1)
+          throw new UnsupportedOperationException("Records of specs over items need exactly one output, found "+
+                                                  record.outputs.size());
+        slot("Input").set(record.input);
+        slot("Output").set(record.outputs.get(0));
+        break;
+      case RUNS:
+        slot("Input").set(record.input);
+        slot("Runs").set(record.runs);
+        slot("Output").set(Value.List.of(record.outputs));
+        break;
+      case INPUTS:
+        slot("Runs").set(record.runs);
+        slot("Inputs").set(record.inputs);
+        slot("Output").set(Value.List.of(record.outputs));
+        break;
+      default:
+        assert(false);
+    }
+    Verdict verdict = new Verdict();
+    verdict.passed = evalBool(spec.exp,false) != 0;
+    verdict.pValues = pValues;
+    return verdict;
+  }
+
+  /* Check every record in the data and print one verdict line per record
+     Malformed data and failures while checking a record are raised as an
+     IOException naming the record (counted from 1)
+  */
+
+  public static void run(Checker checker, AST.spec spec, Reader data, PrintStream out) throws IOException {
+    Value.Tokens tokens = new Value.Tokens(data);
+    for(int number=1; ; ++number) {
+      try{
+        Record record = readRecord(tokens,spec);
+        if(record == null)
+          break;
+        out.println(checker.check(record));
+      }catch(IOException | RuntimeException e){
+        String message = e.getMessage() != null ? e.getMessage() : e.toString();
+        throw new IOException("Record "+number+": "+message,e);
+      }
+    }
+  }
+
+  private Slot slot(String name) {
+    Slot s = env.get(name);
+    if(s == null) {
+      s = new Slot();
+      env.put(name,s);
+    }
+    return s;
+  }
+
+  private void reportPValue(double p) {
+    if(loopDepth == 0)
+      pValues.add(p);
+  }
+
+  static String alternative(String op) {
+    if(op.equals("=="))
+      return "two-sided";
+    else if(op.charAt(0) == '>')
+      return "less";
+    else if(op.charAt(0) == '<')
+      return "greater";
+    throw new UnsupportedOperationException("Operator "+op+" cannot be used with a probability");
+  }
+
+  private double binomialResult(long count, long trials, double prob, String op, boolean returnPVal) {
+    double p = Stats.binomialTest(count,trials,prob,alternative(op));
+    reportPValue(p);
+    if(returnPVal)
+      return p;
+    return p >= 0.05 ? 1 : 0;
+  }
+
+  private double expectationResult(double[] samples, int n, double expVal, String op, boolean returnPVal) {
+    double[] t = Stats.ttest1samp(samples,n,expVal);
+    reportPValue(t[1]);
+    if(returnPVal) {
+      if(op.equals("=="))
+        return t[1];
+      throw new UnsupportedOperationException("Only equality of expectations can be combined with other tests");
+    }
+    if(!op.equals("==") && op.charAt(0) != '>' && op.charAt(0) != '<')
+      throw new UnsupportedOperationException("Operator "+op+" cannot be used with an expectation");
+    return Checker.expectationHolds(t,op) ? 1 : 0;
+  }
+
+  /* Iterate over the cross product of the given ranges, starting at range i */
+
+  private boolean iterate(List<AST.range> ranges, int i, RangeBody body) {
+    if(i == ranges.size())
+      return body.visit();
+    AST.range range = ranges.get(i);
+    Slot item = slot(((AST.varId)range.item).name);
+    Value coll = evalData(range.coll);
+    if(range.type == AST.range.INDEX) {
+      int size = size(coll);
+      for(int k=0; k<size; ++k) {
+        item.set(k);
+        if(!iterate(ranges,i+1,body))
+          return false;
+      }
+      return true;
+    }
+    if(coll instanceof Value.Map) {
+      //iterating over a map iterates over its keys, which are already unique
+      for(Value key : new ArrayList<Value>(((Value.Map)coll).map.keySet())) {
+        item.set(key);
+        if(!iterate(ranges,i+1,body))
+          return false;
+      }
+      return true;
+    }
+    Value.List list = (Value.List)coll;
+    if(list.reals != null) {
+      double[] reals = list.reals;
+      if(range.type == AST.range.UNIQUE) {
+        reals = Arrays.copyOf(reals,reals.length);
+        Arrays.sort(reals);
+      }
+      for(int k=0; k<reals.length; ++k) {
+        if(range.type == AST.range.UNIQUE && k > 0 && reals[k] == reals[k-1])
+          continue;
+        item.set(reals[k]);
+        if(!iterate(ranges,i+1,body))
+          return false;
+      }
+    } else {
+      Iterable<Value> items = Arrays.asList(list.items);
+      if(range.type == AST.range.UNIQUE)
+        items = new LinkedHashSet<Value>(Arrays.asList(list.items));
+      for(Value v : items) {
+        item.set(v);
+        if(!iterate(ranges,i+1,body))
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /* Evaluate a boolean expression
+     If returnPVal is true, returns the p value of the expression, assuming it is a statistical test
+     If returnPVal is false, returns 1 if the expression holds and 0 otherwise
+  */
+
+  private double evalBool(AST.boolExp exp, boolean returnPVal) {
+    if(exp instanceof AST.forall) {
+      AST.forall forall = (AST.forall)exp;
+      if(forall.specType() == AST.SpecType.RUNS) {
+        //combine the p values of all tests
+        double[][] pVals = {new double[16]};
+        int[] count = {0};
+        loopDepth++;
+        iterate(forall.ranges,0,() -> {
+          if(count[0] == pVals[0].length)
+            pVals[0] = Arrays.copyOf(pVals[0],2*count[0]);
+          pVals[0][count[0]++] = evalBool(forall.exp,true);
+          return true;
+        });
+        loopDepth--;
+        double p = Stats.combinePValues(pVals[0],count[0]);
+        reportPValue(p);
+        if(returnPVal)
+          return p;
+        return p >= 0.05 ? 1 : 0;
+      }
+      boolean[] holds = {true};
+      loopDepth++;
+      iterate(forall.ranges,0,() -> {
+        holds[0] = evalBool(forall.exp,false) != 0;
+        return holds[0];
+      });
+      loopDepth--;
+      return holds[0] ? 1 : 0;
+    } else if(exp instanceof AST.let) {
+      AST.let let = (AST.let)exp;
+      Value val = evalData(let.value);
+      slot(let.name).set(val);
+      return evalBool(let.exp,returnPVal);
+    } else if(exp instanceof AST.isInData) {
+      AST.isInData isInData = (AST.isInData)exp;
+      Value item = evalData(isInData.item);
+      Value data = evalData(isInData.data);
+      boolean result;
+      if(data instanceof Value.Map) {
+        Value v = ((Value.Map)data).map.get(item);
+        result = v != null && v.truthy();
+      } else {
+        result = contains((Value.List)data,item);
+      }
+      return result ? 1 : 0;
+    } else if(exp instanceof AST.approxEq) {
+      AST.approxEq approxEq = (AST.approxEq)exp;
+      AST.varId lhs = (AST.varId)approxEq.e1;
+      assert(lhs.name.equals("Output"));
+      double rhs = evalReal(approxEq.e2);
+      Value.List outputs = (Value.List)slot("Output").get();
+      int n = outputs.size();
+      double[] diffs = new double[n];
+      for(int i=0; i<n; ++i)
+        diffs[i] = (outputs.reals != null ? outputs.reals[i] : outputs.items[i].asReal())-rhs;
+      double p = Stats.wilcoxon(diffs,n);
+      reportPValue(p);
+      if(returnPVal)
+        return p;
+      return p >= 0.05 ? 1 : 0;
+    } else if(exp instanceof AST.comparison) {
+      return evalComparison((AST.comparison)exp,returnPVal);
+    } else if(exp instanceof AST.boolAndOr) {
+      AST.boolAndOr boolAndOr = (AST.boolAndOr)exp;
+      if(returnPVal) {
+        double p1 = evalBool(boolAndOr.e1,true);
+        double p2 = evalBool(boolAndOr.e2,true);
+        return boolAndOr.op.equals("or") ? Math.max(p1,p2) : Math.min(p1,p2);
+      }
+      boolean b1 = evalBool(boolAndOr.e1,false) != 0;
+      if(boolAndOr.op.equals("or") ? b1 : !b1)
+        return b1 ? 1 : 0;
+      return evalBool(boolAndOr.e2,false);
+    } else if(exp instanceof AST.boolNot) {
+      double inner = evalBool(((AST.boolNot)exp).exp,returnPVal);
+      if(returnPVal)
+        return 1-inner;
+      return inner != 0 ? 0 : 1;
+    }
+    throw new UnsupportedOperationException("Unknown boolean expression");
+  }
+
+  /* Evaluate a comparison; comparisons with probabilities and expectations are statistical tests */
+
+  private double evalComparison(AST.comparison comparison, boolean returnPVal) {
+    if(comparison.e1 instanceof AST.probabilityInputs || comparison.e1 instanceof AST.probabilityRuns) {
+      boolean overInputs = comparison.e1 instanceof AST.probabilityInputs;
+      AST.boolExp body = overInputs ? ((AST.probabilityInputs)comparison.e1).exp : ((AST.probabilityRuns)comparison.e1).exp;
+      long trials = (long)slot(overInputs ? "Inputs" : "Runs").getReal();
+      Slot output = slot("Output");
+      Value.List outputs = (Value.List)output.get();
+      //a Probability over inputs tests the output of the first run of each input
+      int stride = overInputs ? (int)slot("Runs").getReal() : 1;
+      long count = 0;
+      loopDepth++;
+      for(int t=0; t<trials; ++t) {
+        output.set(outputs.get(t*stride));
+        if(evalBool(body,false) != 0)
+          count++;
+      }
+      loopDepth--;
+      output.set(outputs);
+      return binomialResult(count,trials,evalReal(comparison.e2),comparison.op,returnPVal);
+    } else if(comparison.e1 instanceof AST.expectationInputs || comparison.e1 instanceof AST.expectationRuns) {
+      AST.dataExp expInExp = comparison.e1 instanceof AST.expectationInputs ?
+        ((AST.expectationInputs)comparison.e1).exp : ((AST.expectationRuns)comparison.e1).exp;
+      assert((expInExp instanceof AST.varId) && ((AST.varId)expInExp).name.equals("Output"));
+      Value.List outputs = (Value.List)slot("Output").get();
+      double[] samples = outputs.reals;
+      if(samples == null) {
+        samples = new double[outputs.size()];
+        for(int i=0; i<samples.length; ++i)
+          samples[i] = outputs.items[i].asReal();
+      }
+      return expectationResult(samples,samples.length,evalReal(comparison.e2),comparison.op,returnPVal);
+    } else if(comparison.e1 instanceof AST.probabilityItems) {
+      AST.probabilityItems probItems = (AST.probabilityItems)comparison.e1;
+      long[] counts = {0,0};
+      loopDepth++;
+      iterate(probItems.ranges,0,() -> {
+        counts[1]++;
+        if(evalBool(probItems.exp,false) != 0)
+          counts[0]++;
+        return true;
+      });
+      loopDepth--;
+      return binomialResult(counts[0],counts[1],evalReal(comparison.e2),comparison.op,returnPVal);
+    } else if(comparison.e1 instanceof AST.expectationItems) {
+      AST.expectationItems expItems = (AST.expectationItems)comparison.e1;
+      double[][] samples = {new double[16]};
+      int[] count = {0};
+      loopDepth++;
+      iterate(expItems.ranges,0,() -> {
+        if(count[0] == samples[0].length)
+          samples[0] = Arrays.copyOf(samples[0],2*count[0]);
+        samples[0][count[0]++] = evalReal(expItems.exp);
+        return true;
+      });
+      loopDepth--;
+      return expectationResult(samples[0],count[0],evalReal(comparison.e2),comparison.op,returnPVal);
+    }
+    boolean result;
+    if(isReal(comparison.e1) && isReal(comparison.e2)) {
+      double num1 = evalReal(comparison.e1);
+      double num2 = evalReal(comparison.e2);
+      switch(comparison.op) {
+        case "==": result = num1 == num2; break;
+        case "!=": result = num1 != num2; break;
+        case ">": result = num1 > num2; break;
+        case "<": result = num1 < num2; break;
+        case ">=": result = num1 >= num2; break;
+        case "<=": result = num1 <= num2; break;
+        default: throw new UnsupportedOperationException("Unknown comparison "+comparison.op);
+      }
+    } else if(comparison.op.equals("==") || comparison.op.equals("!=")) {
+      result = evalData(comparison.e1).equals(evalData(comparison.e2)) == comparison.op.equals("==");
+    } else {
+      throw new UnsupportedOperationException("Only real values can be ordered");
+    }
+    return result ? 1 : 0;
+  }
+
+  private static boolean isReal(AST.dataExp exp) {
+    return exp.type != null && exp.type.baseType == AST.dataType.REAL;
+  }
+
+  private static boolean contains(Value.List list, Value item) {
+    if(list.reals != null) {
+      if(!(item instanceof Value.Real))
+        return false;
+      double v = ((Value.Real)item).val;
+      for(double r : list.reals)
+        if(r == v)
+          return true;
+      return false;
+    }
+    for(Value v : list.items)
+      if(v.equals(item))
+        return true;
+    return false;
+  }
+
+  private static int size(Value coll) {
+    if(coll instanceof Value.List)
+      return ((Value.List)coll).size();
+    if(coll instanceof Value.Map)
+      return ((Value.Map)coll).map.size();
+    if(coll instanceof Value.Matrix)
+      return ((Value.Matrix)coll).rows.length;
+    throw new UnsupportedOperationException("Value has no size");
+  }
+
+  private double constant(AST.realConst exp) {
+    Double val = constants.get(exp);
+    if(val == null) {
+      val = Double.parseDouble(exp.val);
+      constants.put(exp,val);
+    }
+    return val;
+  }
+
+  private Slot variable(String name) {
+    Slot s = env.get(name);
+    if(s != null)
+      return s;
+    //undeclared variables are assumed to be configuration parameters
+    Double val = config.get(name);
+    if(val == null)
+      throw new UnsupportedOperationException("Unknown configuration parameter "+name);
+    s = slot(name);
+    s.set(val);
+    return s;
+  }
+
+  /* Evaluate a real valued data expression without boxing */
+
+  private double evalReal(AST.dataExp exp) {
+    if(exp instanceof AST.realConst) {
+      return constant((AST.realConst)exp);
+    } else if(exp instanceof AST.varId) {
+      return variable(((AST.varId)exp).name).getReal();
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      Value coll = evalData(lookup.coll);
+      if(coll instanceof Value.List) {
+        Value.List list = (Value.List)coll;
+        int index = (int)evalReal(lookup.key);
+        return list.reals != null ? list.reals[index] : list.items[index].asReal();
+      }
+      return evalData(exp).asReal();
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      if(isReal(dataOp.e1) && isReal(dataOp.e2))
+        return arith(dataOp.op,evalReal(dataOp.e1),evalReal(dataOp.e2));
+      return evalData(exp).asReal();
+    } else if(exp instanceof AST.dataSize) {
+      return size(evalData(((AST.dataSize)exp).coll));
+    } else if(exp instanceof AST.funcCall) {
+      return call((AST.funcCall)exp);
+    }
+    return evalData(exp).asReal();
+  }
+
+  /* Evaluate a data expression of any type */
+
+  private Value evalData(AST.dataExp exp) {
+    if(exp instanceof AST.realConst) {
+      return new Value.Real(constant((AST.realConst)exp));
+    } else if(exp instanceof AST.varId) {
+      return variable(((AST.varId)exp).name).get();
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      Value coll = evalData(lookup.coll);
+      if(coll instanceof Value.List)
+        return ((Value.List)coll).get((int)evalReal(lookup.key));
+      if(coll instanceof Value.Map) {
+        Value v = ((Value.Map)coll).map.get(evalData(lookup.key));
+        return v != null ? v : new Value.Real(0);
+      }
+      throw new UnsupportedOperationException("Only lists and maps can be indexed");
+    } else if(exp instanceof AST.dataExpList) {
+      List<Value> items = new ArrayList<Value>();
+      for(AST.dataExp item : ((AST.dataExpList)exp).list)
+        items.add(evalData(item));
+      return Value.List.of(items);
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      Value v1 = evalData(dataOp.e1);
+      Value v2 = evalData(dataOp.e2);
+      if(v1 instanceof Value.Real && v2 instanceof Value.Real)
+        return new Value.Real(arith(dataOp.op,v1.asReal(),v2.asReal()));
+      if(v1 instanceof Value.Matrix && v2 instanceof Value.Matrix)
+        return matrixOp(dataOp.op,((Value.Matrix)v1).rows,((Value.Matrix)v2).rows);
+      throw new UnsupportedOperationException("Operator "+dataOp.op+" is not supported for these operands");
+    } else if(exp instanceof AST.dataSize) {
+      return new Value.Real(size(evalData(((AST.dataSize)exp).coll)));
+    } else if(exp instanceof AST.funcCall) {
+      return new Value.Real(call((AST.funcCall)exp));
+    }
+    throw new UnsupportedOperationException("Expression cannot be evaluated as data");
+  }
+
+  private static double arith(String op, double a, double b) {
+    switch(op) {
+      case "+": return a+b;
+      case "-": return a-b;
+      case "*": return a*b;
+      case "/": return a/b;
+      case "**": return Math.pow(a,b);
+      default: throw new UnsupportedOperationException("Unknown operator "+op);
+    }
+  }
+
+  static Value matrixOp(String op, double[][] a, double[][] b) {
+    int rows = a.length, cols = b.length > 0 ? b[0].length : 0;
+    double[][] result;
+    if(op.equals("*")) {
+      result = new double[rows][cols];
+      for(int i=0; i<rows; ++i)
+        for(int k=0; k<b.length; ++k) {
+          double aik = a[i][k];
+          for(int j=0; j<cols; ++j)
+            result[i][j] += aik*b[k][j];
+        }
+    } else if(op.equals("+") || op.equals("-")) {
+      double sign = op.equals("+") ? 1 : -1;
+      result = new double[rows][];
+      for(int i=0; i<rows; ++i) {
+        result[i] = new double[a[i].length];
+        for(int j=0; j<a[i].length; ++j)
+          result[i][j] = a[i][j]+sign*b[i][j];
+      }
+    } else {
+      throw new UnsupportedOperationException("Operator "+op+" is not supported for matrices");
+    }
+    return new Value.Matrix(result);
+  }
+
+  /* Call a function; only common math functions are available natively */
+
+  private double call(AST.funcCall funcCall) {
+    double[] args = new double[funcCall.params.size()];
+    for(int i=0; i<args.length; ++i)
+      args[i] = evalReal((AST.dataExp)funcCall.params.get(i));
+    switch(funcCall.funcName) {
+      case "abs": return Math.abs(args[0]);
+      case "sqrt": return Math.sqrt(args[0]);
+      case "exp": return Math.exp(args[0]);
+      case "log": return args.length > 1 ? Math.log(args[0])/Math.log(args[1]) : Math.log(args[0]);
+      case "log2": return Math.log(args[0])/Math.log(2);
+      case "log10": return Math.log10(args[0]);
+      case "floor": return Math.floor(args[0]);
+      case "ceil": return Math.ceil(args[0]);
+      case "pow": return Math.pow(args[0],args[1]);
+      case "min": {
+        double m = args[0];
+        for(double a : args) m = Math.min(m,a);
+        return m;
+      }
+      case "max": {
+        double m = args[0];
+        for(double a : args) m = Math.max(m,a);
+        return m;
+      }
+      default:
+        throw new UnsupportedOperationException("Function "+funcCall.funcName+" cannot be evaluated natively");
+    }
+  }
+}
@@ -0,0 +1,594 @@
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.LinkedHashSet;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/* Java code generation class
+   Second code generation target: translates the accuracy specification into a
+   Java class implementing Checker, which is compiled in memory with javax.tools
+   and loaded into the running JVM, where HotSpot can JIT it
+   Follows the same structure as CodeGen: each expression prints the statements
+   it needs and returns a Java expression holding its result
+   Data is kept in static Java types derived from the Semantic types:
+   real - double, list of real - double[], other lists - Value[],
+   map - Map<Value,Value>, matrix - double[][]
+   so ranges over real lists become counted loops over primitive arrays
+   Throws UnsupportedOperationException for specs it cannot translate
+*/
+
+public class JavaCodeGen {
+
+  private static int classCount = 0;
+
+  private AST.spec spec;
+  private AST.SpecType specType;
+  private int tempCount;
+  private int depth;
+  private StringBuilder body;
+  private Map<String,String> locals;
+  private Set<String> configVars;
+  private boolean usesInput;
+  private String className;
+  private String funcName;
+
+  public JavaCodeGen(AST.spec s) {
+    spec = s;
+    specType = spec.specType();
+    switch(specType) {
+      case ITEMS:
+        funcName = "perRunFunc";
+        break;
+      case RUNS:
+        funcName = "perInpFunc";
+        break;
+      case INPUTS:
+        funcName = "perConfigFunc";
+        break;
+      default:
+        throw new UnsupportedOperationException("Spec has no accuracy specification that can be compiled");
+    }
+    synchronized(JavaCodeGen.class) {
+      className = "AxProfChecker_"+funcName+"_"+(classCount++);
+    }
+  }
+
+  /* Print a statement at the current indentation */
+
+  private void line(int indents, String text) {
+    for(int i=0; i<indents; ++i)
+      body.append("  ");
+    body.append(text).append('\n');
+  }
+
+  private String temp(String prefix) {
+    return prefix+(tempCount++);
+  }
+
+  /* Java type used for values of the given spec type */
+
+  private static String javaType(AST.dataType type) {
+    if(type == null)
+      throw new UnsupportedOperationException("Expression has no type");
+    switch(type.baseType) {
+      case AST.dataType.REAL:
+        return "double";
+      case AST.dataType.LIST:
+        return type.kType.baseType == AST.dataType.REAL ? "double[]" : "Value[]";
+      case AST.dataType.MAP:
+        return "java.util.Map<Value,Value>";
+      case AST.dataType.MATRIX:
+        return "double[][]";
+      default:
+        throw new UnsupportedOperationException("Unknown type");
+    }
+  }
+
+  /* Expression converting a Value expression to the Java type of the given spec type */
+
+  private static String unbox(String value, AST.dataType type) {
+    switch(javaType(type)) {
+      case "double":
+        return "Checker.asReal("+value+")";
+      case "double[]":
+        return "Checker.asReals("+value+")";
+      case "Value[]":
+        return "Checker.asItems("+value+")";
+      case "double[][]":
+        return "Checker.asMatrix("+value+")";
+      default:
+        return "Checker.asMap("+value+")";
+    }
+  }
+
+  private static AST.dataType declaredType(AST.spec spec, String name) {
+    for(AST.typeDecl typeDecl : spec.typeDecls)
+      if(typeDecl.name.equals(name))
+        return typeDecl.type;
+    return null;
+  }
+
+  /* Bind a spec variable to a new Java local; returns the previous binding */
+
+  private String bind(String name, String local) {
+    return locals.put(name,local);
+  }
+
+  private void unbind(String name, String previous) {
+    if(previous == null)
+      locals.remove(name);
+    else
+      locals.put(name,previous);
+  }
+
+  /* Generate the source of the checker class */
+
+  public String generate() {
+    tempCount = 0;
+    depth = 0;
+    body = new StringBuilder();
+    locals = new HashMap<String,String>();
+    configVars = new LinkedHashSet<String>();
+    usesInput = false;
+    AST.dataType inputType = declaredType(spec,"Input");
+    AST.dataType outputType = declaredType(spec,"Output");
+    //the input is optional in records, so it is only converted if the spec uses it
+    if(specType == AST.SpecType.ITEMS || specType == AST.SpecType.RUNS)
+      locals.put("Input","v_Input");
+    if(specType == AST.SpecType.ITEMS) {
+      line(2,javaType(outputType)+" v_Output = "+unbox("record.outputs.get(0)",outputType)+";");
+      locals.put("Output","v_Output");
+    } else {
+      line(2,"double v_Runs = record.runs;");
+      locals.put("Runs","v_Runs");
+      line(2,"java.util.List<Value> outputs = record.outputs;");
+      if(specType == AST.SpecType.INPUTS) {
+        line(2,"double v_Inputs = record.inputs;");
+        locals.put("Inputs","v_Inputs");
+      }
+    }
+    String result = genBool(spec.exp,2,false);
+    line(2,"return "+result+";");
+    StringBuilder source = new StringBuilder();
+    source.append("public class ").append(className).append(" implements Checker {\n\n");
+    source.append("  public Interpreter.Verdict check(Interpreter.Record record) {\n");
+    source.append("    Interpreter.Verdict verdict = new Interpreter.Verdict();\n");
+    source.append("    verdict.passed = ").append(funcName).append("(record,verdict.pValues);\n");
+    source.append("    return verdict;\n  }\n\n");
+    source.append("  private static boolean ").append(funcName);
+    source.append("(Interpreter.Record record, java.util.List<Double> pValues) {\n");
+    source.append("    java.util.Map<String,Double> config = record.config;\n");
+    for(String name : configVars)
+      source.append("    double c_").append(name.replace('.','_')).append(" = Checker.config(config,\"").append(name).append("\");\n");
+    if(usesInput)
+      source.append("    ").append(javaType(inputType)).append(" v_Input = ").append(unbox("record.input",inputType)).append(";\n");
+    source.append(body);
+    source.append("  }\n}\n");
+    return source.toString();
+  }
+
+  /* Print loops over the given ranges and return the number of loops opened
+     Loop variables are bound until closeRanges is called
+  */
+
+  private List<String> openRanges(List<AST.range> ranges, int indents, String label) {
+    List<String> previous = new ArrayList<String>();
+    for(int i=0; i<ranges.size(); ++i) {
+      AST.range range = ranges.get(i);
+      String itemName = ((AST.varId)range.item).name;
+      String coll = genData(range.coll,indents+i);
+      String collType = javaType(range.coll.type);
+      String collTemp = temp("c");
+      String index = temp("i");
+      String local = "v_"+itemName.replace('.','_')+"_"+(tempCount++);
+      String prefix = (i==0 && label!=null) ? label+": " : "";
+      if(range.type == AST.range.INDEX) {
+        line(indents+i,collType+" "+collTemp+" = "+coll+";");
+        line(indents+i,prefix+"for(int "+index+"=0; "+index+"<"+collTemp+"."+sizeOf(range.coll.type)+"; ++"+index+") {");
+        line(indents+i+1,"double "+local+" = "+index+";");
+      } else if(range.coll.type.baseType == AST.dataType.MAP) {
+        line(indents+i,collType+" "+collTemp+" = "+coll+";");
+        line(indents+i,prefix+"for(Value "+index+" : "+collTemp+".keySet()) {");
+        line(indents+i+1,javaType(range.item.type)+" "+local+" = "+unbox(index,range.item.type)+";");
+      } else if(range.coll.type.baseType == AST.dataType.LIST) {
+        if(range.type == AST.range.UNIQUE)
+          coll = "Checker.uniques("+coll+")";
+        line(indents+i,collType+" "+collTemp+" = "+coll+";");
+        line(indents+i,prefix+"for(int "+index+"=0; "+index+"<"+collTemp+".length; ++"+index+") {");
+        String element = collTemp+"["+index+"]";
+        if(collType.equals("Value[]"))
+          element = unbox(element,range.item.type);
+        line(indents+i+1,javaType(range.item.type)+" "+local+" = "+element+";");
+      } else {
+        throw new UnsupportedOperationException("Range over a value that is not a collection");
+      }
+      previous.add(bind(itemName,local));
+    }
+    return previous;
+  }
+
+  private void closeRanges(List<AST.range> ranges, List<String> previous, int indents) {
+    for(int i=ranges.size()-1; i>=0; --i) {
+      unbind(((AST.varId)ranges.get(i).item).name,previous.get(i));
+      line(indents+i,"}");
+    }
+  }
+
+  private static String sizeOf(AST.dataType type) {
+    return type.baseType == AST.dataType.MAP ? "size()" : "length";
+  }
+
+  private String reportPValue(String p, int indents) {
+    if(depth == 0)
+      line(indents,"pValues.add("+p+");");
+    return p;
+  }
+
+  private static String pValueResult(String p, boolean returnPVal) {
+    return returnPVal ? p : "("+p+">=0.05)";
+  }
+
+  /* Generate code for a boolean expression
+     If returnPVal is true, returns a double expression holding the p value
+     If returnPVal is false, returns a boolean expression
+  */
+
+  private String genBool(AST.boolExp exp, int indents, boolean returnPVal) {
+    if(exp instanceof AST.forall) {
+      AST.forall forall = (AST.forall)exp;
+      int numRanges = forall.ranges.size();
+      if(forall.specType() == AST.SpecType.RUNS) {
+        String pVals = temp("pv"), count = temp("n");
+        line(indents,"double[] "+pVals+" = new double[16];");
+        line(indents,"int "+count+" = 0;");
+        depth++;
+        List<String> previous = openRanges(forall.ranges,indents,null);
+        String bodyResult = genBool(forall.exp,indents+numRanges,true);
+        line(indents+numRanges,"if("+count+" == "+pVals+".length) "+pVals+" = Checker.grow("+pVals+");");
+        line(indents+numRanges,pVals+"["+count+"++] = "+bodyResult+";");
+        closeRanges(forall.ranges,previous,indents);
+        depth--;
+        String p = temp("p");
+        line(indents,"double "+p+" = Stats.combinePValues("+pVals+","+count+");");
+        return pValueResult(reportPValue(p,indents),returnPVal);
+      }
+      String result = temp("r"), label = temp("l");
+      line(indents,"boolean "+result+" = true;");
+      depth++;
+      List<String> previous = openRanges(forall.ranges,indents,label);
+      String bodyResult = genBool(forall.exp,indents+numRanges,false);
+      line(indents+numRanges,"if(!"+bodyResult+") { "+result+" = false; break "+label+"; }");
+      closeRanges(forall.ranges,previous,indents);
+      depth--;
+      return returnPVal ? "("+result+" ? 1.0 : 0.0)" : result;
+    } else if(exp instanceof AST.let) {
+      AST.let let = (AST.let)exp;
+      String val = genData(let.value,indents);
+      String local = "v_"+let.name.replace('.','_')+"_"+(tempCount++);
+      line(indents,javaType(let.value.type)+" "+local+" = "+val+";");
+      String previous = bind(let.name,local);
+      String result = genBool(let.exp,indents,returnPVal);
+      unbind(let.name,previous);
+      return result;
+    } else if(exp instanceof AST.isInData) {
+      AST.isInData isInData = (AST.isInData)exp;
+      String item = genData(isInData.item,indents);
+      String data = genData(isInData.data,indents);
+      String result;
+      if(isInData.data.type.baseType == AST.dataType.MAP) {
+        result = "Checker.truthy("+data+".get(Checker.box("+item+")))";
+      } else if(javaType(isInData.data.type).equals("double[]")) {
+        if(!javaType(isInData.item.type).equals("double"))
+          result = "false";
+        else
+          result = "Checker.contains("+data+","+item+")";
+      } else {
+        result = "Checker.contains("+data+",Checker.box("+item+"))";
+      }
+      return returnPVal ? "("+result+" ? 1.0 : 0.0)" : result;
+    } else if(exp instanceof AST.approxEq) {
+      AST.approxEq approxEq = (AST.approxEq)exp;
+      AST.varId lhs = (AST.varId)approxEq.e1;
+      assert(lhs.name.equals("Output"));
+      if(specType == AST.SpecType.ITEMS)
+        throw new UnsupportedOperationException("Approximate equality needs the outputs of all runs");
+      String rhs = genData(approxEq.e2,indents);
+      String p = temp("p");
+      line(indents,"double[] "+p+"d = Checker.minus(Checker.asReals(Value.List.of(outputs)),"+rhs+");");
+      line(indents,"double "+p+" = Stats.wilcoxon("+p+"d,"+p+"d.length);");
+      return pValueResult(reportPValue(p,indents),returnPVal);
+    } else if(exp instanceof AST.comparison) {
+      return genComparison((AST.comparison)exp,indents,returnPVal);
+    } else if(exp instanceof AST.boolAndOr) {
+      AST.boolAndOr boolAndOr = (AST.boolAndOr)exp;
+      String bool1 = genBool(boolAndOr.e1,indents,returnPVal);
+      if(returnPVal) {
+        String bool2 = genBool(boolAndOr.e2,indents,returnPVal);
+        return (boolAndOr.op.equals("or") ? "Math.max(" : "Math.min(")+bool1+","+bool2+")";
+      }
+      //statements of the second operand only run if the first does not decide the result, as in the interpreter
+      String result = temp("r");
+      line(indents,"boolean "+result+" = "+bool1+";");
+      line(indents,"if("+(boolAndOr.op.equals("or") ? "!" : "")+result+") {");
+      String bool2 = genBool(boolAndOr.e2,indents+1,returnPVal);
+      line(indents+1,result+" = "+bool2+";");
+      line(indents,"}");
+      return result;
+    } else if(exp instanceof AST.boolNot) {
+      String inner = genBool(((AST.boolNot)exp).exp,indents,returnPVal);
+      return returnPVal ? "(1-"+inner+")" : "(!"+inner+")";
+    }
+    throw new UnsupportedOperationException("Unknown boolean expression");
+  }
+
+  private String genComparison(AST.comparison comparison, int indents, boolean returnPVal) {
+    if(comparison.e1 instanceof AST.probabilityInputs || comparison.e1 instanceof AST.probabilityRuns) {
+      boolean overInputs = comparison.e1 instanceof AST.probabilityInputs;
+      if(specType == AST.SpecType.ITEMS)
+        throw new UnsupportedOperationException("Probability over runs or inputs in a per run checker");
+      AST.boolExp probBody = overInputs ? ((AST.probabilityInputs)comparison.e1).exp : ((AST.probabilityRuns)comparison.e1).exp;
+      String counter = temp("cnt"), index = temp("t"), output = "v_Output_"+(tempCount++);
+      AST.dataType outputType = declaredType(spec,"Output");
+      line(indents,"long "+counter+" = 0;");
+      line(indents,"for(int "+index+"=0; "+index+"<"+locals.get(overInputs ? "Inputs" : "Runs")+"; ++"+index+") {");
+      //a Probability over inputs tests the output of the first run of each input
+      String position = overInputs ? index+"*(int)"+locals.get("Runs") : index;
+      line(indents+1,javaType(outputType)+" "+output+" = "+unbox("outputs.get("+position+")",outputType)+";");
+      String previous = bind("Output",output);
+      depth++;
+      String bodyResult = genBool(probBody,indents+1,false);
+      depth--;
+      unbind("Output",previous);
+      line(indents+1,"if("+bodyResult+") "+counter+"++;");
+      line(indents,"}");
+      String rhs = genData(comparison.e2,indents);
+      String p = temp("p");
+      line(indents,"double "+p+" = Stats.binomialTest("+counter+",(long)"+locals.get(overInputs ? "Inputs" : "Runs")+","+rhs+",\""+Interpreter.alternative(comparison.op)+"\");");
+      return pValueResult(reportPValue(p,indents),returnPVal);
+    } else if(comparison.e1 instanceof AST.expectationInputs || comparison.e1 instanceof AST.expectationRuns) {
+      AST.dataExp expInExp = comparison.e1 instanceof AST.expectationInputs ?
+        ((AST.expectationInputs)comparison.e1).exp : ((AST.expectationRuns)comparison.e1).exp;
+      if(!(expInExp instanceof AST.varId) || !((AST.varId)expInExp).name.equals("Output") || specType == AST.SpecType.ITEMS)
+        throw new UnsupportedOperationException("Expectation over runs or inputs must be of the output");
+      String rhs = genData(comparison.e2,indents);
+      String samples = temp("s");
+      line(indents,"double[] "+samples+" = Checker.asReals(Value.List.of(outputs));");
+      return genExpectation(samples,samples+".length",rhs,comparison.op,indents,returnPVal);
+    } else if(comparison.e1 instanceof AST.probabilityItems) {
+      AST.probabilityItems probItems = (AST.probabilityItems)comparison.e1;
+      String counter = temp("cnt"), trials = temp("trials");
+      line(indents,"long "+counter+" = 0, "+trials+" = 0;");
+      depth++;
+      List<String> previous = openRanges(probItems.ranges,indents,null);
+      int inner = indents+probItems.ranges.size();
+      String bodyResult = genBool(probItems.exp,inner,false);
+      line(inner,trials+"++;");
+      line(inner,"if("+bodyResult+") "+counter+"++;");
+      closeRanges(probItems.ranges,previous,indents);
+      depth--;
+      String rhs = genData(comparison.e2,indents);
+      String p = temp("p");
+      line(indents,"double "+p+" = Stats.binomialTest("+counter+","+trials+","+rhs+",\""+Interpreter.alternative(comparison.op)+"\");");
+      return pValueResult(reportPValue(p,indents),returnPVal);
+    } else if(comparison.e1 instanceof AST.expectationItems) {
+      AST.expectationItems expItems = (AST.expectationItems)comparison.e1;
+      String samples = temp("s"), count = temp("n");
+      line(indents,"double[] "+samples+" = new double[16];");
+      line(indents,"int "+count+" = 0;");
+      depth++;
+      List<String> previous = openRanges(expItems.ranges,indents,null);
+      int inner = indents+expItems.ranges.size();
+      String bodyResult = genData(expItems.exp,inner);
+      line(inner,"if("+count+" == "+samples+".length) "+samples+" = Checker.grow("+samples+");");
+      line(inner,samples+"["+count+"++] = "+bodyResult+";");
+      closeRanges(expItems.ranges,previous,indents);
+      depth--;
+      String rhs = genData(comparison.e2,indents);
+      return genExpectation(samples,count,rhs,comparison.op,indents,returnPVal);
+    }
+    String num1 = genData(comparison.e1,indents);
+    String num2 = genData(comparison.e2,indents);
+    String result;
+    if(javaType(comparison.e1.type).equals("double") && javaType(comparison.e2.type).equals("double")) {
+      result = "("+num1+comparison.op+num2+")";
+    } else if(comparison.op.equals("==") || comparison.op.equals("!=")) {
+      result = "("+(comparison.op.equals("!=") ? "!" : "")+"Checker.box("+num1+").equals(Checker.box("+num2+")))";
+    } else {
+      throw new UnsupportedOperationException("Only real values can be ordered");
+    }
+    return returnPVal ? "("+result+" ? 1.0 : 0.0)" : result;
+  }
+
+  private String genExpectation(String samples, String count, String expVal, String op, int indents, boolean returnPVal) {
+    String t = temp("tt");
+    line(indents,"double[] "+t+" = Stats.ttest1samp("+samples+","+count+","+expVal+");");
+    reportPValue(t+"[1]",indents);
+    if(returnPVal) {
+      if(!op.equals("=="))
+        throw new UnsupportedOperationException("Only equality of expectations can be combined with other tests");
+      return t+"[1]";
+    }
+    return "Checker.expectationHolds("+t+",\""+op+"\")";
+  }
+
+  /* Generate code for a data expression
+     Returns an expression of the Java type of the expression's spec type
+  */
+
+  private String genData(AST.dataExp exp, int indents) {
+    if(exp instanceof AST.realConst) {
+      return "("+Double.toString(Double.parseDouble(((AST.realConst)exp).val))+")";
+    } else if(exp instanceof AST.varId) {
+      String name = ((AST.varId)exp).name;
+      String local = locals.get(name);
+      if(local != null) {
+        if(local.equals("v_Input"))
+          usesInput = true;
+        return local;
+      }
+      if(name.equals("Output") || name.equals("Input"))
+        throw new UnsupportedOperationException(name+" cannot be used here");
+      //undeclared variables are assumed to be configuration parameters
+      configVars.add(name);
+      return "c_"+name.replace('.','_');
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      String coll = genData(lookup.coll,indents);
+      String key = genData(lookup.key,indents);
+      if(lookup.coll.type.baseType == AST.dataType.LIST) {
+        String element = coll+"[(int)"+key+"]";
+        if(javaType(lookup.coll.type).equals("Value[]"))
+          element = unbox(element,exp.type);
+        return element;
+      } else if(lookup.coll.type.baseType == AST.dataType.MAP) {
+        return unbox("Checker.get("+coll+",Checker.box("+key+"))",exp.type);
+      }
+      throw new UnsupportedOperationException("Only lists and maps can be indexed");
+    } else if(exp instanceof AST.dataExpList) {
+      List<AST.dataExp> list = ((AST.dataExpList)exp).list;
+      boolean reals = javaType(exp.type).equals("double[]");
+      StringBuilder result = new StringBuilder(reals ? "new double[]{" : "new Value[]{");
+      for(int i=0; i<list.size(); ++i) {
+        if(i>0)
+          result.append(",");
+        String item = genData(list.get(i),indents);
+        result.append(reals ? item : "Checker.box("+item+")");
+      }
+      return result.append("}").toString();
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      String num1 = genData(dataOp.e1,indents);
+      String num2 = genData(dataOp.e2,indents);
+      String t1 = javaType(dataOp.e1.type), t2 = javaType(dataOp.e2.type);
+      if(t1.equals("double") && t2.equals("double")) {
+        if(dataOp.op.equals("**"))
+          return "Math.pow("+num1+","+num2+")";
+        return "("+num1+dataOp.op+num2+")";
+      } else if(t1.equals("double[][]") && t2.equals("double[][]")) {
+        return "Checker.matrixOp(\""+dataOp.op+"\","+num1+","+num2+")";
+      }
+      throw new UnsupportedOperationException("Operator "+dataOp.op+" is not supported for these operands");
+    } else if(exp instanceof AST.dataSize) {
+      AST.dataSize dataSize = (AST.dataSize)exp;
+      return "((double)"+genData(dataSize.coll,indents)+"."+sizeOf(dataSize.coll.type)+")";
+    } else if(exp instanceof AST.funcCall) {
+      AST.funcCall funcCall = (AST.funcCall)exp;
+      List<String> args = new ArrayList<String>();
+      for(AST.ASTNode param : funcCall.params) {
+        AST.dataExp arg = (AST.dataExp)param;
+        if(!javaType(arg.type).equals("double"))
+          throw new UnsupportedOperationException("Function "+funcCall.funcName+" cannot be compiled");
+        args.add(genData(arg,indents));
+      }
+      String argStr = String.join(",",args);
+      switch(funcCall.funcName) {
+        case "abs": case "sqrt": case "exp": case "log10": case "floor": case "ceil": case "pow":
+          return "Math."+funcCall.funcName+"("+argStr+")";
+        case "log":
+          return args.size() > 1 ? "(Math.log("+args.get(0)+")/Math.log("+args.get(1)+"))" : "Math.log("+argStr+")";
+        case "log2":
+          return "(Math.log("+argStr+")/Math.log(2))";
+        case "min": case "max": {
+          String result = args.get(0);
+          for(int i=1; i<args.size(); ++i)
+            result = "Math."+funcCall.funcName+"("+result+","+args.get(i)+")";
+          return result;
+        }
+        default:
+          throw new UnsupportedOperationException("Function "+funcCall.funcName+" cannot be compiled");
+      }
+    }
+    throw new UnsupportedOperationException("Expression cannot be compiled");
+  }
+
+  /* In memory source file */
+
+  private static class Source extends SimpleJavaFileObject {
+    private String code;
+    Source(String name, String c) {
+      super(URI.create("string:///"+name+".java"),Kind.SOURCE);
+      code = c;
+    }
+    public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+      return code;
+    }
+  }
+
+  /* In memory class file */
+
+  private static class ClassFile extends SimpleJavaFileObject {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ClassFile(String name) {
+      super(URI.create("bytes:///"+name+".class"),Kind.CLASS);
+    }
+    public OutputStream openOutputStream() {
+      return bytes;
+    }
+  }
+
+  /* Class loader for the compiled checker classes */
+
+  private static class CheckerClassLoader extends ClassLoader {
+    private Map<String,ClassFile> classes;
+    CheckerClassLoader(Map<String,ClassFile> c) {
+      super(JavaCodeGen.class.getClassLoader());
+      classes = c;
+    }
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      ClassFile file = classes.get(name);
+      if(file == null)
+        return super.findClass(name);
+      byte[] b = file.bytes.toByteArray();
+      return defineClass(name,b,0,b.length);
+    }
+  }
+
+  /* Generate, compile, and load a checker for the spec */
+
+  public Checker compile() {
+    String source = generate();
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    if(compiler == null)
+      throw new UnsupportedOperationException("No Java compiler available; a JDK is required");
+    Map<String,ClassFile> classes = new HashMap<String,ClassFile>();
+    DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+    StandardJavaFileManager standard = compiler.getStandardFileManager(diagnostics,null,null);
+    JavaFileManager fileManager = new ForwardingJavaFileManager<StandardJavaFileManager>(standard) {
+      public JavaFileObject getJavaFileForOutput(Location location, String name, JavaFileObject.Kind kind, FileObject sibling) {
+        ClassFile file = new ClassFile(name);
+        classes.put(name,file);
+        return file;
+      }
+    };
+    List<String> options = Arrays.asList("-classpath",System.getProperty("java.class.path"));
+    boolean success = compiler.getTask(null,fileManager,diagnostics,options,null,
+                                       Arrays.asList(new Source(className,source))).call();
+    if(!success) {
+      StringBuilder errors = new StringBuilder("Could not compile checker:");
+      for(Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics())
+        errors.append("\n").append(d.getMessage(null));
+      throw new IllegalStateException(errors.toString());
+    }
+    try{
+      Class<?> checkerClass = new CheckerClassLoader(classes).loadClass(className);
+      return (Checker)checkerClass.getDeclaredConstructor().newInstance();
+    }catch(ReflectiveOperationException e){
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -1,7 +1,16 @@
-import java.io.FileInputStream;
 import java.io.PrintWriter;
+import java.io.PrintStream;
 import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.UncheckedIOException;
+import java.io.Reader;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CharStream;
@@ -11,39 +20,382 @@ import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.BaseErrorListener;
 import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.*;
 import java.nio.file.Paths;
 
 /* Main checker generator class
-   Calls the lexer, parser, semantic analysis, and code generator in order
+   Calls the lexer, parser, semantic analysis, optimizer (if enabled), and code generator in order
+   Usage:
+   1) MainClass [--no-cache] [options] <spec file> - generate checker code for a single spec
+   2) MainClass [--no-cache] --server [socket path] - stay resident and serve many specs (see CheckerServer);
+      serving on a socket needs JDK 16 or newer
+   3) MainClass --eval [--compile] <spec file> [data file] - check the spec directly against the
+      records in the data file, or standard input if none is given (see Interpreter)
+      With --compile the spec is compiled to JVM bytecode first (see JavaCodeGen),
+      falling back to the interpreter for specs the compiler does not support
+      and once the compiled checker fails at run time
+   4) MainClass --emit-java <spec file> - print the Java source of the compiled checker
+   5) MainClass [--no-cache] [options] --batch <spec directory or manifest> [--out dir] [--jobs N] -
+      generate the checkers of many specs on N threads (all cores by default) and write
+      them to separate files in dir (the current directory by default), then print a
+      summary of failures and timings (see BatchCompiler)
+   Generated code is kept in a persistent cache (see CheckerCache) unless --no-cache is given
+   --parse-stats prints how many specs were parsed with SLL and LL prediction (see parse) to stderr
+   Code generation options:
+   --vectorize - lower quantifiers and probabilities to NumPy array operations
+   --streaming - aggregate running statistics instead of every output when the spec allows it
+   --sequential - stop testing a configuration once a sequential test reaches a verdict (implies --streaming)
+   --optimize - hoist loop invariant expressions and eliminate common subexpressions (see Optimizer)
+   --c-kernels - run quantifiers and items sites over reals as C kernels built with the system compiler (see CKernelGen)
+   --binary-output - read outputs of real lists and maps from memory mapped binary files (see CodeGen.genOutputReader)
+   --blas - lower matrix expressions to fused NumPy/BLAS calls (see CodeGen.genMatrixCode)
+   --stage - compute configuration and input only subexpressions of the checker once per configuration
+     and input (see Semantic and CodeGen.genStagedPrepares)
+   --sample-items=N - evaluate Probability and Expectation over items on N random items (see CodeGen.genItemSample)
 */
 
 public class MainClass {
+
+  //number of specs parsed in each stage of parse
+  private static final AtomicLong sllParses = new AtomicLong();
+  private static final AtomicLong llParses = new AtomicLong();
+
   public static void main(String args[]) throws Exception{
-    if(args.length < 1) {
+    boolean server = false, useCache = true, parseStats = false;
+    String filename = null, socketPath = null, dataFilename = null;
+    boolean eval = false, compile = false, emitJava = false;
+    String batchSource = null, outDir = ".";
+    int jobs = Runtime.getRuntime().availableProcessors();
+    CodeGen.Options options = new CodeGen.Options();
+    for(int i=0; i<args.length; ++i) {
+      if(args[i].equals("--server")) {
+        server = true;
+        if(i+1<args.length && !args[i+1].startsWith("--"))
+          socketPath = args[++i];
+      } else if(args[i].equals("--no-cache")) {
+        useCache = false;
+      } else if(args[i].equals("--parse-stats")) {
+        parseStats = true;
+      } else if(args[i].equals("--eval")) {
+        eval = true;
+      } else if(args[i].equals("--compile")) {
+        compile = true;
+      } else if(args[i].equals("--emit-java")) {
+        emitJava = true;
+      } else if(args[i].equals("--batch") && i+1<args.length) {
+        batchSource = args[++i];
+      } else if(args[i].equals("--out") && i+1<args.length) {
+        outDir = args[++i];
+      } else if(args[i].equals("--jobs") && i+1<args.length) {
+        jobs = Integer.parseInt(args[++i]);
+      } else if(options.parseFlag(args[i])) {
+        //code generation option
+      } else if(filename == null) {
+        filename = args[i];
+      } else {
+        dataFilename = args[i];
+      }
+    }
+    CheckerCache cache = null;
+    if(useCache) {
+      try{
+        cache = CheckerCache.fromEnvironment();
+      }catch(IOException e){
+        //generate without a cache
+      }
+    }
+    if(server) {
+      CheckerServer checkerServer = new CheckerServer(cache);
+      if(socketPath != null) {
+        try{
+          checkerServer.serveUnixSocket(Paths.get(socketPath));
+        }catch(UnsupportedOperationException e){
+          System.err.println("Error: "+e.getMessage());
+          System.exit(1);
+        }
+      } else
+        checkerServer.serve(System.in,System.out);
+      return;
+    }
+    if(batchSource != null) {
+      long start = System.nanoTime();
+      BatchCompiler batch = new BatchCompiler(cache,options,Paths.get(outDir));
+      List<BatchCompiler.Result> results = batch.compile(BatchCompiler.specFiles(Paths.get(batchSource)),jobs);
+      int failed = BatchCompiler.printSummary(results,System.nanoTime()-start,System.out);
+      System.out.println(parseStats());
+      System.exit(failed > 0 ? 1 : 0);
+    }
+    if(filename == null) {
       System.err.println("Error: No spec file given.");
       System.exit(1);
     }
-    String filename = args[0];
-    CharStream inStream=null;
+    String specText=null;
     try{
-      inStream = CharStreams.fromStream(new FileInputStream(filename));
+      specText = new String(Files.readAllBytes(Paths.get(filename)),StandardCharsets.UTF_8);
     }catch(Exception e){
       System.err.println("Could not read file "+filename);
       return;
     }
+    if(eval) {
+      System.exit(evaluate(specText,dataFilename,compile) ? 0 : 1);
+    }
+    if(emitJava) {
+      AST.spec spec = parse(CharStreams.fromString(specText),System.err);
+      if(spec == null)
+        System.exit(1);
+      try{
+        System.out.print(new JavaCodeGen(spec).generate());
+      }catch(UnsupportedOperationException e){
+        System.err.println("Error: "+e.getMessage());
+        System.exit(1);
+      }
+      return;
+    }
+    generate(specText,options,cache,System.out,System.err);
+    if(parseStats)
+      System.err.println(parseStats());
+  }
+
+  /* Returns how many specs were parsed in each stage of parse */
+
+  public static String parseStats() {
+    return "Parsed "+sllParses.get()+" specs with SLL prediction, "+llParses.get()+" with the LL fallback";
+  }
+
+  /* Check a spec directly against recorded outputs with the interpreter,
+     or with a compiled checker if compile is true and the spec can be compiled
+     Prints one verdict per record; returns false if the spec could not be evaluated
+  */
+
+  private static boolean evaluate(String specText, String dataFilename, boolean compile) throws IOException {
+    AST.spec spec = parse(CharStreams.fromString(specText),System.err);
+    if(spec == null)
+      return false;
+    Checker checker = null;
+    if(compile) {
+      try{
+        checker = new JavaCodeGen(spec).compile();
+      }catch(UnsupportedOperationException e){
+        //interpret the spec instead
+      }catch(IllegalStateException e){
+        //javac rejected the generated checker or it could not be loaded; interpret the spec instead
+        System.err.println("Warning: "+e.getMessage()+"\nInterpreting the spec instead");
+      }
+    }
+    try{
+      if(checker == null)
+        checker = new Interpreter(spec);
+      else
+        checker = new FallbackChecker(checker,spec);
+    }catch(UnsupportedOperationException e){
+      System.err.println("Error: "+e.getMessage());
+      return false;
+    }
+    Reader data = dataFilename == null || dataFilename.equals("-") ?
+      new InputStreamReader(System.in,StandardCharsets.UTF_8) :
+      Files.newBufferedReader(Paths.get(dataFilename),StandardCharsets.UTF_8);
+    try{
+      Interpreter.run(checker,spec,new BufferedReader(data),System.out);
+    }catch(IOException e){
+      //malformed data or a record that cannot be checked, see Interpreter.run
+      System.err.println("Error: "+e.getMessage());
+      return false;
+    }finally{
+      System.out.flush();
+      data.close();
+    }
+    return true;
+  }
+
+  /* Checker that runs a compiled checker, and the interpreter instead once the
+     compiled checker fails at run time, for the failed record and all later ones
+     Errors of the spec itself are raised again by the interpreter
+  */
+
+  private static class FallbackChecker implements Checker {
+    private Checker compiled;
+    private AST.spec spec;
+    private Checker interpreter;
+    public FallbackChecker(Checker c, AST.spec s) {
+      compiled = c;
+      spec = s;
+    }
+    @Override
+    public Interpreter.Verdict check(Interpreter.Record record) {
+      if(interpreter == null) {
+        try{
+          return compiled.check(record);
+        }catch(RuntimeException e){
+          System.err.println("Warning: compiled checker failed with "+e+"; interpreting the spec instead");
+          interpreter = new Interpreter(spec);
+        }
+      }
+      return interpreter.check(record);
+    }
+  }
+
+  /* Error listener that reports syntax errors to the given stream
+     Replaces the default console listener so that errors of one spec can be
+     captured separately from those of another
+  */
+
+  private static class SyntaxErrorListener extends BaseErrorListener {
+    private PrintStream err;
+    public int errors;
+    public SyntaxErrorListener(PrintStream e) {
+      err = e;
+    }
+    @Override
+    public void syntaxError(Recognizer<?,?> recognizer, Object offendingSymbol, int line,
+                            int charPositionInLine, String msg, RecognitionException e) {
+      err.println("line "+line+":"+charPositionInLine+" "+msg);
+      errors++;
+    }
+  }
+
+  /* Run the lexer, parser, and semantic analysis on a spec
+     The spec is parsed in two stages: first with SLL prediction, which is fast but
+     may fail on valid input, bailing out at the first syntax error; then, only if
+     that fails, again from the start with full LL prediction and error reporting
+     Errors are printed to err
+     Returns the typed AST, or null if errors were detected
+  */
+
+  public static AST.spec parse(CharStream inStream, PrintStream err) {
+    SyntaxErrorListener listener = new SyntaxErrorListener(err);
     AxProfSpecLexer lexer = new AxProfSpecLexer(inStream);
+    lexer.removeErrorListeners();
+    lexer.addErrorListener(listener);
     CommonTokenStream tokens = new CommonTokenStream(lexer);
     tokens.fill();
     AxProfSpecParser parser = new AxProfSpecParser(tokens);
+    parser.removeErrorListeners();
+    parser.setErrorHandler(new BailErrorStrategy());
+    parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
     AxProfSpecParser.SpecContext spec = null;
     try{
       spec = parser.spec();
+      sllParses.incrementAndGet();
+    }catch(ParseCancellationException e){
+      //syntax error or SLL conflict; the LL stage reports real errors
+      tokens.seek(0);
+      parser.reset();
+      parser.addErrorListener(listener);
+      parser.setErrorHandler(new DefaultErrorStrategy());
+      parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+      try{
+        spec = parser.spec();
+        llParses.incrementAndGet();
+      }catch(Exception e2){
+        e2.printStackTrace(err);
+        return null;
+      }
     }catch(Exception e){
-      e.printStackTrace();
+      e.printStackTrace(err);
+      return null;
+    }
+    if(listener.errors > 0)
+      return null;
+    try{
+      Semantic semantic = new Semantic(spec.value);
+    }catch(IllegalArgumentException e){
+      //errors in the spec found by semantic analysis
+      err.println("Error: "+e.getMessage());
+      return null;
+    }catch(AssertionError | RuntimeException e){
+      e.printStackTrace(err);
+      return null;
     }
-    Semantic semantic = new Semantic(spec.value);
-    CodeGen codeGenerator = new CodeGen(spec.value);
-    codeGenerator.generate();
+    return spec.value;
+  }
+
+  /* Run the whole checker generation pipeline on a spec
+     Generated code is appended to out, errors are printed to err
+     Returns true if no errors were detected
+  */
+
+  public static boolean generate(CharStream inStream, CodeGen.Options options, Appendable out, PrintStream err) {
+    AST.spec spec = parse(inStream,err);
+    if(spec == null)
+      return false;
+    try{
+      if(options.optimize)
+        new Optimizer(spec,options);
+      CodeGen codeGenerator = new CodeGen(spec,out,err,options);
+      if(!codeGenerator.generate())
+        return false;
+    }catch(AssertionError | RuntimeException e){
+      e.printStackTrace(err);
+      return false;
+    }
+    return true;
+  }
+
+  /* Run the pipeline unless the cache already holds code for the spec
+     Successfully generated code is added to the cache; cache is null when caching is disabled
+     Cache I/O failures never fail generation
+  */
+
+  public static boolean generate(String specText, CodeGen.Options options, CheckerCache cache,
+                                 Appendable out, PrintStream err) {
+    if(cache != null) {
+      try{
+        String cached = cache.lookup(specText,options.key());
+        if(cached != null) {
+          append(out,cached);
+          return true;
+        }
+      }catch(IOException e){
+        //fall through and regenerate
+      }
+    }
+    StringBuilder code = new StringBuilder();
+    boolean success = generate(CharStreams.fromString(specText),options,code,err);
+    String generated = code.toString();
+    append(out,generated);
+    if(success && cache != null) {
+      try{
+        cache.store(specText,options.key(),generated);
+      }catch(IOException e){
+        //the code was still generated
+      }
+    }
+    return success;
+  }
+
+  private static void append(Appendable out, String code) {
+    try{
+      out.append(code);
+    }catch(IOException e){
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /* Library entry point: generate the checker of a spec and append it to sink
+     Runs the same pipeline as the command line without using standard output,
+     so that tools running in a JVM can generate many checkers in process
+     Nothing is appended to sink if the spec has errors; an IllegalArgumentException
+     with the error messages is thrown instead
+     cache is null when caching is disabled
+  */
+
+  public static void compile(String specText, Appendable sink, CodeGen.Options options, CheckerCache cache) {
+    StringBuilder code = new StringBuilder();
+    ByteArrayOutputStream errors = new ByteArrayOutputStream();
+    PrintStream errStream = new PrintStream(errors,false,StandardCharsets.UTF_8);
+    generate(specText,options,cache,code,errStream);
+    errStream.flush();
+    //any error output marks the spec as failed, like the command line mode
+    if(errors.size() > 0)
+      throw new IllegalArgumentException(new String(errors.toByteArray(),StandardCharsets.UTF_8));
+    append(sink,code.toString());
+  }
+
+  public static void compile(String specText, Appendable sink, CodeGen.Options options) {
+    compile(specText,sink,options,null);
   }
 }
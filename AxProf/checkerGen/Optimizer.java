@@ -0,0 +1,386 @@
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/* Optimizer class
+   Rewrites the typed AST between Semantic and CodeGen (enabled by Options.optimize)
+   Works on scopes: the whole accuracy specification, and the body of every
+   forall, let, probability over items, and probability over runs or inputs
+   At the entry of each scope, pure data subexpressions that only depend on
+   variables available there are bound to temporaries (_h0, _h1, ...) with let if
+   1) they are inside a loop of the scope (loop invariant hoisting), or
+   2) they occur more than once in the scope (common subexpression elimination)
+   Scopes are processed from the outside in, so invariant expressions are hoisted
+   out of as many loops as possible
+   Hoisted expressions are evaluated at the entry of the scope even where they
+   came from a loop that may be empty or the right operand of and/or, so an
+   expression that can fail (see canFail) is only hoisted if it is also
+   evaluated unconditionally in the scope
+   Function calls are never hoisted since they may have side effects, unless the
+   function is declared pure
+*/
+
+public class Optimizer {
+
+  /* Subexpression that may be bound to a temporary */
+
+  private static class Candidate {
+    AST.dataExp exp;
+    String name;
+    int count;
+    boolean inLoop;
+    //evaluated whenever the scope is, so hoisting it cannot introduce a failure
+    boolean unconditional;
+  }
+
+  private int tempCount;
+  private boolean keepSiteBodies;
+  private boolean vectorize;
+
+  public Optimizer(AST.spec spec, CodeGen.Options options) {
+    tempCount = 0;
+    //streaming needs the bodies of probability over runs or inputs to only depend on outputs
+    keepSiteBodies = options.streaming || options.sequential;
+    //bodies of vectorized loops cannot contain let
+    vectorize = options.vectorize;
+    if(spec.exp != null)
+      spec.exp = optimizeScope(spec.exp,false);
+  }
+
+  /* Returns true if evaluating the expression has no side effects */
+
+  public static boolean isPure(AST.ASTNode exp) {
+    if(exp instanceof AST.realConst || exp instanceof AST.varId) {
+      return true;
+    } else if(exp instanceof AST.dataOp) {
+      return isPure(((AST.dataOp)exp).e1) && isPure(((AST.dataOp)exp).e2);
+    } else if(exp instanceof AST.lookup) {
+      return isPure(((AST.lookup)exp).coll) && isPure(((AST.lookup)exp).key);
+    } else if(exp instanceof AST.dataSize) {
+      return isPure(((AST.dataSize)exp).coll);
+    } else if(exp instanceof AST.dataExpList) {
+      for(AST.dataExp item : ((AST.dataExpList)exp).list)
+        if(!isPure(item))
+          return false;
+      return true;
+    } else if(exp instanceof AST.funcCall && ((AST.funcCall)exp).pure) {
+      for(AST.ASTNode param : ((AST.funcCall)exp).params)
+        if(!isPure(param))
+          return false;
+      return true;
+    }
+    return false;
+  }
+
+  /* Returns true if evaluating the pure expression may raise an error, e.g. a
+     division by zero, a list index out of range, mismatched matrix shapes, or
+     an error in a called function
+  */
+
+  public static boolean canFail(AST.ASTNode exp) {
+    if(exp instanceof AST.realConst || exp instanceof AST.varId) {
+      return false;
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      if(!"+-*".contains(dataOp.op) || dataOp.e1.type == null || dataOp.e1.type.baseType == AST.dataType.MATRIX)
+        return true;
+      return canFail(dataOp.e1) || canFail(dataOp.e2);
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      //maps are read with get, lists are indexed
+      if(lookup.coll.type == null || lookup.coll.type.baseType != AST.dataType.MAP)
+        return true;
+      return canFail(lookup.coll) || canFail(lookup.key);
+    } else if(exp instanceof AST.dataSize) {
+      return canFail(((AST.dataSize)exp).coll);
+    } else if(exp instanceof AST.dataExpList) {
+      for(AST.dataExp item : ((AST.dataExpList)exp).list)
+        if(canFail(item))
+          return true;
+      return false;
+    }
+    return true;
+  }
+
+  /* Returns true if the expression is worth binding to a temporary */
+
+  private static boolean isCandidate(AST.ASTNode exp) {
+    if(!(exp instanceof AST.dataOp || exp instanceof AST.lookup ||
+         exp instanceof AST.dataSize || exp instanceof AST.dataExpList || exp instanceof AST.funcCall))
+      return false;
+    return ((AST.dataExp)exp).type != null && isPure(exp);
+  }
+
+  /* Structural key of a pure expression; equal keys mean equal values */
+
+  public static String key(AST.ASTNode exp) {
+    if(exp instanceof AST.realConst) {
+      return ((AST.realConst)exp).val;
+    } else if(exp instanceof AST.varId) {
+      return ((AST.varId)exp).name;
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      return "("+key(dataOp.e1)+dataOp.op+key(dataOp.e2)+")";
+    } else if(exp instanceof AST.lookup) {
+      return key(((AST.lookup)exp).coll)+"["+key(((AST.lookup)exp).key)+"]";
+    } else if(exp instanceof AST.dataSize) {
+      return "size("+key(((AST.dataSize)exp).coll)+")";
+    } else if(exp instanceof AST.dataExpList) {
+      List<String> items = new ArrayList<String>();
+      for(AST.dataExp item : ((AST.dataExpList)exp).list)
+        items.add(key(item));
+      return "["+String.join(",",items)+"]";
+    } else if(exp instanceof AST.funcCall) {
+      AST.funcCall funcCall = (AST.funcCall)exp;
+      List<String> params = new ArrayList<String>();
+      for(AST.ASTNode param : funcCall.params)
+        params.add(key(param));
+      return funcCall.funcName+"("+String.join(",",params)+")";
+    }
+    assert(false);
+    return null;
+  }
+
+  private static Set<String> with(Set<String> bound, String name) {
+    Set<String> result = new HashSet<String>(bound);
+    result.add(name);
+    return result;
+  }
+
+  /* Optimize the scope starting at the given expression
+     loopBody is true if the scope is the body of a loop
+     Returns the new expression of the scope
+  */
+
+  private AST.boolExp optimizeScope(AST.boolExp exp, boolean loopBody) {
+    Map<String,Candidate> candidates = new LinkedHashMap<String,Candidate>();
+    count(exp,new HashSet<String>(),false,false,candidates);
+    Map<String,Candidate> chosen = new LinkedHashMap<String,Candidate>();
+    for(Map.Entry<String,Candidate> entry : candidates.entrySet()) {
+      Candidate candidate = entry.getValue();
+      if(canFail(candidate.exp) && !candidate.unconditional)
+        continue;
+      if(candidate.inLoop || (candidate.count > 1 && !(loopBody && vectorize))) {
+        candidate.name = "_h"+(tempCount++);
+        chosen.put(entry.getKey(),candidate);
+      }
+    }
+    exp = replaceBool(exp,new HashSet<String>(),chosen);
+    optimizeNested(exp);
+    //bind the temporaries in the order they were found
+    List<Candidate> lets = new ArrayList<Candidate>(chosen.values());
+    for(int i=lets.size()-1; i>=0; --i)
+      exp = new AST.let(lets.get(i).name,lets.get(i).exp,exp);
+    return exp;
+  }
+
+  /* Count the candidates of a scope
+     bound contains the variables bound inside the scope on the way to the node
+     guarded is true if the node may not be evaluated when the scope is: in a
+     loop, which may be empty, or in the right operand of and/or
+  */
+
+  private void count(AST.ASTNode n, Set<String> bound, boolean inLoop, boolean guarded,
+                     Map<String,Candidate> candidates) {
+    if(isCandidate(n) && AST.independentOf(n,bound)) {
+      String key = key(n);
+      Candidate candidate = candidates.get(key);
+      if(candidate == null) {
+        candidate = new Candidate();
+        candidate.exp = (AST.dataExp)n;
+        candidates.put(key,candidate);
+      }
+      candidate.count++;
+      candidate.inLoop |= inLoop;
+      candidate.unconditional |= !guarded;
+      //an invariant expression in a loop is hoisted whole if it cannot fail, so its parts need no temporaries
+      if(inLoop && !canFail(n))
+        return;
+    }
+    if(n instanceof AST.forall) {
+      AST.forall forall = (AST.forall)n;
+      count(forall.exp,countRanges(forall.ranges,bound,inLoop,guarded,candidates),true,true,candidates);
+    } else if(n instanceof AST.probabilityItems) {
+      AST.probabilityItems probItems = (AST.probabilityItems)n;
+      count(probItems.exp,countRanges(probItems.ranges,bound,inLoop,guarded,candidates),true,true,candidates);
+    } else if(n instanceof AST.expectationItems) {
+      AST.expectationItems expItems = (AST.expectationItems)n;
+      count(expItems.exp,countRanges(expItems.ranges,bound,inLoop,guarded,candidates),true,true,candidates);
+    } else if(n instanceof AST.let) {
+      AST.let let = (AST.let)n;
+      count(let.value,bound,inLoop,guarded,candidates);
+      count(let.exp,with(bound,let.name),inLoop,guarded,candidates);
+    } else if(n instanceof AST.probabilityRuns) {
+      if(!keepSiteBodies)
+        count(((AST.probabilityRuns)n).exp,with(bound,"Output"),true,true,candidates);
+    } else if(n instanceof AST.probabilityInputs) {
+      if(!keepSiteBodies)
+        count(((AST.probabilityInputs)n).exp,with(bound,"Output"),true,true,candidates);
+    } else if(n instanceof AST.isInData) {
+      count(((AST.isInData)n).item,bound,inLoop,guarded,candidates);
+      count(((AST.isInData)n).data,bound,inLoop,guarded,candidates);
+    } else if(n instanceof AST.approxEq) {
+      count(((AST.approxEq)n).e2,bound,inLoop,guarded,candidates);
+    } else if(n instanceof AST.comparison) {
+      count(((AST.comparison)n).e1,bound,inLoop,guarded,candidates);
+      count(((AST.comparison)n).e2,bound,inLoop,guarded,candidates);
+    } else if(n instanceof AST.boolAndOr) {
+      count(((AST.boolAndOr)n).e1,bound,inLoop,guarded,candidates);
+      count(((AST.boolAndOr)n).e2,bound,inLoop,true,candidates);
+    } else if(n instanceof AST.boolNot) {
+      count(((AST.boolNot)n).exp,bound,inLoop,guarded,candidates);
+    } else if(n instanceof AST.dataOp) {
+      count(((AST.dataOp)n).e1,bound,inLoop,guarded,candidates);
+      count(((AST.dataOp)n).e2,bound,inLoop,guarded,candidates);
+    } else if(n instanceof AST.lookup) {
+      count(((AST.lookup)n).coll,bound,inLoop,guarded,candidates);
+      count(((AST.lookup)n).key,bound,inLoop,guarded,candidates);
+    } else if(n instanceof AST.dataSize) {
+      count(((AST.dataSize)n).coll,bound,inLoop,guarded,candidates);
+    } else if(n instanceof AST.dataExpList) {
+      for(AST.dataExp item : ((AST.dataExpList)n).list)
+        count(item,bound,inLoop,guarded,candidates);
+    } else if(n instanceof AST.funcCall) {
+      for(AST.ASTNode param : ((AST.funcCall)n).params)
+        count(param,bound,inLoop,guarded,candidates);
+    }
+  }
+
+  /* Count the candidates in the collections of a range list
+     The collections of all but the first range are evaluated once per item of
+     the earlier ranges
+     Returns the variables bound in the body of the ranges
+  */
+
+  private Set<String> countRanges(List<AST.range> ranges, Set<String> bound, boolean inLoop,
+                                  boolean guarded, Map<String,Candidate> candidates) {
+    Set<String> inner = new HashSet<String>(bound);
+    for(int i=0; i<ranges.size(); ++i) {
+      count(ranges.get(i).coll,inner,inLoop || i>0,guarded || i>0,candidates);
+      inner.add(((AST.varId)ranges.get(i).item).name);
+    }
+    return inner;
+  }
+
+  /* Replace the chosen candidates of a scope by their temporaries */
+
+  private AST.dataExp replaceData(AST.dataExp exp, Set<String> bound, Map<String,Candidate> chosen) {
+    if(isCandidate(exp) && AST.independentOf(exp,bound)) {
+      Candidate candidate = chosen.get(key(exp));
+      if(candidate != null) {
+        AST.varId var = new AST.varId(candidate.name);
+        var.type = exp.type;
+        return var;
+      }
+    }
+    if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      dataOp.e1 = replaceData(dataOp.e1,bound,chosen);
+      dataOp.e2 = replaceData(dataOp.e2,bound,chosen);
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      lookup.coll = replaceData(lookup.coll,bound,chosen);
+      lookup.key = replaceData(lookup.key,bound,chosen);
+    } else if(exp instanceof AST.dataSize) {
+      AST.dataSize dataSize = (AST.dataSize)exp;
+      dataSize.coll = replaceData(dataSize.coll,bound,chosen);
+    } else if(exp instanceof AST.dataExpList) {
+      List<AST.dataExp> list = ((AST.dataExpList)exp).list;
+      for(int i=0; i<list.size(); ++i)
+        list.set(i,replaceData(list.get(i),bound,chosen));
+    } else if(exp instanceof AST.funcCall) {
+      List<AST.ASTNode> params = ((AST.funcCall)exp).params;
+      for(int i=0; i<params.size(); ++i)
+        if(params.get(i) instanceof AST.dataExp)
+          params.set(i,replaceData((AST.dataExp)params.get(i),bound,chosen));
+    } else if(exp instanceof AST.probabilityItems) {
+      AST.probabilityItems probItems = (AST.probabilityItems)exp;
+      probItems.exp = replaceBool(probItems.exp,replaceRanges(probItems.ranges,bound,chosen),chosen);
+    } else if(exp instanceof AST.expectationItems) {
+      AST.expectationItems expItems = (AST.expectationItems)exp;
+      expItems.exp = replaceData(expItems.exp,replaceRanges(expItems.ranges,bound,chosen),chosen);
+    } else if(exp instanceof AST.probabilityRuns) {
+      AST.probabilityRuns probRuns = (AST.probabilityRuns)exp;
+      if(!keepSiteBodies)
+        probRuns.exp = replaceBool(probRuns.exp,with(bound,"Output"),chosen);
+    } else if(exp instanceof AST.probabilityInputs) {
+      AST.probabilityInputs probInputs = (AST.probabilityInputs)exp;
+      if(!keepSiteBodies)
+        probInputs.exp = replaceBool(probInputs.exp,with(bound,"Output"),chosen);
+    }
+    return exp;
+  }
+
+  private Set<String> replaceRanges(List<AST.range> ranges, Set<String> bound, Map<String,Candidate> chosen) {
+    Set<String> inner = new HashSet<String>(bound);
+    for(AST.range range : ranges) {
+      range.coll = replaceData(range.coll,inner,chosen);
+      inner.add(((AST.varId)range.item).name);
+    }
+    return inner;
+  }
+
+  private AST.boolExp replaceBool(AST.boolExp exp, Set<String> bound, Map<String,Candidate> chosen) {
+    if(exp instanceof AST.forall) {
+      AST.forall forall = (AST.forall)exp;
+      forall.exp = replaceBool(forall.exp,replaceRanges(forall.ranges,bound,chosen),chosen);
+    } else if(exp instanceof AST.let) {
+      AST.let let = (AST.let)exp;
+      let.value = replaceData(let.value,bound,chosen);
+      let.exp = replaceBool(let.exp,with(bound,let.name),chosen);
+    } else if(exp instanceof AST.isInData) {
+      AST.isInData isInData = (AST.isInData)exp;
+      isInData.item = replaceData(isInData.item,bound,chosen);
+      isInData.data = replaceData(isInData.data,bound,chosen);
+    } else if(exp instanceof AST.approxEq) {
+      AST.approxEq approxEq = (AST.approxEq)exp;
+      approxEq.e2 = replaceData(approxEq.e2,bound,chosen);
+    } else if(exp instanceof AST.comparison) {
+      AST.comparison comparison = (AST.comparison)exp;
+      comparison.e1 = replaceData(comparison.e1,bound,chosen);
+      comparison.e2 = replaceData(comparison.e2,bound,chosen);
+    } else if(exp instanceof AST.boolAndOr) {
+      AST.boolAndOr boolAndOr = (AST.boolAndOr)exp;
+      boolAndOr.e1 = replaceBool(boolAndOr.e1,bound,chosen);
+      boolAndOr.e2 = replaceBool(boolAndOr.e2,bound,chosen);
+    } else if(exp instanceof AST.boolNot) {
+      AST.boolNot boolNot = (AST.boolNot)exp;
+      boolNot.exp = replaceBool(boolNot.exp,bound,chosen);
+    }
+    return exp;
+  }
+
+  /* Optimize the scopes nested in the given expression */
+
+  private void optimizeNested(AST.ASTNode n) {
+    if(n instanceof AST.forall) {
+      AST.forall forall = (AST.forall)n;
+      forall.exp = optimizeScope(forall.exp,true);
+    } else if(n instanceof AST.let) {
+      AST.let let = (AST.let)n;
+      let.exp = optimizeScope(let.exp,false);
+    } else if(n instanceof AST.comparison) {
+      optimizeNested(((AST.comparison)n).e1);
+      optimizeNested(((AST.comparison)n).e2);
+    } else if(n instanceof AST.boolAndOr) {
+      optimizeNested(((AST.boolAndOr)n).e1);
+      optimizeNested(((AST.boolAndOr)n).e2);
+    } else if(n instanceof AST.boolNot) {
+      optimizeNested(((AST.boolNot)n).exp);
+    } else if(n instanceof AST.probabilityItems) {
+      AST.probabilityItems probItems = (AST.probabilityItems)n;
+      probItems.exp = optimizeScope(probItems.exp,true);
+    } else if(n instanceof AST.probabilityRuns) {
+      AST.probabilityRuns probRuns = (AST.probabilityRuns)n;
+      if(!keepSiteBodies)
+        probRuns.exp = optimizeScope(probRuns.exp,true);
+    } else if(n instanceof AST.probabilityInputs) {
+      AST.probabilityInputs probInputs = (AST.probabilityInputs)n;
+      if(!keepSiteBodies)
+        probInputs.exp = optimizeScope(probInputs.exp,true);
+    }
+  }
+}
@@ -2,16 +2,24 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
 
 /* Semantic analysis class
    Run after AST is generated
    Traverses the specification, assigning types to each subexpression
    Performs basic type checking
+   Also assigns the binding time of each data subexpression (binding-time analysis):
+   constants and configuration parameters are CONFIG, the input is INPUT, and the
+   output, probabilities, expectations, and variables bound inside the spec are RUN;
+   other expressions take the latest binding time of their operands
 */
 
 public class Semantic {
 
   private Map<String,AST.dataType> typeMap;
+  private Map<String,Integer> bindingMap;
+  private Set<String> pureFuncs;
   AST.SpecType specType;
   AST.dataType realType, matrixType;
 
@@ -23,10 +31,17 @@ public class Semantic {
     matrixType = new AST.dataType(AST.dataType.MATRIX);
     //map variable name to type
     typeMap = new HashMap<String,AST.dataType>();
+    //map variable name to binding time; undeclared variables are configuration parameters
+    bindingMap = new HashMap<String,Integer>();
+    //functions declared pure
+    pureFuncs = new HashSet<String>();
     //add type declarations to map
     boolean outputDeclared = false, inputDeclared = false;
     for(AST.typeDecl typeDecl : spec.typeDecls) {
       typeMap.put(typeDecl.name,typeDecl.type);
+      bindingMap.put(typeDecl.name,typeDecl.name.equals("Input") ? AST.dataExp.INPUT : AST.dataExp.RUN);
+      if(typeDecl.pure)
+        pureFuncs.add(typeDecl.name);
       if(typeDecl.name.equals("Output"))
         outputDeclared = true;
       if(typeDecl.name.equals("Input"))
@@ -37,6 +52,29 @@ public class Semantic {
     if(spec.exp!=null) traverseBoolExp(spec.exp);
     if(spec.timeExp!=null) traverseDataExp(spec.timeExp);
     if(spec.spaceExp!=null) traverseDataExp(spec.spaceExp);
+    for(String pct : spec.latencyPercentiles) {
+      double percentile = Double.parseDouble(pct);
+      if(!(percentile > 0 && percentile <= 100))
+        throw new IllegalArgumentException("LATENCY percentile "+pct+" is not in (0, 100]");
+    }
+    for(AST.dataExp latencyExp : spec.latencyExps) traverseDataExp(latencyExp);
+    if(spec.throughputExp!=null) traverseDataExp(spec.throughputExp);
+    checkFreivalds(spec);
+  }
+
+  /* FREIVALDS needs at least one random vector, or every matrix equality would
+     hold vacuously, and a tolerance that is not negative
+     Errors in the spec are reported as IllegalArgumentExceptions
+  */
+
+  private static void checkFreivalds(AST.spec spec) {
+    if(spec.freivaldsTrials == null)
+      return;
+    double trials = Double.parseDouble(spec.freivaldsTrials);
+    if(trials < 1 || trials != Math.floor(trials))
+      throw new IllegalArgumentException("FREIVALDS trials "+spec.freivaldsTrials+" is not an integer of at least 1");
+    if(spec.freivaldsTol != null && Double.parseDouble(spec.freivaldsTol) < 0)
+      throw new IllegalArgumentException("FREIVALDS tolerance "+spec.freivaldsTol+" is negative");
   }
 
   private void traverseBoolExp(AST.boolExp exp) {
@@ -48,6 +86,7 @@ public class Semantic {
       AST.let let = (AST.let)exp;
       traverseDataExp(let.value);
       typeMap.put(let.name,let.value.type);
+      bindingMap.put(let.name,AST.dataExp.RUN);
       traverseBoolExp(let.exp);
     } else if(exp instanceof AST.isInData) {
       AST.isInData isInData = (AST.isInData)exp;
@@ -73,6 +112,44 @@ public class Semantic {
   }
 
   private void traverseDataExp(AST.dataExp exp) {
+    assignType(exp);
+    exp.bindingTime = bindingTime(exp);
+  }
+
+  /* Binding time of an expression whose operands have been traversed */
+
+  private int bindingTime(AST.dataExp exp) {
+    if(exp instanceof AST.realConst) {
+      return AST.dataExp.CONFIG;
+    } else if(exp instanceof AST.varId) {
+      return bindingMap.getOrDefault(((AST.varId)exp).name,AST.dataExp.CONFIG);
+    } else if(exp instanceof AST.lookup) {
+      AST.lookup lookup = (AST.lookup)exp;
+      return Math.max(lookup.coll.bindingTime,lookup.key.bindingTime);
+    } else if(exp instanceof AST.dataExpList) {
+      int time = AST.dataExp.CONFIG;
+      for(AST.dataExp item : ((AST.dataExpList)exp).list)
+        time = Math.max(time,item.bindingTime);
+      return time;
+    } else if(exp instanceof AST.dataOp) {
+      AST.dataOp dataOp = (AST.dataOp)exp;
+      return Math.max(dataOp.e1.bindingTime,dataOp.e2.bindingTime);
+    } else if(exp instanceof AST.dataSize) {
+      return ((AST.dataSize)exp).coll.bindingTime;
+    } else if(exp instanceof AST.funcCall) {
+      AST.funcCall funcCall = (AST.funcCall)exp;
+      //a function without arguments is not assumed to return the same value every time
+      if(funcCall.params.isEmpty())
+        return AST.dataExp.RUN;
+      int time = AST.dataExp.CONFIG;
+      for(AST.ASTNode param : funcCall.params)
+        time = Math.max(time,((AST.dataExp)param).bindingTime);
+      return time;
+    }
+    return AST.dataExp.RUN;
+  }
+
+  private void assignType(AST.dataExp exp) {
     if(exp instanceof AST.realConst) {
       exp.type = realType;
     } else if(exp instanceof AST.probabilityInputs) {
@@ -142,6 +219,7 @@ public class Semantic {
           assert(false);
         }
       }
+      funcCall.pure = pureFuncs.contains(funcCall.funcName);
       if(typeMap.containsKey(funcCall.funcName))
         exp.type = typeMap.get(funcCall.funcName);
       else
@@ -164,6 +242,7 @@ public class Semantic {
         iter.type = range.coll.type.kType;
       }
       typeMap.put(iter.name,iter.type);
+      bindingMap.put(iter.name,AST.dataExp.RUN);
     }
   }
 
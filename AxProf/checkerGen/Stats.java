@@ -0,0 +1,293 @@
+import java.util.Arrays;
+
+/* Statistical test class
+   Java versions of the tests that generated Python checkers call through AxProf
+   (binomial test, one sample t-test, Wilcoxon signed-rank test, Fisher's method)
+   The results follow scipy's definitions of the p values
+*/
+
+public class Stats {
+
+  private static final double EPS = 1e-15;
+  private static final double FPMIN = 1e-300;
+  private static final int MAXIT = 1<<24;
+
+  private static final double[] LANCZOS = {
+    0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+    771.32342877765313, -176.61502916214059, 12.507343278686905,
+    -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7
+  };
+
+  /* Natural logarithm of the gamma function (Lanczos approximation) */
+
+  public static double logGamma(double x) {
+    if(x < 0.5)
+      return Math.log(Math.PI/Math.abs(Math.sin(Math.PI*x)))-logGamma(1-x);
+    x -= 1;
+    double a = LANCZOS[0];
+    double t = x+7.5;
+    for(int i=1; i<LANCZOS.length; ++i)
+      a += LANCZOS[i]/(x+i);
+    return 0.5*Math.log(2*Math.PI)+(x+0.5)*Math.log(t)-t+Math.log(a);
+  }
+
+  /* Regularized incomplete beta function I_x(a,b) */
+
+  public static double incompleteBeta(double a, double b, double x) {
+    if(x <= 0)
+      return 0;
+    if(x >= 1)
+      return 1;
+    double bt = Math.exp(logGamma(a+b)-logGamma(a)-logGamma(b)+a*Math.log(x)+b*Math.log1p(-x));
+    if(x < (a+1)/(a+b+2))
+      return bt*betaContinuedFraction(a,b,x)/a;
+    else
+      return 1-bt*betaContinuedFraction(b,a,1-x)/b;
+  }
+
+  /* Continued fraction for the incomplete beta function (modified Lentz's method) */
+
+  private static double betaContinuedFraction(double a, double b, double x) {
+    double qab = a+b, qap = a+1, qam = a-1;
+    double c = 1, d = 1-qab*x/qap;
+    if(Math.abs(d) < FPMIN) d = FPMIN;
+    d = 1/d;
+    double h = d;
+    for(int m=1; m<MAXIT; ++m) {
+      int m2 = 2*m;
+      double aa = m*(b-m)*x/((qam+m2)*(a+m2));
+      d = 1+aa*d;
+      if(Math.abs(d) < FPMIN) d = FPMIN;
+      c = 1+aa/c;
+      if(Math.abs(c) < FPMIN) c = FPMIN;
+      d = 1/d;
+      h *= d*c;
+      aa = -(a+m)*(qab+m)*x/((a+m2)*(qap+m2));
+      d = 1+aa*d;
+      if(Math.abs(d) < FPMIN) d = FPMIN;
+      c = 1+aa/c;
+      if(Math.abs(c) < FPMIN) c = FPMIN;
+      d = 1/d;
+      double del = d*c;
+      h *= del;
+      if(Math.abs(del-1) < EPS)
+        break;
+    }
+    return h;
+  }
+
+  /* Regularized upper incomplete gamma function Q(a,x) */
+
+  public static double incompleteGammaQ(double a, double x) {
+    if(x <= 0)
+      return 1;
+    if(Double.isInfinite(x))
+      return 0;
+    double gln = logGamma(a);
+    if(x < a+1) {
+      //series for P(a,x)
+      double ap = a, del = 1/a, sum = del;
+      for(int n=0; n<MAXIT; ++n) {
+        ap += 1;
+        del *= x/ap;
+        sum += del;
+        if(Math.abs(del) < Math.abs(sum)*EPS)
+          break;
+      }
+      return 1-sum*Math.exp(-x+a*Math.log(x)-gln);
+    }
+    //continued fraction for Q(a,x)
+    double b = x+1-a, c = 1/FPMIN, d = 1/b, h = d;
+    for(int i=1; i<MAXIT; ++i) {
+      double an = -i*(i-a);
+      b += 2;
+      d = an*d+b;
+      if(Math.abs(d) < FPMIN) d = FPMIN;
+      c = b+an/c;
+      if(Math.abs(c) < FPMIN) c = FPMIN;
+      d = 1/d;
+      double del = d*c;
+      h *= del;
+      if(Math.abs(del-1) < EPS)
+        break;
+    }
+    return Math.exp(-x+a*Math.log(x)-gln)*h;
+  }
+
+  /* Survival function of the standard normal distribution */
+
+  public static double normalSf(double z) {
+    if(z < 0)
+      return 1-normalSf(-z);
+    return 0.5*incompleteGammaQ(0.5,z*z/2);
+  }
+
+  /* Two sided p value of a t statistic with the given degrees of freedom */
+
+  public static double studentTwoSided(double t, double df) {
+    if(Double.isNaN(t))
+      return Double.NaN;
+    if(Double.isInfinite(t))
+      return 0;
+    return incompleteBeta(df/2,0.5,df/(df+t*t));
+  }
+
+  /* One sample t-test; returns the t statistic and the two sided p value, like scipy's ttest_1samp */
+
+  public static double[] ttest1samp(double[] samples, int n, double mu) {
+    double mean = 0;
+    for(int i=0; i<n; ++i)
+      mean += samples[i];
+    mean /= n;
+    double ss = 0;
+    for(int i=0; i<n; ++i)
+      ss += (samples[i]-mean)*(samples[i]-mean);
+    double t = (mean-mu)/Math.sqrt(ss/(n-1)/n);
+    return new double[]{t,studentTwoSided(t,n-1)};
+  }
+
+  private static double binomialLogPmf(long k, long n, double p) {
+    if(p == 0)
+      return k == 0 ? 0 : Double.NEGATIVE_INFINITY;
+    if(p == 1)
+      return k == n ? 0 : Double.NEGATIVE_INFINITY;
+    return logGamma(n+1)-logGamma(k+1)-logGamma(n-k+1)+k*Math.log(p)+(n-k)*Math.log1p(-p);
+  }
+
+  public static double binomialCdf(long k, long n, double p) {
+    if(k < 0)
+      return 0;
+    if(k >= n)
+      return 1;
+    return incompleteBeta(n-k,k+1,1-p);
+  }
+
+  public static double binomialSf(long k, long n, double p) {
+    if(k < 0)
+      return 1;
+    if(k >= n)
+      return 0;
+    return incompleteBeta(k+1,n-k,p);
+  }
+
+  /* Binomial test with the same semantics as AxProf.binomialTest
+     alternative is one of "two-sided", "less", or "greater"
+     The two sided test sums the probabilities of all outcomes at most as likely
+     as the observed one; the outcomes are found by binary search since the
+     probability mass function is monotone on each side of the mean
+  */
+
+  public static double binomialTest(long x, long n, double p, String alternative) {
+    if(x > 0 && p == 0)
+      return 0;
+    if(alternative.equals("less"))
+      return binomialCdf(x,n,p);
+    if(alternative.equals("greater"))
+      return binomialSf(x-1,n,p);
+    double mean = p*n;
+    if(x == mean)
+      return 1;
+    double threshold = binomialLogPmf(x,n,p)+Math.log(1+1e-7);
+    double pval;
+    if(x < mean) {
+      //first outcome above the mean that is at most as likely as x
+      long lo = (long)Math.ceil(mean), hi = n+1;
+      while(lo < hi) {
+        long mid = (lo+hi)>>>1;
+        if(binomialLogPmf(mid,n,p) <= threshold)
+          hi = mid;
+        else
+          lo = mid+1;
+      }
+      long y = n+1-lo;
+      pval = binomialCdf(x,n,p)+binomialSf(n-y,n,p);
+    } else {
+      //number of outcomes below the mean that are at most as likely as x
+      long lo = 0, hi = (long)Math.floor(mean)+1;
+      while(lo < hi) {
+        long mid = (lo+hi)>>>1;
+        if(binomialLogPmf(mid,n,p) > threshold)
+          hi = mid;
+        else
+          lo = mid+1;
+      }
+      long y = lo;
+      pval = binomialCdf(y-1,n,p)+binomialSf(x-1,n,p);
+    }
+    return Math.min(1.0,pval);
+  }
+
+  /* Two sided Wilcoxon signed-rank test of the differences, like scipy's wilcoxon
+     Zero differences are discarded; the exact distribution is used for up to 50
+     differences without zeros, the tie corrected normal approximation otherwise
+  */
+
+  public static double wilcoxon(double[] d, int n) {
+    double[] abs = new double[n];
+    int count = 0;
+    for(int i=0; i<n; ++i)
+      if(d[i] != 0)
+        abs[count++] = Math.abs(d[i]);
+    boolean zeros = count < n;
+    double[] sorted = Arrays.copyOf(abs,count);
+    Arrays.sort(sorted);
+    double rPlus = 0, rMinus = 0, tieSum = 0;
+    for(int i=0, j=0; i<n; ++i) {
+      if(d[i] == 0)
+        continue;
+      double r = averageRank(sorted,abs[j++]);
+      if(d[i] > 0) rPlus += r; else rMinus += r;
+    }
+    for(int i=0; i<count;) {
+      int j = i;
+      while(j < count && sorted[j] == sorted[i])
+        j++;
+      double t = j-i;
+      tieSum += t*t*t-t;
+      i = j;
+    }
+    if(count == 0)
+      return Double.NaN;
+    if(count <= 50 && !zeros) {
+      //exact distribution of the positive rank sum
+      int max = count*(count+1)/2;
+      double[] dist = new double[max+1];
+      dist[0] = 1;
+      for(int k=1; k<=count; ++k)
+        for(int s=max; s>=k; --s)
+          dist[s] += dist[s-k];
+      double total = Math.pow(2,count);
+      int r = (int)Math.floor(rPlus);
+      double below = 0, above = 0;
+      for(int s=0; s<=max; ++s) {
+        if(s <= r) below += dist[s];
+        if(s >= (int)Math.ceil(rPlus)) above += dist[s];
+      }
+      return Math.min(1.0,2*Math.min(below,above)/total);
+    }
+    double t = Math.min(rPlus,rMinus);
+    double mn = count*(count+1)/4.0;
+    double se = Math.sqrt(count*(count+1)*(2.0*count+1)/24.0-tieSum/48.0);
+    double z = (t-mn)/se;
+    return 2*normalSf(Math.abs(z));
+  }
+
+  private static double averageRank(double[] sorted, double v) {
+    int lo = Arrays.binarySearch(sorted,v);
+    int hi = lo;
+    while(lo > 0 && sorted[lo-1] == v) lo--;
+    while(hi < sorted.length-1 && sorted[hi+1] == v) hi++;
+    return (lo+hi)/2.0+1;
+  }
+
+  /* Combine p values with Fisher's method, like scipy's combine_pvalues */
+
+  public static double combinePValues(double[] pValues, int n) {
+    if(n == 0)
+      return Double.NaN;
+    double statistic = 0;
+    for(int i=0; i<n; ++i)
+      statistic -= 2*Math.log(pValues[i]);
+    return incompleteGammaQ(n,statistic/2);
+  }
+}
@@ -0,0 +1,230 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/* Value class
+   Runtime values used when evaluating specs in Java instead of Python
+   Consists of subclasses for each data type of the specification language
+   Lists whose elements are all real numbers are stored as primitive double arrays
+   Also provides a reader for the whitespace separated text format of values:
+   1) real - a number
+   2) list - the number of items, followed by the items
+   3) map - the number of entries, followed by key value pairs
+   4) matrix - the number of rows and columns, followed by the items row by row
+*/
+
+public abstract class Value {
+
+  public double asReal() {
+    throw new IllegalStateException("Value is not a real number");
+  }
+
+  /* Truth value of the value, as in Python */
+
+  public abstract boolean truthy();
+
+  public static class Real extends Value {
+    public final double val;
+    public Real(double v) {
+      val = v;
+    }
+    public double asReal() {
+      return val;
+    }
+    public boolean truthy() {
+      return val != 0;
+    }
+    public boolean equals(Object other) {
+      return (other instanceof Real) && ((Real)other).val == val;
+    }
+    public int hashCode() {
+      //0.0 and -0.0 are equal
+      return val == 0 ? 0 : Double.hashCode(val);
+    }
+    public String toString() {
+      return Double.toString(val);
+    }
+  }
+
+  public static class List extends Value {
+    //exactly one of reals and items is non-null
+    public final double[] reals;
+    public final Value[] items;
+    public List(double[] r) {
+      reals = r;
+      items = null;
+    }
+    public List(Value[] i) {
+      reals = null;
+      items = i;
+    }
+    /* Build a list, using a primitive array if every item is real */
+    public static List of(java.util.List<Value> values) {
+      double[] r = new double[values.size()];
+      for(int i=0; i<r.length; ++i) {
+        Value v = values.get(i);
+        if(!(v instanceof Real))
+          return new List(values.toArray(new Value[0]));
+        r[i] = ((Real)v).val;
+      }
+      return new List(r);
+    }
+    public int size() {
+      return reals != null ? reals.length : items.length;
+    }
+    public Value get(int i) {
+      return reals != null ? new Real(reals[i]) : items[i];
+    }
+    public boolean truthy() {
+      return size() > 0;
+    }
+    public boolean equals(Object other) {
+      if(!(other instanceof List))
+        return false;
+      List o = (List)other;
+      if(o.size() != size())
+        return false;
+      if(reals != null && o.reals != null) {
+        for(int i=0; i<reals.length; ++i)
+          if(reals[i] != o.reals[i])
+            return false;
+        return true;
+      }
+      for(int i=0; i<size(); ++i)
+        if(!get(i).equals(o.get(i)))
+          return false;
+      return true;
+    }
+    public int hashCode() {
+      int h = 1;
+      for(int i=0; i<size(); ++i)
+        h = 31*h+get(i).hashCode();
+      return h;
+    }
+  }
+
+  public static class Map extends Value {
+    public final java.util.Map<Value,Value> map;
+    public Map(java.util.Map<Value,Value> m) {
+      map = m;
+    }
+    public boolean truthy() {
+      return !map.isEmpty();
+    }
+    public boolean equals(Object other) {
+      return (other instanceof Map) && ((Map)other).map.equals(map);
+    }
+    public int hashCode() {
+      return map.hashCode();
+    }
+  }
+
+  public static class Matrix extends Value {
+    public final double[][] rows;
+    public Matrix(double[][] r) {
+      rows = r;
+    }
+    public boolean truthy() {
+      return rows.length > 0;
+    }
+    public boolean equals(Object other) {
+      return (other instanceof Matrix) && Arrays.deepEquals(((Matrix)other).rows,rows);
+    }
+    public int hashCode() {
+      return Arrays.deepHashCode(rows);
+    }
+  }
+
+  /* Whitespace separated token reader */
+
+  public static class Tokens {
+    private Reader in;
+    private String peeked;
+    private StringBuilder token = new StringBuilder();
+    public Tokens(Reader r) {
+      in = r;
+    }
+    /* Returns the next token without consuming it, or null at the end of input */
+    public String peek() throws IOException {
+      if(peeked == null) {
+        token.setLength(0);
+        int c = in.read();
+        while(c != -1 && Character.isWhitespace(c))
+          c = in.read();
+        while(c != -1 && !Character.isWhitespace(c)) {
+          token.append((char)c);
+          c = in.read();
+        }
+        if(token.length() > 0)
+          peeked = token.toString();
+      }
+      return peeked;
+    }
+    public String next() throws IOException {
+      String t = peek();
+      if(t == null)
+        throw new IOException("Unexpected end of data");
+      peeked = null;
+      return t;
+    }
+    public void expect(String keyword) throws IOException {
+      String t = next();
+      if(!t.equals(keyword))
+        throw new IOException("Expected '"+keyword+"' but found '"+t+"'");
+    }
+    public double nextReal() throws IOException {
+      String t = next();
+      try{
+        return Double.parseDouble(t);
+      }catch(NumberFormatException e){
+        throw new IOException("Expected a number but found '"+t+"'");
+      }
+    }
+    public int nextCount() throws IOException {
+      return (int)nextReal();
+    }
+  }
+
+  /* Read a value of the given type */
+
+  public static Value read(Tokens tokens, AST.dataType type) throws IOException {
+    switch(type.baseType) {
+      case AST.dataType.REAL:
+        return new Real(tokens.nextReal());
+      case AST.dataType.LIST: {
+        int size = tokens.nextCount();
+        if(type.kType.baseType == AST.dataType.REAL) {
+          double[] r = new double[size];
+          for(int i=0; i<size; ++i)
+            r[i] = tokens.nextReal();
+          return new List(r);
+        }
+        Value[] items = new Value[size];
+        for(int i=0; i<size; ++i)
+          items[i] = read(tokens,type.kType);
+        return new List(items);
+      }
+      case AST.dataType.MAP: {
+        int size = tokens.nextCount();
+        java.util.Map<Value,Value> map = new LinkedHashMap<Value,Value>();
+        for(int i=0; i<size; ++i) {
+          Value key = read(tokens,type.kType);
+          map.put(key,read(tokens,type.vType));
+        }
+        return new Map(map);
+      }
+      case AST.dataType.MATRIX: {
+        int numRows = tokens.nextCount();
+        int numCols = tokens.nextCount();
+        double[][] rows = new double[numRows][numCols];
+        for(int i=0; i<numRows; ++i)
+          for(int j=0; j<numCols; ++j)
+            rows[i][j] = tokens.nextReal();
+        return new Matrix(rows);
+      }
+      default:
+        throw new IOException("Cannot read a value of unknown type");
+    }
+  }
+}
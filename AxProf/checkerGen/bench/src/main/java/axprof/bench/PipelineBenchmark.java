@@ -0,0 +1,165 @@
+package axprof.bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.ListTokenSource;
+import org.antlr.v4.runtime.Parser;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* Benchmarks of the stages of the checker generator pipeline (see MainClass)
+   1) lexing - AxProfSpecLexer over the spec text
+   2) parsing - AxProfSpecParser over the tokens, two stage like MainClass.parse
+   3) parsingLL - the same with full LL prediction only, for comparison
+   4) semantic - Semantic over the AST
+   5) codeGen - CodeGen.generate over the typed AST
+   Each stage starts from the output of the previous one, computed once in setup
+   Specs come from SpecGenerator, scaled in one dimension at a time
+   The checker generator classes are in the unnamed package, which a named package
+   cannot import, so they are called through method handles resolved once
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+  private static final MethodHandle NEW_LEXER;
+  private static final MethodHandle NEW_PARSER;
+  private static final MethodHandle PARSE_SPEC;
+  private static final MethodHandle NEW_SEMANTIC;
+  private static final MethodHandle PARSE_OPTIONS;
+  private static final MethodHandle NEW_CODEGEN;
+  private static final MethodHandle GENERATE;
+
+  static {
+    try{
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      Class<?> lexerClass = Class.forName("AxProfSpecLexer");
+      Class<?> parserClass = Class.forName("AxProfSpecParser");
+      Class<?> contextClass = Class.forName("AxProfSpecParser$SpecContext");
+      Class<?> specClass = Class.forName("AST$spec");
+      Class<?> optionsClass = Class.forName("CodeGen$Options");
+      Class<?> codeGenClass = Class.forName("CodeGen");
+      NEW_LEXER = lookup.findConstructor(lexerClass,MethodType.methodType(void.class,CharStream.class))
+        .asType(MethodType.methodType(Lexer.class,CharStream.class));
+      NEW_PARSER = lookup.findConstructor(parserClass,MethodType.methodType(void.class,TokenStream.class))
+        .asType(MethodType.methodType(Parser.class,TokenStream.class));
+      //spec() followed by the value of the returned context
+      PARSE_SPEC = MethodHandles.filterReturnValue(
+        lookup.findVirtual(parserClass,"spec",MethodType.methodType(contextClass)),
+        lookup.findGetter(contextClass,"value",specClass))
+        .asType(MethodType.methodType(Object.class,Parser.class));
+      NEW_SEMANTIC = lookup.findConstructor(Class.forName("Semantic"),MethodType.methodType(void.class,specClass))
+        .asType(MethodType.methodType(Object.class,Object.class));
+      PARSE_OPTIONS = lookup.findStatic(optionsClass,"parse",MethodType.methodType(optionsClass,String.class))
+        .asType(MethodType.methodType(Object.class,String.class));
+      NEW_CODEGEN = lookup.findConstructor(codeGenClass,
+        MethodType.methodType(void.class,specClass,Appendable.class,PrintStream.class,optionsClass))
+        .asType(MethodType.methodType(Object.class,Object.class,Appendable.class,PrintStream.class,Object.class));
+      GENERATE = lookup.findVirtual(codeGenClass,"generate",MethodType.methodType(boolean.class))
+        .asType(MethodType.methodType(boolean.class,Object.class));
+    }catch(ReflectiveOperationException e){
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  @Param({"depth","ranges","lets","size"})
+  public String dimension;
+
+  @Param({"1","4","16"})
+  public int scale;
+
+  //code generation options, as on the command line
+  @Param({""})
+  public String options;
+
+  private String specText;
+  private List<? extends Token> tokens;
+  private Object spec;
+  private Object codeGenOptions;
+  private PrintStream sink;
+
+  @Setup
+  public void setup() throws Throwable {
+    specText = SpecGenerator.generate(dimension,scale);
+    tokens = lexing();
+    spec = parsing();
+    if(spec == null)
+      throw new IllegalStateException("Generated spec does not parse:\n"+specText);
+    semantic();
+    codeGenOptions = (Object)PARSE_OPTIONS.invokeExact(options);
+    sink = new PrintStream(OutputStream.nullOutputStream());
+  }
+
+  @Benchmark
+  public List<? extends Token> lexing() throws Throwable {
+    Lexer lexer = (Lexer)NEW_LEXER.invokeExact(CharStreams.fromString(specText));
+    return lexer.getAllTokens();
+  }
+
+  private Parser parser(PredictionMode mode) throws Throwable {
+    Parser parser = (Parser)NEW_PARSER.invokeExact((TokenStream)new CommonTokenStream(new ListTokenSource(tokens)));
+    parser.removeErrorListeners();
+    parser.getInterpreter().setPredictionMode(mode);
+    return parser;
+  }
+
+  @Benchmark
+  public Object parsing() throws Throwable {
+    Parser parser = parser(PredictionMode.SLL);
+    parser.setErrorHandler(new BailErrorStrategy());
+    try{
+      return (Object)PARSE_SPEC.invokeExact(parser);
+    }catch(ParseCancellationException e){
+      return parsingLL();
+    }
+  }
+
+  @Benchmark
+  public Object parsingLL() throws Throwable {
+    Parser parser = parser(PredictionMode.LL);
+    parser.setErrorHandler(new DefaultErrorStrategy());
+    return (Object)PARSE_SPEC.invokeExact(parser);
+  }
+
+  @Benchmark
+  public Object semantic() throws Throwable {
+    //types are reassigned on every traversal, so the same AST can be analysed again
+    return (Object)NEW_SEMANTIC.invokeExact(spec);
+  }
+
+  @Benchmark
+  public boolean codeGen() throws Throwable {
+    Object codeGen = (Object)NEW_CODEGEN.invokeExact(spec,(Appendable)sink,sink,codeGenOptions);
+    return (boolean)GENERATE.invokeExact(codeGen);
+  }
+}
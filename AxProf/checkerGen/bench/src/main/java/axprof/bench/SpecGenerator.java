@@ -0,0 +1,117 @@
+package axprof.bench;
+
+/* Synthetic spec generator
+   Builds ITEMS specs whose size is controlled along four dimensions:
+   1) depth - number of nested forall quantifiers
+   2) ranges - number of ranges of each quantifier
+   3) lets - number of let bindings before the quantifiers
+   4) size - number of terms of the arithmetic expression in the innermost test
+   The innermost test is a Probability over the items of Output, so the generated
+   code exercises loops, lets, lookups, membership tests, and binomial tests
+   Usage: SpecGenerator <depth> <ranges> <lets> <size> - print a spec
+*/
+
+public class SpecGenerator {
+
+  public static final String[] DIMENSIONS = {"depth","ranges","lets","size"};
+
+  /* Returns a spec that has the given scale in one dimension and the base size in the others */
+
+  public static String generate(String dimension, int scale) {
+    int depth = 1, ranges = 1, lets = 1, size = 1;
+    switch(dimension) {
+      case "depth":
+        depth = scale;
+        break;
+      case "ranges":
+        ranges = scale;
+        break;
+      case "lets":
+        lets = scale;
+        break;
+      case "size":
+        size = scale;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown spec dimension "+dimension);
+    }
+    return generate(depth,ranges,lets,size);
+  }
+
+  public static String generate(int depth, int ranges, int lets, int size) {
+    StringBuilder spec = new StringBuilder();
+    spec.append("Input list of real;\nOutput list of real;\n");
+    spec.append("TIME k*n;\nSPACE k;\n");
+    spec.append("ACC\n");
+    for(int l=0; l<lets; ++l) {
+      //each binding depends on the previous one
+      String previous = l == 0 ? "|Input|" : "a"+(l-1);
+      spec.append("let a"+l+" = "+previous+" + "+l+" in\n");
+    }
+    for(int d=0; d<depth; ++d) {
+      indent(spec,d);
+      spec.append("forall ");
+      for(int r=0; r<ranges; ++r) {
+        if(r > 0)
+          spec.append(", ");
+        //alternate between the three kinds of ranges
+        String item = item(d,r);
+        if(r%3 == 0)
+          spec.append(item+" in Input");
+        else if(r%3 == 1)
+          spec.append(item+" in uniques(Output)");
+        else
+          spec.append(item+" in indices(Input)");
+      }
+      spec.append(" :\n");
+    }
+    indent(spec,depth);
+    spec.append("(("+item(depth-1,0)+" in Output) || ");
+    spec.append("Probability over y in Output [ y < "+expression(depth,ranges,lets,size)+" ] >= 0.5)\n");
+    return spec.toString();
+  }
+
+  private static String item(int depth, int range) {
+    return "x"+depth+"_"+range;
+  }
+
+  private static void indent(StringBuilder spec, int depth) {
+    for(int i=0; i<depth; ++i)
+      spec.append("  ");
+  }
+
+  /* Sum of size terms over the items, let names, Input lookups, and a configuration parameter */
+
+  private static String expression(int depth, int ranges, int lets, int size) {
+    StringBuilder exp = new StringBuilder();
+    for(int t=0; t<size; ++t) {
+      if(t > 0)
+        exp.append(" + ");
+      String item = item(t%depth,(t/depth)%ranges);
+      switch(t%4) {
+        case 0:
+          exp.append("("+item+"*k)");
+          break;
+        case 1:
+          exp.append(lets > 0 ? "(a"+(t%lets)+"/"+(t+1)+")" : item);
+          break;
+        case 2:
+          exp.append("Input[0]");
+          break;
+        default:
+          exp.append("("+item+" - "+t+".5)");
+          break;
+      }
+    }
+    return exp.toString();
+  }
+
+  public static void main(String[] args) {
+    if(args.length != 4) {
+      System.err.println("Usage: SpecGenerator <depth> <ranges> <lets> <size>");
+      System.exit(1);
+    }
+    System.out.print(generate(Integer.parseInt(args[0]),Integer.parseInt(args[1]),
+                              Integer.parseInt(args[2]),Integer.parseInt(args[3])));
+  }
+}
@@ -0,0 +1,40 @@
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/* Unix socket listener of the checker generator server
+   Unix domain sockets need JDK 16 or newer, so this class is built separately
+   from the rest of the checker generator (see the Makefile) and loaded by
+   CheckerServer.serveUnixSocket only when a socket path is given
+*/
+
+public class CheckerSocketServer {
+
+  /* Serve requests from connections to a Unix socket at the given path
+     Connections are handled one at a time, each until its client closes it
+     A connection that fails is closed without stopping the server
+  */
+
+  public static void serve(CheckerServer checkerServer, Path path) throws IOException {
+    Files.deleteIfExists(path);
+    ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(path));
+    try{
+      while(true) {
+        try(SocketChannel client = server.accept()) {
+          checkerServer.serve(Channels.newInputStream(client),Channels.newOutputStream(client));
+        }catch(IOException e){
+          System.err.println("Checker generator server: connection failed: "+e.getMessage());
+        }
+      }
+    }finally{
+      server.close();
+      Files.deleteIfExists(path);
+    }
+  }
+}
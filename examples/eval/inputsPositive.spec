@@ -0,0 +1,3 @@
+Input real;
+Output real;
+ACC Probability over inputs [ Output > 0 ] >= 0.5
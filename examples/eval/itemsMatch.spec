@@ -0,0 +1,3 @@
+Input list of real;
+Output list of real;
+ACC |Output| == |Input| && Probability over i in indices(Input) [ Output[i] == Input[i] ] >= 0.9
@@ -0,0 +1,3 @@
+Input real;
+Output real;
+ACC Expectation over runs [Output] == Input
@@ -142,7 +142,8 @@ def flipCoins(numCoins):
 # 6) The runner i.e. the application interface.
 # Apart from this, it takes multiple optional parameters. Usually, only the
 # specification needs to be provided. AxProf will generate all necessary code
-# from the specification and use it to test the program.
+# from the specification and use it to test the program. Setting workers to a
+# number of processes spreads the runs over that many processes.
 # It is important to use `if __name__ == '__main__':` when invoking AxProf. We
 # also measure the total time taken to use AxProf.
 